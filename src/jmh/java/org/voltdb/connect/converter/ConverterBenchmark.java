@@ -0,0 +1,100 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.converter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Converting schemaless record values to the pay load handed to the formatters
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConverterBenchmark {
+
+    private JsonDataConverter m_jsonConverter;
+    private PassthroughDataConverter m_passthroughConverter;
+    private SinkRecord m_mapRecord;
+    private SinkRecord m_stringRecord;
+    private SinkRecord m_bytesRecord;
+
+    @Setup
+    public void setup() {
+
+        m_jsonConverter = new JsonDataConverter();
+        m_passthroughConverter = new PassthroughDataConverter();
+
+        Map<String, Object> value = new HashMap<String, Object>();
+        value.put("id", 1234567L);
+        value.put("symbol", "VOLT");
+        value.put("quantity", 300);
+        value.put("price", 101.25);
+        m_mapRecord = new SinkRecord("trades", 0, null, null, null, value, 0);
+
+        String csv = "1234567,VOLT,300,101.25";
+        m_stringRecord = new SinkRecord("trades", 0, null, null, Schema.STRING_SCHEMA, csv, 0);
+        m_bytesRecord = new SinkRecord("trades", 0, null, null, Schema.BYTES_SCHEMA, csv.getBytes(StandardCharsets.UTF_8), 0);
+    }
+
+    @Benchmark
+    public byte[] jsonMap() {
+        return m_jsonConverter.convert(m_mapRecord);
+    }
+
+    @Benchmark
+    public byte[] jsonString() {
+        return m_jsonConverter.convert(m_stringRecord);
+    }
+
+    @Benchmark
+    public ByteBuffer passthroughString() {
+        return m_passthroughConverter.convertToBuffer(m_stringRecord);
+    }
+
+    @Benchmark
+    public ByteBuffer passthroughBytes() {
+        return m_passthroughConverter.convertToBuffer(m_bytesRecord);
+    }
+}
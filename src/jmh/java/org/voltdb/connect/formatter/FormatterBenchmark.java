@@ -0,0 +1,116 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.formatter;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.voltdb.importer.formatter.FormatException;
+import org.voltdb.importer.formatter.Formatter;
+
+/**
+ * Formatting the same trade as CSV, JSON and Avro binary into procedure parameters
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatterBenchmark {
+
+    private static final String AVRO_SCHEMA = "{\"type\":\"record\",\"name\":\"Trade\",\"fields\":["
+            + "{\"name\":\"id\",\"type\":\"long\"},{\"name\":\"symbol\",\"type\":\"string\"},"
+            + "{\"name\":\"quantity\",\"type\":\"int\"},{\"name\":\"price\",\"type\":\"double\"}]}";
+
+    private Formatter m_csvFormatter;
+    private Formatter m_jsonFormatter;
+    private Formatter m_avroFormatter;
+    private ByteBuffer m_csv;
+    private ByteBuffer m_json;
+    private ByteBuffer m_avro;
+
+    @Setup
+    public void setup() {
+
+        Properties props = new Properties();
+        m_csvFormatter = new CSVFormatterFactory().create("csv", props);
+        props.setProperty(JsonFormatterFactory.JSON_FIELDS, "id,symbol,quantity,price");
+        m_jsonFormatter = new JsonFormatterFactory().create("json", props);
+        props.setProperty(AvroFormatterFactory.AVRO_SCHEMA, AVRO_SCHEMA);
+        m_avroFormatter = new AvroFormatterFactory().create("avro", props);
+
+        m_csv = ByteBuffer.wrap("1234567,VOLT,300,101.25".getBytes(StandardCharsets.UTF_8));
+        m_json = ByteBuffer.wrap("{\"id\":1234567,\"symbol\":\"VOLT\",\"quantity\":300,\"price\":101.25}".getBytes(StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream avro = new ByteArrayOutputStream();
+        writeLong(avro, 1234567L);
+        byte[] symbol = "VOLT".getBytes(StandardCharsets.UTF_8);
+        writeLong(avro, symbol.length);
+        avro.write(symbol, 0, symbol.length);
+        writeLong(avro, 300);
+        byte[] price = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putDouble(101.25).array();
+        avro.write(price, 0, price.length);
+        m_avro = ByteBuffer.wrap(avro.toByteArray());
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        long n = (value << 1) ^ (value >> 63);
+        while ((n & ~0x7FL) != 0) {
+            out.write((int) ((n & 0x7F) | 0x80));
+            n >>>= 7;
+        }
+        out.write((int) n);
+    }
+
+    @Benchmark
+    public Object[] csv() throws FormatException {
+        return m_csvFormatter.transform(m_csv.duplicate());
+    }
+
+    @Benchmark
+    public Object[] json() throws FormatException {
+        return m_jsonFormatter.transform(m_json.duplicate());
+    }
+
+    @Benchmark
+    public Object[] avro() throws FormatException {
+        return m_avroFormatter.transform(m_avro.duplicate());
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ClientStatusListenerExt;
+import org.voltdb.client.NoConnectionsException;
+import org.voltdb.client.ProcedureCallback;
+
+/**
+ * An in-process stand-in for a VoltDB cluster behind the client interface. Procedure calls complete asynchronously
+ * on a scheduler thread after a configurable latency, and may fail, raise backpressure or lose the connection.
+ * The first two parameters of every row are taken as the kafka partition and offset the row is formatted from, after
+ * the kafka topic in exactly once mode, so the rows actually written can be checked against the committed offsets.
+ * Rows led by the kafka topic are ignored if already written, as an exactly once procedure does.
+ */
+final class FakeVoltDB implements InvocationHandler {
+
+    private static final String HOST = "localhost";
+    private static final int PORT = 21212;
+
+    private static final VoltTable[] NO_RESULTS = new VoltTable[0];
+
+    /**
+     * <code>m_latencyMicros</code> The mean latency of a procedure call, uniformly distributed over [0, 2 * mean]
+     */
+    private final long m_latencyMicros;
+
+    /**
+     * <code>m_callMicros</code> The time a call occupies the server, calls queue behind each other
+     */
+    private final long m_callMicros;
+
+    /**
+     * <code>m_rowMicros</code> The additional time each row of a call occupies the server
+     */
+    private final long m_rowMicros;
+
+    /**
+     * <code>m_busyUntil</code> The nano time the server has worked off the calls queued so far
+     */
+    private long m_busyUntil = 0;
+
+    /**
+     * <code>m_roundTrips</code> The round trips of the completed calls in nanos, appended on the scheduler thread
+     */
+    private long[] m_roundTrips = new long[1024];
+    private int m_roundTripCount = 0;
+
+    /**
+     * <code>m_failureRate</code> The fraction of procedure calls which fail
+     */
+    private final double m_failureRate;
+
+    /**
+     * <code>m_failureStatus</code> The status the failed calls complete with
+     */
+    private final byte m_failureStatus;
+
+    /**
+     * <code>m_backpressureThreshold</code> The outstanding calls to raise backpressure at, 0 for none
+     */
+    private final int m_backpressureThreshold;
+
+    /**
+     * <code>m_connectionLossInterval</code> Lose the connection every so many calls, 0 for never
+     */
+    private final long m_connectionLossInterval;
+
+    /**
+     * <code>m_reconnectMillis</code> The time to reconnect after the connection is lost
+     */
+    private final long m_reconnectMillis;
+
+    private final ScheduledExecutorService m_scheduler;
+    private final BitSet[] m_written;
+    private final BitSet[] m_failed;
+
+    private volatile ClientStatusListenerExt m_listener;
+
+    /**
+     * <code>m_epoch</code> The connection generation, bumped on connection loss to fail the calls of the old one
+     */
+    private final AtomicInteger m_epoch = new AtomicInteger(0);
+    private volatile boolean m_connected = true;
+    private boolean m_backpressure = false;
+
+    final AtomicLong m_calls = new AtomicLong(0);
+    final AtomicLong m_duplicates = new AtomicLong(0);
+    final AtomicLong m_ignored = new AtomicLong(0);
+    final AtomicLong m_failures = new AtomicLong(0);
+    final AtomicLong m_lostCalls = new AtomicLong(0);
+    final AtomicLong m_connectionLosses = new AtomicLong(0);
+    final AtomicLong m_backpressureEvents = new AtomicLong(0);
+    private final AtomicInteger m_outstanding = new AtomicInteger(0);
+
+    FakeVoltDB(int partitions, long latencyMicros, long callMicros, long rowMicros, double failureRate,
+            byte failureStatus, int backpressureThreshold, long connectionLossInterval, long reconnectMillis) {
+
+        m_latencyMicros = latencyMicros;
+        m_callMicros = callMicros;
+        m_rowMicros = rowMicros;
+        m_failureRate = failureRate;
+        m_failureStatus = failureStatus;
+        m_backpressureThreshold = backpressureThreshold;
+        m_connectionLossInterval = connectionLossInterval;
+        m_reconnectMillis = reconnectMillis;
+        m_written = new BitSet[partitions];
+        m_failed = new BitSet[partitions];
+        for (int i = 0; i < partitions; i++) {
+            m_written[i] = new BitSet();
+            m_failed[i] = new BitSet();
+        }
+        m_scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "FakeVoltDB");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return a client backed by this stand-in, reporting connection events to the listener
+     */
+    Client createClient(ClientStatusListenerExt listener) {
+        m_listener = listener;
+        return (Client) Proxy.newProxyInstance(FakeVoltDB.class.getClassLoader(), new Class<?>[] { Client.class }, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+
+        switch (method.getName()) {
+        case "callProcedure":
+            if (args.length > 2 && args[0] instanceof ProcedureCallback) {
+                return call((ProcedureCallback) args[0], (Object[]) args[2]);
+            }
+            if (!m_connected) {
+                throw noConnections();
+            }
+            return response(ClientResponse.SUCCESS, NO_RESULTS, 0);
+        case "drain":
+            while (m_outstanding.get() > 0) {
+                Thread.sleep(1);
+            }
+            return null;
+        case "close":
+            m_scheduler.shutdownNow();
+            return null;
+        case "getNewBulkLoader":
+            throw new UnsupportedOperationException("The bulk loader is not supported.");
+        default:
+            return StubClient.defaultValue(method.getReturnType());
+        }
+    }
+
+    /**
+     * @param partition the kafka partition
+     * @param offset the kafka offset
+     * @return true if the row formatted from the record was written
+     */
+    synchronized boolean isWritten(int partition, long offset) {
+        return m_written[partition].get((int) offset);
+    }
+
+    /**
+     * @return the number of rows which were written or failed
+     */
+    synchronized long getCompleted() {
+
+        long completed = 0;
+        for (int i = 0; i < m_written.length; i++) {
+            BitSet rows = (BitSet) m_written[i].clone();
+            rows.or(m_failed[i]);
+            completed += rows.cardinality();
+        }
+        return completed;
+    }
+
+    /**
+     * @return true if a call with the row formatted from the record failed
+     */
+    synchronized boolean isFailed(int partition, long offset) {
+        return m_failed[partition].get((int) offset);
+    }
+
+    private boolean call(final ProcedureCallback cb, Object[] params) throws NoConnectionsException {
+
+        if (!m_connected) {
+            throw noConnections();
+        }
+        long calls = m_calls.incrementAndGet();
+        if (m_connectionLossInterval > 0 && calls % m_connectionLossInterval == 0) {
+            loseConnection();
+            throw noConnections();
+        }
+
+        final long[] rows = getRows(params);
+        final boolean idempotent = hasOffsets(params);
+        final int epoch = m_epoch.get();
+        final boolean failed = ThreadLocalRandom.current().nextDouble() < m_failureRate;
+        final long sent = System.nanoTime();
+        int outstanding = m_outstanding.incrementAndGet();
+        if (m_backpressureThreshold > 0 && outstanding >= m_backpressureThreshold) {
+            setBackpressure(true);
+        }
+        long delay = (m_latencyMicros > 0) ? ThreadLocalRandom.current().nextLong(2 * m_latencyMicros + 1) * 1000 : 0;
+        if (m_callMicros > 0 || m_rowMicros > 0) {
+            delay += queue((m_callMicros + m_rowMicros * (rows.length / 2)) * 1000);
+        }
+        m_scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                complete(cb, rows, idempotent, epoch, failed, sent);
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    /**
+     * queue a call behind the ones the server is still working off
+     * @return the time until the call is worked off in nanos
+     */
+    private synchronized long queue(long serviceNanos) {
+
+        long now = System.nanoTime();
+        m_busyUntil = Math.max(now, m_busyUntil) + serviceNanos;
+        return m_busyUntil - now;
+    }
+
+    private void complete(ProcedureCallback cb, long[] rows, boolean idempotent, int epoch, boolean failed, long sent) {
+
+        byte status;
+        if (epoch != m_epoch.get()) {
+            m_lostCalls.incrementAndGet();
+            status = ClientResponse.CONNECTION_LOST;
+        } else if (failed) {
+            m_failures.incrementAndGet();
+            markFailed(rows);
+            status = m_failureStatus;
+        } else {
+            mark(m_written, rows, idempotent);
+            status = ClientResponse.SUCCESS;
+        }
+        long roundTrip = System.nanoTime() - sent;
+        addRoundTrip(roundTrip);
+        ClientResponse response = response(status, NO_RESULTS, roundTrip);
+        int outstanding = m_outstanding.decrementAndGet();
+        if (outstanding <= m_backpressureThreshold / 2) {
+            setBackpressure(false);
+        }
+        try {
+            cb.clientCallback(response);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void loseConnection() {
+
+        m_connectionLosses.incrementAndGet();
+        m_connected = false;
+        m_epoch.incrementAndGet();
+        m_listener.connectionLost(HOST, PORT, 0, ClientStatusListenerExt.DisconnectCause.CONNECTION_CLOSED);
+        m_scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                m_connected = true;
+                m_listener.connectionCreated(HOST, PORT, ClientStatusListenerExt.AutoConnectionStatus.SUCCESS);
+            }
+        }, m_reconnectMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void setBackpressure(boolean backpressure) {
+
+        if (m_backpressure != backpressure) {
+            m_backpressure = backpressure;
+            if (backpressure) {
+                m_backpressureEvents.incrementAndGet();
+            }
+            m_listener.backpressure(backpressure);
+        }
+    }
+
+    private synchronized void mark(BitSet[] sets, long[] rows, boolean idempotent) {
+        for (int i = 0; i < rows.length; i += 2) {
+            if (sets[(int) rows[i]].get((int) rows[i + 1])) {
+                (idempotent ? m_ignored : m_duplicates).incrementAndGet();
+            }
+            sets[(int) rows[i]].set((int) rows[i + 1]);
+        }
+    }
+
+    /**
+     * mark the rows of a failed call, a row which fails again after a retry is no duplicate
+     */
+    private synchronized void markFailed(long[] rows) {
+        for (int i = 0; i < rows.length; i += 2) {
+            m_failed[(int) rows[i]].set((int) rows[i + 1]);
+        }
+    }
+
+    /**
+     * @return the kafka partition and offset pairs of the rows in the procedure parameters
+     */
+    private static long[] getRows(Object[] params) {
+
+        VoltTable table = getTable(params);
+        if (table != null) {
+            int first = hasOffsets(params) ? 1 : 0;
+            long[] rows = new long[table.getRowCount() * 2];
+            int i = 0;
+            table.resetRowPosition();
+            while (table.advanceRow()) {
+                rows[i++] = toLong(table.get(first, table.getColumnType(first)));
+                rows[i++] = toLong(table.get(first + 1, table.getColumnType(first + 1)));
+            }
+            return rows;
+        }
+        int first = hasOffsets(params) ? 1 : 0;
+        return new long[] { toLong(params[first]), toLong(params[first + 1]) };
+    }
+
+    /**
+     * @return true if the rows are led by the kafka topic, partition and offset of exactly once mode
+     */
+    private static boolean hasOffsets(Object[] params) {
+
+        VoltTable table = getTable(params);
+        if (table != null) {
+            return table.getColumnCount() > 3 && table.getColumnType(0) == VoltType.STRING
+                    && table.getColumnType(1) == VoltType.INTEGER;
+        }
+        return params.length > 3 && params[0] instanceof String && params[1] instanceof Integer;
+    }
+
+    private static VoltTable getTable(Object[] params) {
+
+        if (params.length == 1 && params[0] instanceof VoltTable) {
+            return (VoltTable) params[0];
+        }
+        if (params.length == 2 && params[1] instanceof VoltTable) {
+            return (VoltTable) params[1];
+        }
+        return null;
+    }
+
+    /**
+     * The client raises NoConnectionsException through a constructor which is not public.
+     */
+    private static NoConnectionsException noConnections() {
+
+        try {
+            Constructor<NoConnectionsException> constructor = NoConnectionsException.class.getDeclaredConstructor(String.class);
+            constructor.setAccessible(true);
+            return constructor.newInstance("Connection to the database is lost.");
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long toLong(Object value) {
+        return (value instanceof Number) ? ((Number) value).longValue() : Long.parseLong(value.toString().trim());
+    }
+
+    private synchronized void addRoundTrip(long roundTrip) {
+
+        if (m_roundTripCount == m_roundTrips.length) {
+            m_roundTrips = Arrays.copyOf(m_roundTrips, m_roundTripCount * 2);
+        }
+        m_roundTrips[m_roundTripCount++] = roundTrip;
+    }
+
+    /**
+     * @return the round trips of the completed calls in nanos, sorted
+     */
+    synchronized long[] getRoundTrips() {
+
+        long[] roundTrips = Arrays.copyOf(m_roundTrips, m_roundTripCount);
+        Arrays.sort(roundTrips);
+        return roundTrips;
+    }
+
+    private static ClientResponse response(final byte status, final VoltTable[] results, final long roundTripNanos) {
+
+        return (ClientResponse) Proxy.newProxyInstance(FakeVoltDB.class.getClassLoader(),
+                new Class<?>[] { ClientResponse.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                        case "getStatus":
+                            return status;
+                        case "getStatusString":
+                        case "getAppStatusString":
+                            return "";
+                        case "getAppStatus":
+                            return ClientResponse.UNINITIALIZED_APP_STATUS_CODE;
+                        case "getResults":
+                            return results;
+                        case "getClientRoundtripNanos":
+                            return roundTripNanos;
+                        case "getClientRoundtrip":
+                        case "getClusterRoundtrip":
+                            return (int) TimeUnit.NANOSECONDS.toMillis(roundTripNanos);
+                        default:
+                            return StubClient.defaultValue(method.getReturnType());
+                        }
+                    }
+                });
+    }
+}
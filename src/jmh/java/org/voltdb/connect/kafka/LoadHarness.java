@@ -0,0 +1,435 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ClientStatusListenerExt;
+
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.errors.RetriableException;
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.apache.kafka.connect.sink.SinkTaskContext;
+
+/**
+ * End to end load harness for ConnectorTask. Drives a task the way a sink worker does, with a synthetic record stream
+ * against {@link FakeVoltDB}: records are put in batches, a batch failing with a RetriableException is put again,
+ * paused partitions are not consumed, offsets set through the context rewind the stream and offsets are committed
+ * through preCommit on an interval.
+ * <p>
+ * Options are given as <code>name=value</code> arguments; names containing a dot are passed to the task as connector
+ * properties. Reports throughput, commit latency, replays and the committed offsets whose rows were never written.
+ */
+public final class LoadHarness {
+
+    private static final String TOPIC = "load";
+
+    private final int m_partitions;
+    private final int m_perPartition;
+    private final int m_putSize;
+    private final long m_rate;
+    private final long m_commitNanos;
+    private final long m_retryBackoffMillis;
+    private final long m_drainTimeoutNanos;
+
+    /**
+     * <code>m_quietNanos</code> The time without writes after which the remaining rows are taken as lost
+     */
+    private final long m_quietNanos;
+    private final boolean m_struct;
+
+    /**
+     * <code>m_keys</code> The number of distinct record keys per partition, the key of a record is its offset modulo
+     * keys, 0 for records without a key
+     */
+    private final int m_keys;
+    private final String m_payload;
+    private final Schema m_schema;
+
+    private final FakeVoltDB m_db;
+    private final ConnectorTask m_task;
+    private final Set<TopicPartition> m_assignment = new HashSet<TopicPartition>();
+    private final Set<TopicPartition> m_paused = new HashSet<TopicPartition>();
+
+    private final long[] m_next;
+
+    /**
+     * <code>m_delivered</code> The offset after the highest record delivered per partition
+     */
+    private final long[] m_delivered;
+    private final long[] m_committed;
+    private final long[][] m_putNanos;
+    private final long[] m_latencies;
+    private int m_latencyCount = 0;
+
+    private long m_puts = 0;
+    private long m_retries = 0;
+    private long m_replayed = 0;
+    private long m_pauses = 0;
+    private int m_nextPartition = 0;
+
+    LoadHarness(Map<String, String> options, Map<String, String> props) {
+
+        int records = getInt(options, "records", 1000000);
+        m_partitions = getInt(options, "partitions", 8);
+        m_perPartition = (records + m_partitions - 1) / m_partitions;
+        m_putSize = getInt(options, "putSize", 500);
+        m_rate = getInt(options, "rate", 0);
+        m_commitNanos = TimeUnit.MILLISECONDS.toNanos(getInt(options, "commitMillis", 1000));
+        m_retryBackoffMillis = getInt(options, "retryBackoffMillis", 100);
+        m_drainTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(getInt(options, "drainTimeoutMillis", 30000));
+        m_quietNanos = TimeUnit.MILLISECONDS.toNanos(getInt(options, "reconnectMillis", 500) + 1000);
+        m_struct = "struct".equals(getString(options, "schema", "csv"));
+        m_keys = getInt(options, "keys", 0);
+
+        char[] payload = new char[getInt(options, "payload", 100)];
+        Arrays.fill(payload, 'x');
+        m_payload = new String(payload);
+        if (m_struct) {
+            m_schema = SchemaBuilder.struct().name("Load")
+                    .field("partition", Schema.INT32_SCHEMA)
+                    .field("offset", Schema.INT64_SCHEMA)
+                    .field("payload", Schema.STRING_SCHEMA)
+                    .build();
+        } else {
+            m_schema = Schema.STRING_SCHEMA;
+        }
+
+        m_db = new FakeVoltDB(m_partitions, getInt(options, "latencyMicros", 1000), getInt(options, "callMicros", 0),
+                getInt(options, "rowMicros", 0), Double.parseDouble(getString(options, "failureRate", "0")),
+                getFailureStatus(getString(options, "failureStatus", "GRACEFUL_FAILURE")), getInt(options, "backpressureThreshold", 0),
+                getInt(options, "connectionLossEvery", 0), getInt(options, "reconnectMillis", 500));
+
+        m_next = new long[m_partitions];
+        m_delivered = new long[m_partitions];
+        m_committed = new long[m_partitions];
+        m_putNanos = new long[m_partitions][m_perPartition];
+        m_latencies = new long[m_partitions * m_perPartition];
+        for (int i = 0; i < m_partitions; i++) {
+            m_assignment.add(new TopicPartition(TOPIC, i));
+        }
+
+        m_task = new ConnectorTask() {
+            @Override
+            Client createClient(Map<String, String> props, ClientStatusListenerExt listener, List<String> serverList) {
+                return m_db.createClient(listener);
+            }
+        };
+        m_task.initialize(createContext());
+        m_task.start(props);
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Map<String, String> options = new HashMap<String, String>();
+        Map<String, String> props = new HashMap<String, String>();
+        props.put(ConnectorConfig.CONNECTOR_NAME, "LoadHarness");
+        props.put(ConnectorConfig.CONNECTOR_SERVERS, "localhost");
+        props.put(ConnectorConfig.CONNECTOR_STORE_PROC, "LOAD.insert");
+        props.put(ConnectorConfig.BATCH_STORE_PROC, "LoadBatch");
+        props.put(ConnectorConfig.RECORD_CONVERT_CLASS, "org.voltdb.connect.converter.PassthroughDataConverter");
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index <= 0) {
+                throw new IllegalArgumentException("Expected name=value: " + arg);
+            }
+            String name = arg.substring(0, index).trim();
+            (name.indexOf('.') > 0 ? props : options).put(name, arg.substring(index + 1).trim());
+        }
+
+        LoadHarness harness = new LoadHarness(options, props);
+        try {
+            harness.run();
+        } finally {
+            harness.m_task.stop();
+        }
+    }
+
+    void run() throws InterruptedException {
+
+        long start = System.nanoTime();
+        long lastCommit = start;
+        long deliveredAt = 0;
+        long committedAt = 0;
+        long completed = 0;
+        long completedAt = 0;
+        List<SinkRecord> retry = null;
+        while (true) {
+            long now = System.nanoTime();
+            if (now - lastCommit >= m_commitNanos) {
+                commit(now);
+                lastCommit = now;
+            }
+            long delivered = getDelivered();
+            if (delivered == (long) m_partitions * m_perPartition) {
+                if (deliveredAt == 0) {
+                    deliveredAt = now;
+                }
+                if (committedAt == 0 && isCommitted()) {
+                    committedAt = now;
+                }
+                if (now - deliveredAt > m_drainTimeoutNanos) {
+                    break;
+                }
+                //records committed before they are written, as from a spool, are given until the writes stop
+                if (committedAt != 0 && now - completedAt >= TimeUnit.MILLISECONDS.toNanos(100)) {
+                    long rows = m_db.getCompleted();
+                    if (rows == delivered || (rows == completed && now - completedAt >= m_quietNanos)) {
+                        break;
+                    }
+                    if (rows != completed || completedAt == 0) {
+                        completed = rows;
+                        completedAt = now;
+                    }
+                }
+            }
+            if (m_rate > 0 && delivered >= (now - start) * m_rate / TimeUnit.SECONDS.toNanos(1)) {
+                Thread.sleep(1);
+                continue;
+            }
+
+            List<SinkRecord> batch = (retry != null) ? retry : nextBatch(now);
+            try {
+                m_puts++;
+                m_task.put(batch);
+                retry = null;
+            } catch (RetriableException e) {
+                m_retries++;
+                m_replayed += batch.size();
+                retry = batch;
+                Thread.sleep(m_retryBackoffMillis);
+            }
+            if (batch.isEmpty()) {
+                Thread.sleep(1);
+            }
+        }
+        commit(System.nanoTime());
+        report(((committedAt != 0) ? committedAt : System.nanoTime()) - start);
+    }
+
+    /**
+     * @return the next records of the partitions which are not paused, round robin
+     */
+    private List<SinkRecord> nextBatch(long now) {
+
+        List<SinkRecord> batch = new ArrayList<SinkRecord>(m_putSize);
+        int idle = 0;
+        while (batch.size() < m_putSize && idle < m_partitions) {
+            int partition = m_nextPartition;
+            m_nextPartition = (partition + 1) % m_partitions;
+            long offset = m_next[partition];
+            if (offset >= m_perPartition || m_paused.contains(new TopicPartition(TOPIC, partition))) {
+                idle++;
+                continue;
+            }
+            idle = 0;
+            m_next[partition] = offset + 1;
+            if (offset < m_delivered[partition]) {
+                m_replayed++;
+            } else {
+                m_delivered[partition] = offset + 1;
+                m_putNanos[partition][(int) offset] = now;
+            }
+            Object value;
+            if (m_struct) {
+                value = new Struct(m_schema).put("partition", partition).put("offset", offset).put("payload", m_payload);
+            } else {
+                value = partition + "," + offset + "," + m_payload;
+            }
+            if (m_keys > 0) {
+                batch.add(new SinkRecord(TOPIC, partition, Schema.INT64_SCHEMA, offset % m_keys, m_schema, value, offset));
+            } else {
+                batch.add(new SinkRecord(TOPIC, partition, null, null, m_schema, value, offset));
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Commit the offsets returned by preCommit and sample the commit latency of the newly committed records.
+     */
+    private void commit(long now) {
+
+        Map<TopicPartition, OffsetAndMetadata> current = new HashMap<TopicPartition, OffsetAndMetadata>();
+        for (int i = 0; i < m_partitions; i++) {
+            if (m_next[i] > m_committed[i]) {
+                current.put(new TopicPartition(TOPIC, i), new OffsetAndMetadata(m_next[i]));
+            }
+        }
+        if (current.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : m_task.preCommit(current).entrySet()) {
+            int partition = entry.getKey().partition();
+            long offset = entry.getValue().offset();
+            for (long i = m_committed[partition]; i < offset; i++) {
+                m_latencies[m_latencyCount++] = now - m_putNanos[partition][(int) i];
+            }
+            m_committed[partition] = Math.max(m_committed[partition], offset);
+        }
+    }
+
+    private long getDelivered() {
+
+        long delivered = 0;
+        for (long next : m_next) {
+            delivered += next;
+        }
+        return delivered;
+    }
+
+    private boolean isCommitted() {
+
+        for (long committed : m_committed) {
+            if (committed < m_perPartition) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void report(long elapsedNanos) {
+
+        long committed = 0;
+        long gaps = 0;
+        long failed = 0;
+        for (int partition = 0; partition < m_partitions; partition++) {
+            committed += m_committed[partition];
+            //with keys only the last committed record of each key has to be written
+            long from = (m_keys > 0) ? Math.max(0, m_committed[partition] - m_keys) : 0;
+            for (long offset = from; offset < m_committed[partition]; offset++) {
+                if (m_db.isWritten(partition, offset)) {
+                    continue;
+                }
+                if (m_db.isFailed(partition, offset)) {
+                    failed++;
+                } else {
+                    gaps++;
+                }
+            }
+        }
+        long total = (long) m_partitions * m_perPartition;
+        double seconds = elapsedNanos / 1e9;
+        long[] latencies = Arrays.copyOf(m_latencies, m_latencyCount);
+        Arrays.sort(latencies);
+
+        System.out.printf("elapsed               %.2f s%n", seconds);
+        System.out.printf("throughput            %.0f records/s committed%n", committed / seconds);
+        System.out.printf("records               %d committed of %d, %d uncommitted%n", committed, total, total - committed);
+        System.out.printf("puts                  %d, %d retried, %d records replayed%n", m_puts, m_retries, m_replayed);
+        System.out.printf("pauses                %d, %d backpressure events%n", m_pauses, m_db.m_backpressureEvents.get());
+        System.out.printf("procedure calls       %d, %d failed, %d lost with %d connection losses%n", m_db.m_calls.get(),
+                m_db.m_failures.get(), m_db.m_lostCalls.get(), m_db.m_connectionLosses.get());
+        long[] roundTrips = m_db.getRoundTrips();
+        System.out.printf("procedure round trip  p50 %.1f ms, p99 %.1f ms, p99.9 %.1f ms, max %.1f ms%n",
+                percentile(roundTrips, 0.5), percentile(roundTrips, 0.99), percentile(roundTrips, 0.999),
+                percentile(roundTrips, 1.0));
+        System.out.printf("commit latency        p50 %.1f ms, p99 %.1f ms, p99.9 %.1f ms, max %.1f ms%n",
+                percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                percentile(latencies, 1.0));
+        System.out.printf("committed not written %d failed, %d missing%n", failed, gaps);
+        System.out.printf("duplicate writes      %d%n", m_db.m_duplicates.get());
+        System.out.printf("ignored rewrites      %d%n", m_db.m_ignored.get());
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private SinkTaskContext createContext() {
+
+        return (SinkTaskContext) Proxy.newProxyInstance(LoadHarness.class.getClassLoader(),
+                new Class<?>[] { SinkTaskContext.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                        case "assignment":
+                            return Collections.unmodifiableSet(m_assignment);
+                        case "pause":
+                            m_pauses++;
+                            m_paused.addAll(Arrays.asList((TopicPartition[]) args[0]));
+                            return null;
+                        case "resume":
+                            m_paused.removeAll(Arrays.asList((TopicPartition[]) args[0]));
+                            return null;
+                        case "offset":
+                            if (args[0] instanceof Map) {
+                                for (Map.Entry<?, ?> entry : ((Map<?, ?>) args[0]).entrySet()) {
+                                    m_next[((TopicPartition) entry.getKey()).partition()] = (Long) entry.getValue();
+                                }
+                            } else {
+                                m_next[((TopicPartition) args[0]).partition()] = (Long) args[1];
+                            }
+                            return null;
+                        default:
+                            return StubClient.defaultValue(method.getReturnType());
+                        }
+                    }
+                });
+    }
+
+    private static int getInt(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return (value == null) ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * @return the ClientResponse status of the given name
+     */
+    private static byte getFailureStatus(String name) {
+        try {
+            return ClientResponse.class.getField(name).getByte(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Unknown status " + name, e);
+        }
+    }
+
+    private static String getString(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return (value == null) ? defaultValue : value;
+    }
+}
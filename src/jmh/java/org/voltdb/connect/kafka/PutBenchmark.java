@@ -0,0 +1,143 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientStatusListenerExt;
+
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The full put path, from SinkRecord to procedure call, against a client stub which completes the calls at once.
+ * Throughput is reported in records per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(PutBenchmark.RECORDS_PER_PUT)
+public class PutBenchmark {
+
+    static final int RECORDS_PER_PUT = 500;
+    private static final int PARTITIONS = 4;
+
+    @Param({ "procedure", "batch" })
+    public String writeMode;
+
+    @Param({ "csv", "struct" })
+    public String recordType;
+
+    @Param({ "1", "4" })
+    public String formatThreads;
+
+    private ConnectorTask m_task;
+    private Object[] m_values;
+    private Schema m_valueSchema;
+    private long m_offset = 0;
+
+    @Setup
+    public void setup() {
+
+        Map<String, String> props = new HashMap<String, String>();
+        props.put(ConnectorConfig.CONNECTOR_NAME, "PutBenchmark");
+        props.put(ConnectorConfig.CONNECTOR_SERVERS, "localhost");
+        props.put(ConnectorConfig.WRITE_MODE, writeMode);
+        props.put(ConnectorConfig.CONNECTOR_STORE_PROC, "TRADES.insert");
+        props.put(ConnectorConfig.BATCH_STORE_PROC, "InsertTrades");
+        props.put(ConnectorConfig.FORMAT_THREADS, formatThreads);
+        props.put(ConnectorConfig.RECORD_CONVERT_CLASS, "org.voltdb.connect.converter.PassthroughDataConverter");
+        props.put(ConnectorConfig.INFLIGHT_MAX_RECORDS, String.valueOf(Integer.MAX_VALUE));
+        props.put(ConnectorConfig.INFLIGHT_MAX_BYTES, String.valueOf(Integer.MAX_VALUE));
+
+        m_task = new ConnectorTask() {
+            @Override
+            Client createClient(Map<String, String> props, ClientStatusListenerExt listener, List<String> serverList) {
+                return StubClient.create(new StubClient());
+            }
+        };
+        m_task.initialize(StubClient.createContext());
+        m_task.start(props);
+
+        m_values = new Object[RECORDS_PER_PUT];
+        if ("struct".equals(recordType)) {
+            m_valueSchema = SchemaBuilder.struct().name("Trade")
+                    .field("id", Schema.INT64_SCHEMA)
+                    .field("symbol", Schema.STRING_SCHEMA)
+                    .field("quantity", Schema.INT32_SCHEMA)
+                    .field("price", Schema.FLOAT64_SCHEMA)
+                    .build();
+            for (int i = 0; i < RECORDS_PER_PUT; i++) {
+                m_values[i] = new Struct(m_valueSchema).put("id", (long) i).put("symbol", "VOLT").put("quantity", 100 + i)
+                        .put("price", 101.25);
+            }
+        } else {
+            m_valueSchema = Schema.STRING_SCHEMA;
+            for (int i = 0; i < RECORDS_PER_PUT; i++) {
+                m_values[i] = i + ",VOLT," + (100 + i) + ",101.25";
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        m_task.stop();
+    }
+
+    @Benchmark
+    public void put() {
+
+        List<SinkRecord> records = new ArrayList<SinkRecord>(RECORDS_PER_PUT);
+        long offset = m_offset;
+        for (int i = 0; i < RECORDS_PER_PUT; i++) {
+            records.add(new SinkRecord("trades", i % PARTITIONS, null, null, m_valueSchema, m_values[i], offset + i / PARTITIONS));
+        }
+        m_offset = offset + RECORDS_PER_PUT / PARTITIONS;
+        m_task.put(records);
+    }
+}
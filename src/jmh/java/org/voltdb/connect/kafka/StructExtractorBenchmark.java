@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.connect.data.Date;
+import org.apache.kafka.connect.data.Decimal;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.data.Timestamp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extracting the procedure parameters from Struct record values, for a schema of primitive fields and a schema
+ * with logical types
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StructExtractorBenchmark {
+
+    private StructExtractor m_extractor;
+    private Struct m_primitives;
+    private Struct m_logicalTypes;
+
+    @Setup
+    public void setup() {
+
+        m_extractor = new StructExtractor();
+
+        Schema primitives = SchemaBuilder.struct().name("Trade")
+                .field("id", Schema.INT64_SCHEMA)
+                .field("symbol", Schema.STRING_SCHEMA)
+                .field("quantity", Schema.INT32_SCHEMA)
+                .field("price", Schema.FLOAT64_SCHEMA)
+                .field("venue", Schema.OPTIONAL_STRING_SCHEMA)
+                .build();
+        m_primitives = new Struct(primitives).put("id", 1234567L).put("symbol", "VOLT").put("quantity", 300)
+                .put("price", 101.25).put("venue", null);
+
+        Schema logicalTypes = SchemaBuilder.struct().name("Settlement")
+                .field("id", Schema.INT64_SCHEMA)
+                .field("amount", Decimal.schema(2))
+                .field("tradeDate", Date.SCHEMA)
+                .field("settledAt", Timestamp.SCHEMA)
+                .field("memo", Schema.BYTES_SCHEMA)
+                .build();
+        m_logicalTypes = new Struct(logicalTypes).put("id", 1234567L).put("amount", new BigDecimal("30375.00"))
+                .put("tradeDate", new java.util.Date(1500000000000L - 1500000000000L % 86400000L))
+                .put("settledAt", new java.util.Date(1500000000000L)).put("memo", new byte[] { 1, 2, 3, 4 });
+    }
+
+    @Benchmark
+    public Object[] primitives() {
+        return m_extractor.getPlan(m_primitives.schema()).extract(m_primitives);
+    }
+
+    @Benchmark
+    public Object[] logicalTypes() {
+        return m_extractor.getPlan(m_logicalTypes.schema()).extract(m_logicalTypes);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcedureCallback;
+
+import org.apache.kafka.connect.sink.SinkTaskContext;
+
+/**
+ * A VoltDB client stub which completes every procedure call successfully from the calling thread, and a sink task
+ * context stub with no assigned partitions. Used to measure the connector without a VoltDB cluster.
+ */
+final class StubClient implements InvocationHandler {
+
+    private static final ClientResponse SUCCESS = (ClientResponse) Proxy.newProxyInstance(StubClient.class.getClassLoader(),
+            new Class<?>[] { ClientResponse.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                    case "getStatus":
+                        return ClientResponse.SUCCESS;
+                    case "getAppStatus":
+                        return ClientResponse.UNINITIALIZED_APP_STATUS_CODE;
+                    default:
+                        return defaultValue(method.getReturnType());
+                    }
+                }
+            });
+
+    /**
+     * <code>m_calls</code> The number of procedure calls
+     */
+    final AtomicLong m_calls = new AtomicLong(0);
+
+    /**
+     * @return a client stub counting the procedure calls with the given handler
+     */
+    static Client create(StubClient handler) {
+        return (Client) Proxy.newProxyInstance(StubClient.class.getClassLoader(), new Class<?>[] { Client.class }, handler);
+    }
+
+    static SinkTaskContext createContext() {
+        return (SinkTaskContext) Proxy.newProxyInstance(StubClient.class.getClassLoader(),
+                new Class<?>[] { SinkTaskContext.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("assignment".equals(method.getName())) {
+                            return Collections.emptySet();
+                        }
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+
+        if ("callProcedure".equals(method.getName()) && args.length > 0 && args[0] instanceof ProcedureCallback) {
+            m_calls.incrementAndGet();
+            ((ProcedureCallback) args[0]).clientCallback(SUCCESS);
+            return true;
+        }
+        return defaultValue(method.getReturnType());
+    }
+
+    static Object defaultValue(Class<?> type) {
+
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == float.class) {
+            return 0f;
+        }
+        if (type == double.class) {
+            return 0d;
+        }
+        return (char) 0;
+    }
+}
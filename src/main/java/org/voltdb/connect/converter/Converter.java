@@ -24,6 +24,8 @@
 
 package org.voltdb.connect.converter;
 
+import java.nio.ByteBuffer;
+
 import org.apache.kafka.connect.sink.SinkRecord;
 
 /**
@@ -37,4 +39,13 @@ public interface Converter {
      * @return the byte stream  of the SinkRecord pay load
      */
     public byte[] convert(SinkRecord record);
+
+    /**
+     * @param record a SinkRecord from connector put
+     * @return the byte stream of the SinkRecord pay load as a buffer for the formatter
+     */
+    public default ByteBuffer convertToBuffer(SinkRecord record) {
+        byte[] data = convert(record);
+        return (data == null) ? null : ByteBuffer.wrap(data);
+    }
 }
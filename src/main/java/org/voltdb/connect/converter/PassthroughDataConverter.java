@@ -0,0 +1,81 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.converter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.kafka.connect.sink.SinkRecord;
+
+/**
+ * Hand the SinkRecord value pay load to the formatter as is. Byte array and ByteBuffer values,
+ * such as those from org.voltdb.connect.converter.ByteArrayConverter, are passed without copying, String values from StringConverter
+ * are encoded once. Other values are converted by JsonDataConverter.
+ *
+ */
+public class PassthroughDataConverter implements Converter {
+
+    private JsonDataConverter m_jsonConverter;
+
+    @Override
+    public byte[] convert(SinkRecord record) {
+
+        Object value = record.value();
+        if (value instanceof byte[]) {
+            return (byte[]) value;
+        }
+        if (value instanceof String) {
+            return ((String) value).getBytes(StandardCharsets.UTF_8);
+        }
+        if (value instanceof ByteBuffer) {
+            ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            return data;
+        }
+        return getJsonConverter().convert(record);
+    }
+
+    @Override
+    public ByteBuffer convertToBuffer(SinkRecord record) {
+
+        Object value = record.value();
+        if (value instanceof byte[]) {
+            return ByteBuffer.wrap((byte[]) value);
+        }
+        if (value instanceof ByteBuffer) {
+            return ((ByteBuffer) value).duplicate();
+        }
+        byte[] data = convert(record);
+        return (data == null) ? null : ByteBuffer.wrap(data);
+    }
+
+    private JsonDataConverter getJsonConverter() {
+        if (m_jsonConverter == null) {
+            m_jsonConverter = new JsonDataConverter();
+        }
+        return m_jsonConverter;
+    }
+}
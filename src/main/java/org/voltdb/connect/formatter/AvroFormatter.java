@@ -0,0 +1,515 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.formatter;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kafka.common.config.ConfigException;
+import org.voltdb.importer.formatter.FormatException;
+import org.voltdb.importer.formatter.Formatter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * AvroFormatter decodes Avro binary encoded records with a configured writer schema straight into the procedure
+ * parameters, without building a generic record or a Connect Struct. The fields of the top level record are mapped
+ * to the parameters in order, or only the configured fields if a field list is given. Fields not mapped are skipped
+ * in the pay load without decoding.
+ * Booleans are passed as 1 or 0, enums as their symbol, fixed as byte array and decimals as BigDecimal. Other logical
+ * types are passed as their underlying int or long value.
+ */
+public class AvroFormatter implements Formatter {
+
+    /**
+     * The framing in front of the Avro binary data
+     */
+    public enum Header {
+        /** plain Avro binary data */
+        NONE,
+        /** magic byte 0 and a 4 byte schema id, as written by the Confluent serializers */
+        CONFLUENT,
+        /** magic bytes 0xC3 0x01 and an 8 byte schema fingerprint, Avro single object encoding */
+        SINGLE_OBJECT
+    }
+
+    private static final byte CONFLUENT_MAGIC = 0;
+    private static final byte SINGLE_OBJECT_MAGIC_0 = (byte) 0xC3;
+    private static final byte SINGLE_OBJECT_MAGIC_1 = (byte) 0x01;
+
+    private final AvroType m_schema;
+    private final Header m_header;
+
+    /**
+     * <code>m_schemaId</code> The expected Confluent schema id, or -1 if the id is not checked
+     */
+    private final int m_schemaId;
+
+    /**
+     * <code>m_paramIndex</code> The procedure parameter position of each field of the record, -1 if the field is skipped
+     */
+    private final int[] m_paramIndex;
+    private final int m_paramCount;
+
+    /**
+     * @param schemaJson the writer schema of the records, a record schema in JSON
+     * @param fieldNames the record fields in procedure parameter order, or null for all the fields
+     * @param header the framing in front of the Avro data
+     * @param schemaId the expected Confluent schema id, -1 not to check it
+     */
+    public AvroFormatter(String schemaJson, String[] fieldNames, Header header, int schemaId) {
+
+        m_schema = AvroType.parse(schemaJson);
+        if (m_schema.m_kind != Kind.RECORD) {
+            throw new ConfigException("The Avro schema must be a record schema: " + schemaJson);
+        }
+        m_header = header;
+        m_schemaId = schemaId;
+        m_paramIndex = new int[m_schema.m_children.length];
+        if (fieldNames == null) {
+            for (int i = 0; i < m_paramIndex.length; i++) {
+                m_paramIndex[i] = i;
+            }
+            m_paramCount = m_paramIndex.length;
+        } else {
+            Arrays.fill(m_paramIndex, -1);
+            for (int i = 0; i < fieldNames.length; i++) {
+                int field = m_schema.getFieldIndex(fieldNames[i].trim());
+                if (field < 0) {
+                    throw new ConfigException("The Avro schema has no field " + fieldNames[i].trim());
+                }
+                m_paramIndex[field] = i;
+            }
+            m_paramCount = fieldNames.length;
+        }
+        for (int i = 0; i < m_paramIndex.length; i++) {
+            if (m_paramIndex[i] >= 0 && !m_schema.m_children[i].isScalar()) {
+                throw new ConfigException("Unsupported Avro type for procedure parameter: " + m_schema.m_fieldNames[i]);
+            }
+        }
+    }
+
+    @Override
+    public Object[] transform(ByteBuffer payload) throws FormatException {
+
+        ByteBuffer buffer = payload.duplicate();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        Object[] values = new Object[m_paramCount];
+        try {
+            readHeader(buffer);
+            AvroType[] fields = m_schema.m_children;
+            for (int i = 0; i < fields.length; i++) {
+                if (m_paramIndex[i] < 0) {
+                    skip(fields[i], buffer);
+                } else {
+                    values[m_paramIndex[i]] = read(fields[i], buffer);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new FormatException("Truncated Avro data");
+        }
+        return values;
+    }
+
+    private void readHeader(ByteBuffer buffer) throws FormatException {
+
+        switch (m_header) {
+        case CONFLUENT:
+            if (buffer.get() != CONFLUENT_MAGIC) {
+                throw new FormatException("Unknown magic byte in Avro data");
+            }
+            int schemaId = buffer.getInt();
+            if (m_schemaId >= 0 && schemaId != m_schemaId) {
+                throw new FormatException("Unexpected Avro schema id " + schemaId + ", expected " + m_schemaId);
+            }
+            break;
+        case SINGLE_OBJECT:
+            if (buffer.get() != SINGLE_OBJECT_MAGIC_0 || buffer.get() != SINGLE_OBJECT_MAGIC_1) {
+                throw new FormatException("Unknown magic bytes in Avro data");
+            }
+            buffer.position(buffer.position() + 8);
+            break;
+        default:
+            break;
+        }
+    }
+
+    private static Object read(AvroType type, ByteBuffer buffer) throws FormatException {
+
+        switch (type.m_kind) {
+        case NULL:
+            return null;
+        case BOOLEAN:
+            return (byte) (buffer.get() != 0 ? 1 : 0);
+        case INT:
+            return (int) readLong(buffer);
+        case LONG:
+            return readLong(buffer);
+        case FLOAT:
+            return Float.intBitsToFloat(Integer.reverseBytes(buffer.getInt()));
+        case DOUBLE:
+            return Double.longBitsToDouble(Long.reverseBytes(buffer.getLong()));
+        case STRING:
+            return readString(buffer, readLength(buffer));
+        case BYTES:
+            return readBytes(type, buffer, readLength(buffer));
+        case FIXED:
+            return readBytes(type, buffer, type.m_size);
+        case ENUM:
+            int symbol = (int) readLong(buffer);
+            if (symbol < 0 || symbol >= type.m_symbols.length) {
+                throw new FormatException("Invalid Avro enum index " + symbol);
+            }
+            return type.m_symbols[symbol];
+        case UNION:
+            return read(getBranch(type, buffer), buffer);
+        default:
+            throw new FormatException("Unsupported Avro type for procedure parameter: " + type.m_kind);
+        }
+    }
+
+    private static void skip(AvroType type, ByteBuffer buffer) throws FormatException {
+
+        switch (type.m_kind) {
+        case NULL:
+            break;
+        case BOOLEAN:
+            buffer.get();
+            break;
+        case INT:
+        case LONG:
+        case ENUM:
+            readLong(buffer);
+            break;
+        case FLOAT:
+            skipBytes(buffer, 4);
+            break;
+        case DOUBLE:
+            skipBytes(buffer, 8);
+            break;
+        case STRING:
+        case BYTES:
+            skipBytes(buffer, readLength(buffer));
+            break;
+        case FIXED:
+            skipBytes(buffer, type.m_size);
+            break;
+        case RECORD:
+            for (AvroType field : type.m_children) {
+                skip(field, buffer);
+            }
+            break;
+        case UNION:
+            skip(getBranch(type, buffer), buffer);
+            break;
+        case ARRAY:
+        case MAP:
+            // blocks of items, a negative count is followed by the block size in bytes
+            for (long count = readLong(buffer); count != 0; count = readLong(buffer)) {
+                if (count < 0) {
+                    skipBytes(buffer, readLength(buffer));
+                    continue;
+                }
+                for (long i = 0; i < count; i++) {
+                    if (type.m_kind == Kind.MAP) {
+                        skipBytes(buffer, readLength(buffer));
+                    }
+                    skip(type.m_children[0], buffer);
+                }
+            }
+            break;
+        default:
+            throw new FormatException("Unknown Avro type " + type.m_kind);
+        }
+    }
+
+    private static AvroType getBranch(AvroType union, ByteBuffer buffer) throws FormatException {
+
+        long branch = readLong(buffer);
+        if (branch < 0 || branch >= union.m_children.length) {
+            throw new FormatException("Invalid Avro union index " + branch);
+        }
+        return union.m_children[(int) branch];
+    }
+
+    /**
+     * read a zig-zag encoded variable length long
+     */
+    private static long readLong(ByteBuffer buffer) throws FormatException {
+
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return (value >>> 1) ^ -(value & 1);
+            }
+        }
+        throw new FormatException("Invalid Avro variable length long");
+    }
+
+    private static int readLength(ByteBuffer buffer) throws FormatException {
+
+        long length = readLong(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new FormatException("Invalid Avro length " + length);
+        }
+        return (int) length;
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] data = new byte[length];
+            buffer.get(data);
+            value = new String(data, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    private static Object readBytes(AvroType type, ByteBuffer buffer, int length) {
+
+        byte[] data = new byte[length];
+        buffer.get(data);
+        if (type.m_decimal) {
+            return new BigDecimal(new BigInteger(data), type.m_scale);
+        }
+        return data;
+    }
+
+    private static void skipBytes(ByteBuffer buffer, int length) {
+
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        buffer.position(buffer.position() + length);
+    }
+
+    private enum Kind {
+        NULL, BOOLEAN, INT, LONG, FLOAT, DOUBLE, BYTES, STRING, RECORD, ENUM, ARRAY, MAP, UNION, FIXED
+    }
+
+    /**
+     * A parsed Avro schema. Records hold their field types, arrays and maps their item type and unions their branches
+     * as children.
+     */
+    private static final class AvroType {
+
+        final Kind m_kind;
+        AvroType[] m_children;
+        String[] m_fieldNames;
+        String[] m_symbols;
+        int m_size;
+        boolean m_decimal;
+        int m_scale;
+
+        AvroType(Kind kind) {
+            m_kind = kind;
+        }
+
+        int getFieldIndex(String name) {
+            for (int i = 0; i < m_fieldNames.length; i++) {
+                if (m_fieldNames[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return true if the values are passed as a single procedure parameter
+         */
+        boolean isScalar() {
+
+            switch (m_kind) {
+            case RECORD:
+            case ARRAY:
+            case MAP:
+                return false;
+            case UNION:
+                for (AvroType branch : m_children) {
+                    if (!branch.isScalar()) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                return true;
+            }
+        }
+
+        static AvroType parse(String schemaJson) {
+
+            try {
+                return parse(new ObjectMapper().readTree(schemaJson), null, new HashMap<String, AvroType>());
+            } catch (IOException e) {
+                throw new ConfigException("Invalid Avro schema: " + e.getMessage());
+            }
+        }
+
+        private static AvroType parse(JsonNode node, String namespace, Map<String, AvroType> namedTypes) {
+
+            if (node.isTextual()) {
+                return getType(node.asText(), namespace, namedTypes);
+            }
+            if (node.isArray()) {
+                AvroType union = new AvroType(Kind.UNION);
+                List<AvroType> branches = new ArrayList<AvroType>();
+                for (Iterator<JsonNode> it = node.elements(); it.hasNext();) {
+                    branches.add(parse(it.next(), namespace, namedTypes));
+                }
+                union.m_children = branches.toArray(new AvroType[branches.size()]);
+                return union;
+            }
+            if (!node.isObject() || !node.has("type")) {
+                throw new ConfigException("Invalid Avro schema: " + node);
+            }
+            JsonNode typeNode = node.get("type");
+            if (!typeNode.isTextual()) {
+                return parse(typeNode, namespace, namedTypes);
+            }
+
+            String typeName = typeNode.asText();
+            AvroType type;
+            switch (typeName) {
+            case "record":
+            case "error":
+                type = new AvroType(Kind.RECORD);
+                namespace = register(node, namespace, type, namedTypes);
+                JsonNode fields = node.get("fields");
+                if (fields == null || !fields.isArray()) {
+                    throw new ConfigException("Invalid Avro record schema, missing fields: " + node);
+                }
+                type.m_children = new AvroType[fields.size()];
+                type.m_fieldNames = new String[fields.size()];
+                for (int i = 0; i < fields.size(); i++) {
+                    JsonNode field = fields.get(i);
+                    type.m_fieldNames[i] = field.path("name").asText();
+                    type.m_children[i] = parse(field.get("type"), namespace, namedTypes);
+                }
+                return type;
+            case "enum":
+                type = new AvroType(Kind.ENUM);
+                register(node, namespace, type, namedTypes);
+                JsonNode symbols = node.path("symbols");
+                type.m_symbols = new String[symbols.size()];
+                for (int i = 0; i < type.m_symbols.length; i++) {
+                    type.m_symbols[i] = symbols.get(i).asText();
+                }
+                return type;
+            case "fixed":
+                type = new AvroType(Kind.FIXED);
+                register(node, namespace, type, namedTypes);
+                type.m_size = node.path("size").asInt();
+                break;
+            case "array":
+                type = new AvroType(Kind.ARRAY);
+                type.m_children = new AvroType[] { parse(node.get("items"), namespace, namedTypes) };
+                return type;
+            case "map":
+                type = new AvroType(Kind.MAP);
+                type.m_children = new AvroType[] { parse(node.get("values"), namespace, namedTypes) };
+                return type;
+            default:
+                type = getType(typeName, namespace, namedTypes);
+                if (type.m_kind != Kind.BYTES) {
+                    return type;
+                }
+                type = new AvroType(Kind.BYTES);
+                break;
+            }
+            if ("decimal".equals(node.path("logicalType").asText())) {
+                type.m_decimal = true;
+                type.m_scale = node.path("scale").asInt(0);
+            }
+            return type;
+        }
+
+        private static String register(JsonNode node, String namespace, AvroType type, Map<String, AvroType> namedTypes) {
+
+            String name = node.path("name").asText();
+            if (node.has("namespace")) {
+                namespace = node.get("namespace").asText();
+            }
+            int dot = name.lastIndexOf('.');
+            if (dot >= 0) {
+                namespace = name.substring(0, dot);
+                name = name.substring(dot + 1);
+            }
+            namedTypes.put(name, type);
+            if (namespace != null && !namespace.isEmpty()) {
+                namedTypes.put(namespace + "." + name, type);
+            }
+            return namespace;
+        }
+
+        private static AvroType getType(String name, String namespace, Map<String, AvroType> namedTypes) {
+
+            switch (name) {
+            case "null":
+                return new AvroType(Kind.NULL);
+            case "boolean":
+                return new AvroType(Kind.BOOLEAN);
+            case "int":
+                return new AvroType(Kind.INT);
+            case "long":
+                return new AvroType(Kind.LONG);
+            case "float":
+                return new AvroType(Kind.FLOAT);
+            case "double":
+                return new AvroType(Kind.DOUBLE);
+            case "bytes":
+                return new AvroType(Kind.BYTES);
+            case "string":
+                return new AvroType(Kind.STRING);
+            default:
+                AvroType type = (namespace != null) ? namedTypes.get(namespace + "." + name) : null;
+                if (type == null) {
+                    type = namedTypes.get(name);
+                }
+                if (type == null) {
+                    throw new ConfigException("Unknown Avro type " + name);
+                }
+                return type;
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.formatter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Properties;
+
+import org.apache.kafka.common.config.ConfigException;
+import org.voltdb.connect.formatter.AvroFormatter.Header;
+import org.voltdb.importer.formatter.Formatter;
+
+public class AvroFormatterFactory extends AbstractFormatterFactory {
+
+    /**
+     * <code>AVRO_SCHEMA</code> Property for the writer schema of the records in JSON
+     */
+    public static final String AVRO_SCHEMA = "formatter.avro.schema";
+
+    /**
+     * <code>AVRO_SCHEMA_FILE</code> Property for the file with the writer schema of the records, used if formatter.avro.schema is not set
+     */
+    public static final String AVRO_SCHEMA_FILE = "formatter.avro.schema.file";
+
+    /**
+     * <code>AVRO_FIELDS</code> Property for the record fields mapped to the procedure parameters, with ',' as delimiter.
+     * All the fields of the record in schema order if not set.
+     */
+    public static final String AVRO_FIELDS = "formatter.avro.fields";
+
+    /**
+     * <code>AVRO_HEADER</code> Property for the framing in front of the Avro data: none, confluent or single_object
+     */
+    public static final String AVRO_HEADER = "formatter.avro.header";
+
+    /**
+     * <code>AVRO_SCHEMA_ID</code> Property for the expected schema id with the confluent header, not checked if not set
+     */
+    public static final String AVRO_SCHEMA_ID = "formatter.avro.schema.id";
+
+    @Override
+    public Formatter create(String formatName, Properties props) {
+
+        String schema = props.getProperty(AVRO_SCHEMA);
+        if (schema == null || schema.trim().isEmpty()) {
+            String schemaFile = props.getProperty(AVRO_SCHEMA_FILE);
+            if (schemaFile == null || schemaFile.trim().isEmpty()) {
+                throw new ConfigException(String.format("Missing %s or %s for Avro formatter.", AVRO_SCHEMA, AVRO_SCHEMA_FILE));
+            }
+            try {
+                schema = new String(Files.readAllBytes(Paths.get(schemaFile.trim())), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new ConfigException(AVRO_SCHEMA_FILE, schemaFile, "Can't read Avro schema: " + e.getMessage());
+            }
+        }
+
+        String fields = props.getProperty(AVRO_FIELDS);
+        String[] fieldNames = (fields == null || fields.trim().isEmpty()) ? null : fields.split(",");
+
+        String header = props.getProperty(AVRO_HEADER, "none").trim();
+        Header avroHeader;
+        try {
+            avroHeader = Header.valueOf(header.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new ConfigException(AVRO_HEADER, header, "Must be one of none, confluent or single_object");
+        }
+
+        int schemaId = -1;
+        String id = props.getProperty(AVRO_SCHEMA_ID);
+        if (id != null && !id.trim().isEmpty()) {
+            try {
+                schemaId = Integer.parseInt(id.trim());
+            } catch (NumberFormatException e) {
+                throw new ConfigException(AVRO_SCHEMA_ID, id, "Must be an integer");
+            }
+        }
+        return new AvroFormatter(schema, fieldNames, avroHeader, schemaId);
+    }
+}
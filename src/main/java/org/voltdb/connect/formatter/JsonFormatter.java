@@ -0,0 +1,161 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.formatter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.voltdb.importer.formatter.FormatException;
+import org.voltdb.importer.formatter.Formatter;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * JsonFormatter reads a JSON object with Jackson's streaming parser and copies the values of the configured
+ * field paths straight into the parameter array, without building a tree of the document.
+ * Fields which are not present are null. Objects or arrays at a field path are passed as JSON text.
+ */
+public class JsonFormatter implements Formatter {
+
+    private final JsonFactory m_factory = new JsonFactory();
+
+    /**
+     * <code>m_root</code> The field paths as a tree of field names
+     */
+    private final FieldNode m_root = new FieldNode();
+    private final int m_fieldCount;
+
+    /**
+     * @param fieldPaths the field paths in procedure parameter order, nested fields separated with '.'
+     */
+    public JsonFormatter(String[] fieldPaths) {
+
+        for (int i = 0; i < fieldPaths.length; i++) {
+            FieldNode node = m_root;
+            for (String name : fieldPaths[i].trim().split("\\.")) {
+                node = node.getOrAddChild(name);
+            }
+            node.m_index = i;
+        }
+        m_fieldCount = fieldPaths.length;
+    }
+
+    @Override
+    public Object[] transform(ByteBuffer payload) throws FormatException {
+
+        Object[] values = new Object[m_fieldCount];
+        try {
+            JsonParser parser;
+            if (payload.hasArray()) {
+                parser = m_factory.createParser(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            } else {
+                byte[] data = new byte[payload.remaining()];
+                payload.duplicate().get(data);
+                parser = m_factory.createParser(data);
+            }
+            try {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new FormatException("The JSON data is not an object");
+                }
+                readObject(parser, m_root, values);
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            throw new FormatException(e);
+        }
+        return values;
+    }
+
+    /**
+     * read the fields of the object the parser is positioned at, skipping the fields not configured
+     */
+    private void readObject(JsonParser parser, FieldNode node, Object[] values) throws IOException {
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            FieldNode child = node.m_children.get(parser.getCurrentName());
+            JsonToken token = parser.nextToken();
+            if (child == null) {
+                parser.skipChildren();
+                continue;
+            }
+            if (child.m_index >= 0) {
+                values[child.m_index] = readValue(parser, token);
+            } else if (token == JsonToken.START_OBJECT) {
+                readObject(parser, child, values);
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private Object readValue(JsonParser parser, JsonToken token) throws IOException {
+
+        switch (token) {
+        case VALUE_STRING:
+            return parser.getText();
+        case VALUE_NUMBER_INT:
+            return parser.getNumberValue();
+        case VALUE_NUMBER_FLOAT:
+            return parser.getDoubleValue();
+        case VALUE_TRUE:
+            return (byte) 1;
+        case VALUE_FALSE:
+            return (byte) 0;
+        case VALUE_NULL:
+            return null;
+        default:
+            StringWriter writer = new StringWriter();
+            JsonGenerator generator = m_factory.createGenerator(writer);
+            generator.copyCurrentStructure(parser);
+            generator.close();
+            return writer.toString();
+        }
+    }
+
+    /**
+     * A field name in the field paths. The index is the parameter position if the path ends at the field, -1 otherwise.
+     */
+    private static final class FieldNode {
+
+        int m_index = -1;
+        final Map<String, FieldNode> m_children = new HashMap<String, FieldNode>();
+
+        FieldNode getOrAddChild(String name) {
+            FieldNode child = m_children.get(name);
+            if (child == null) {
+                child = new FieldNode();
+                m_children.put(name, child);
+            }
+            return child;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.formatter;
+
+import java.util.Properties;
+
+import org.apache.kafka.common.config.ConfigException;
+import org.voltdb.importer.formatter.Formatter;
+
+/**
+ * JsonFormatterFactory creates JsonFormatter which streams a JSON object and picks the configured fields
+ * as the values of the procedure parameters, in the order the fields are listed.
+ */
+public class JsonFormatterFactory extends AbstractFormatterFactory {
+
+    /**
+     * <code>JSON_FIELDS</code> Property for the JSON field paths mapped to the procedure parameters, with ',' as delimiter.
+     * Nested fields are separated with '.', example: id,symbol,trade.quantity,trade.price
+     */
+    public static final String JSON_FIELDS = "formatter.json.fields";
+
+    @Override
+    public Formatter create(String formatName, Properties props) {
+
+        String fields = props.getProperty(JSON_FIELDS);
+        if (fields == null || fields.trim().isEmpty()) {
+            throw new ConfigException(String.format("Missing %s for JSON formatter.", JSON_FIELDS));
+        }
+        return new JsonFormatter(fields.split(","));
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.kafka.connect.errors.ConnectException;
+import org.voltcore.logging.VoltLogger;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientStatusListenerExt;
+import org.voltdb.client.NoConnectionsException;
+
+import com.google_voltpatches.common.base.Throwables;
+
+/**
+ * ClientPool shares one VoltDB client among the tasks in a worker which connect with the same settings. The client is
+ * created by the first task and closed when the last task releases it. Each task keeps its own in-flight accounting
+ * through its procedure callbacks, the client status notifications are forwarded to the listeners of all the tasks.
+ */
+final class ClientPool {
+
+    private static final VoltLogger LOGGER = new VoltLogger("KafkaSinkConnector");
+
+    private static final Map<String, PooledClient> s_clients = new HashMap<String, PooledClient>();
+
+    /**
+     * Creates the client of the pool with the listener forwarding to the tasks' listeners
+     */
+    interface ClientCreator {
+        Client create(ClientStatusListenerExt listener);
+    }
+
+    private ClientPool() {
+    }
+
+    /**
+     * The client is created and connected by the first task outside of the pool lock, the tasks acquiring it meanwhile
+     * wait for it.
+     * @param key the connection settings the client is shared for
+     * @param listener the status listener of the task
+     * @param creator creates and connects the client if there is none for the settings
+     * @return the shared client
+     */
+    static Client acquire(String key, ClientStatusListenerExt listener, final ClientCreator creator) {
+
+        PooledClient pooled;
+        boolean created = false;
+        synchronized (s_clients) {
+            pooled = s_clients.get(key);
+            if (pooled == null) {
+                pooled = new PooledClient(creator);
+                s_clients.put(key, pooled);
+                created = true;
+            }
+            pooled.m_listener.m_listeners.add(listener);
+            pooled.m_refCount++;
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(String.format("Shared VoltDB client acquired, %d tasks", pooled.m_refCount));
+            }
+        }
+        if (created) {
+            pooled.m_client.run();
+        }
+        try {
+            return pooled.m_client.get();
+        } catch (ExecutionException e) {
+            remove(key, pooled, listener);
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new ConnectException(e.getCause());
+        } catch (InterruptedException e) {
+            remove(key, pooled, listener);
+            Thread.currentThread().interrupt();
+            throw new ConnectException(e);
+        }
+    }
+
+    /**
+     * remove the client which could not be connected, the next task connects again
+     */
+    private static void remove(String key, PooledClient pooled, ClientStatusListenerExt listener) {
+
+        synchronized (s_clients) {
+            if (pooled.m_listener.m_listeners.remove(listener)) {
+                pooled.m_refCount--;
+            }
+            if (s_clients.get(key) == pooled) {
+                s_clients.remove(key);
+            }
+        }
+    }
+
+    /**
+     * release the client of a task, the client is drained and closed outside of the pool lock once no task uses it
+     * @param key the connection settings the client is shared for
+     * @param listener the status listener of the task
+     */
+    static void release(String key, ClientStatusListenerExt listener) throws NoConnectionsException, InterruptedException {
+
+        PooledClient pooled;
+        synchronized (s_clients) {
+            pooled = s_clients.get(key);
+            if (pooled == null || !pooled.m_listener.m_listeners.remove(listener)) {
+                return;
+            }
+            if (--pooled.m_refCount > 0) {
+                return;
+            }
+            s_clients.remove(key);
+        }
+        Client client;
+        try {
+            //the client was connected when the task acquired it
+            client = pooled.m_client.get();
+        } catch (ExecutionException e) {
+            return;
+        }
+        try {
+            client.drain();
+        } finally {
+            client.close();
+        }
+    }
+
+    private static final class PooledClient {
+
+        /**
+         * <code>m_client</code> The client, created and connected by the first task acquiring it
+         */
+        final FutureTask<Client> m_client;
+        final SharedStatusListener m_listener = new SharedStatusListener();
+        int m_refCount = 0;
+
+        PooledClient(final ClientCreator creator) {
+            m_client = new FutureTask<Client>(new Callable<Client>() {
+                @Override
+                public Client call() {
+                    return creator.create(m_listener);
+                }
+            });
+        }
+    }
+
+    /**
+     * Client status listener forwarding the notifications to the listeners of the tasks
+     */
+    private static final class SharedStatusListener extends ClientStatusListenerExt {
+
+        final CopyOnWriteArrayList<ClientStatusListenerExt> m_listeners = new CopyOnWriteArrayList<ClientStatusListenerExt>();
+
+        @Override
+        public void backpressure(boolean status) {
+            for (ClientStatusListenerExt listener : m_listeners) {
+                listener.backpressure(status);
+            }
+        }
+
+        @Override
+        public void connectionLost(String hostname, int port, int connectionsLeft, DisconnectCause cause) {
+            for (ClientStatusListenerExt listener : m_listeners) {
+                listener.connectionLost(hostname, port, connectionsLeft, cause);
+            }
+        }
+
+        @Override
+        public void connectionCreated(String hostname, int port, AutoConnectionStatus status) {
+            for (ClientStatusListenerExt listener : m_listeners) {
+                listener.connectionCreated(hostname, port, status);
+            }
+        }
+    }
+}
@@ -24,6 +24,7 @@
 
 package org.voltdb.connect.kafka;
 
+import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.kafka.common.config.AbstractConfig;
@@ -67,6 +68,12 @@ public class ConnectorConfig extends AbstractConfig {
      */
     public static final String CONNECTOR_PASSWORD ="voltdb.connection.password";
 
+    /**
+     * <code>TASK_ID</code> Property for the index of the task in the connector, set by the connector in the task
+     * configurations
+     */
+    public static final String TASK_ID = "voltdb.task.id";
+
     /**
      * <code>CONNECTOR_SERVERS</code> Property for VoltDB server nodes with ',' as delimiter. example: server1:21212,server2:21212
      */
@@ -95,6 +102,38 @@ public class ConnectorConfig extends AbstractConfig {
      */
     public static final String RECORD_CONVERT_CLASS = "data.converter.class";
 
+    /**
+     * <code>TOPOLOGY_AWARE</code> Property for connecting to all the nodes of the VoltDB cluster, including the nodes
+     * not listed in voltdb.servers, and following the topology changes.
+     */
+    public static final String TOPOLOGY_AWARE = "voltdb.topology.aware";
+
+    /**
+     * <code>SERVERS_PER_TASK</code> Property for the number of servers in voltdb.servers each task connects to. The
+     * connector assigns the tasks rotated subsets of the servers, so that the connections are spread evenly over the
+     * nodes instead of each task connecting to all of them. Requires voltdb.topology.aware to be false. All the
+     * servers if 0.
+     */
+    public static final String SERVERS_PER_TASK = "voltdb.servers.per.task";
+
+    /**
+     * <code>TOPOLOGY_CHECK_INTERVAL</code> Property for the time in milliseconds between two checks of the VoltDB cluster
+     * nodes by the connector, which reconfigures the tasks with the servers of the cluster when nodes join or leave.
+     * Used only if voltdb.topology.aware is false, disabled if 0.
+     */
+    public static final String TOPOLOGY_CHECK_INTERVAL = "voltdb.topology.check.interval";
+
+    /**
+     * <code>CONNECTION_TIMEOUT</code> Property for the maximal time in milliseconds to wait for the connections to voltdb.servers
+     */
+    public static final String CONNECTION_TIMEOUT = "voltdb.connection.timeout";
+
+    /**
+     * <code>CLIENT_SHARED</code> Property for sharing one VoltDB client among the tasks in a worker which have the same
+     * connection settings, instead of one client per task.
+     */
+    public static final String CLIENT_SHARED = "voltdb.client.shared";
+
     /**
      * <code>KERBEROS_AUTHENTICATION</code> If true, use Kerberos authentication module
      */
@@ -115,6 +154,216 @@ public class ConnectorConfig extends AbstractConfig {
      */
     public static final String PROCEDURE_TIMEOUT_MAX = "procedure.timeout.max";
 
+    /**
+     * <code>WRITE_MODE</code> Property for how records are written to VoltDB: <code>procedure</code> invokes
+     * voltdb.procedure once per record, <code>bulkload</code> inserts rows into voltdb.bulkload.table via VoltBulkLoader,
+     * <code>partitioned</code> invokes voltdb.procedure once per VoltDB partition with all the rows for that partition,
+     * <code>batch</code> invokes voltdb.batch.procedure once per batch of rows.
+     */
+    public static final String WRITE_MODE = "voltdb.write.mode";
+
+    /**
+     * <code>WRITE_MODE_PROCEDURE</code> Write mode which invokes the procedure once per record
+     */
+    public static final String WRITE_MODE_PROCEDURE = "procedure";
+
+    /**
+     * <code>WRITE_MODE_BULKLOAD</code> Write mode which batches rows into a table via VoltBulkLoader
+     */
+    public static final String WRITE_MODE_BULKLOAD = "bulkload";
+
+    /**
+     * <code>WRITE_MODE_PARTITIONED</code> Write mode which groups rows by VoltDB partition and invokes the single partition
+     * procedure once per group with the parameters (partition key, VoltTable rows)
+     */
+    public static final String WRITE_MODE_PARTITIONED = "partitioned";
+
+    /**
+     * <code>WRITE_MODE_BATCH</code> Write mode which packs the rows of each put into VoltTables and invokes
+     * voltdb.batch.procedure once per VoltTable
+     */
+    public static final String WRITE_MODE_BATCH = "batch";
+
+    /**
+     * <code>BATCH_STORE_PROC</code> Property for the procedure name which takes a VoltTable of rows, used in batch write mode.
+     */
+    public static final String BATCH_STORE_PROC = "voltdb.batch.procedure";
+
+    /**
+     * <code>PARTITION_PARAMETER</code> Property for the index of the partitioning column in the formatted row, used in partitioned write mode.
+     */
+    public static final String PARTITION_PARAMETER = "voltdb.partition.parameter";
+
+    /**
+     * <code>PARTITION_PARAMETER_TYPE</code> Property for the VoltDB type of the partitioning column, such as BIGINT or STRING.
+     * Mandatory in partitioned write mode.
+     */
+    public static final String PARTITION_PARAMETER_TYPE = "voltdb.partition.parameter.type";
+
+    /**
+     * <code>BATCH_MAX_ROWS</code> Property for the maximal number of rows in one VoltTable batch.
+     */
+    public static final String BATCH_MAX_ROWS = "voltdb.batch.max.rows";
+
+    /**
+     * <code>BATCH_MAX_BYTES</code> Property for the approximate maximal size in bytes of one VoltTable batch.
+     */
+    public static final String BATCH_MAX_BYTES = "voltdb.batch.max.bytes";
+
+    /**
+     * <code>INFLIGHT_MAX_RECORDS</code> Property for the maximal number of records sent to VoltDB and not yet acknowledged.
+     * Consumption from Kafka is paused when exceeded.
+     */
+    public static final String INFLIGHT_MAX_RECORDS = "voltdb.inflight.max.records";
+
+    /**
+     * <code>INFLIGHT_MAX_BYTES</code> Property for the approximate maximal size in bytes of the records sent to VoltDB and not yet acknowledged.
+     */
+    public static final String INFLIGHT_MAX_BYTES = "voltdb.inflight.max.bytes";
+
+    /**
+     * <code>LATENCY_TARGET</code> Property for the procedure round trip in milliseconds the in-flight limits and batch
+     * sizes are adapted to. The limits are raised additively while the 99th percentile round trip stays under the target,
+     * and halved when it is exceeded, the client reports backpressure or calls time out. Disabled if 0.
+     */
+    public static final String LATENCY_TARGET = "voltdb.latency.target";
+
+    /**
+     * <code>BULKLOAD_TABLE</code> Property for the table name the bulk loader inserts into.
+     */
+    public static final String BULKLOAD_TABLE = "voltdb.bulkload.table";
+
+    /**
+     * <code>BULKLOAD_BATCH_SIZE</code> Property for the maximal number of rows per partition the bulk loader sends in one batch.
+     */
+    public static final String BULKLOAD_BATCH_SIZE = "voltdb.bulkload.batch.size";
+
+    /**
+     * <code>BULKLOAD_FLUSH_INTERVAL</code> Property for the interval in seconds at which partially filled batches are sent.
+     */
+    public static final String BULKLOAD_FLUSH_INTERVAL = "voltdb.bulkload.flush.interval";
+
+    /**
+     * <code>BULKLOAD_UPSERT</code> Property for using upsert instead of insert in the bulk loader.
+     */
+    public static final String BULKLOAD_UPSERT = "voltdb.bulkload.upsert";
+
+    /**
+     * <code>FORMAT_THREADS</code> Property for the number of threads converting and formatting the records of a put,
+     * including the task thread. The records are still sent to VoltDB in order from the task thread.
+     */
+    public static final String FORMAT_THREADS = "voltdb.format.threads";
+
+    /**
+     * <code>EXACTLY_ONCE</code> Property for exactly once mode. Each write is led by the kafka topic, partition and offset
+     * of the record, which the procedure stores in the same transaction and ignores if already stored. The records from
+     * the lowest offset not acknowledged are delivered again after the connection to VoltDB is restored.
+     */
+    public static final String EXACTLY_ONCE = "voltdb.exactly.once";
+
+    /**
+     * <code>DEADLETTER_DIR</code> Property for the directory the records which could not be written to VoltDB are kept in,
+     * to be replayed with org.voltdb.connect.kafka.DeadLetterReplay. The records are only logged if not set.
+     */
+    public static final String DEADLETTER_DIR = "voltdb.deadletter.dir";
+
+    /**
+     * <code>DEADLETTER_SEGMENT_BYTES</code> Property for the size in bytes a dead letter segment file is rotated at.
+     */
+    public static final String DEADLETTER_SEGMENT_BYTES = "voltdb.deadletter.segment.bytes";
+
+    /**
+     * <code>DEADLETTER_QUEUE_SIZE</code> Property for the maximal number of dead letters waiting to be written. Dead
+     * letters are dropped beyond it.
+     */
+    public static final String DEADLETTER_QUEUE_SIZE = "voltdb.deadletter.queue.size";
+
+    /**
+     * <code>SPOOL_DIR</code> Property for the directory the formatted procedure calls are spooled to while the connection
+     * to VoltDB is lost, to keep consuming from Kafka and replay them in order once it is restored. Disabled if not set.
+     */
+    public static final String SPOOL_DIR = "voltdb.spool.dir";
+
+    /**
+     * <code>SPOOL_MAX_BYTES</code> Property for the maximal size in bytes of the spooled calls not yet replayed. The task
+     * stops consuming once it is reached.
+     */
+    public static final String SPOOL_MAX_BYTES = "voltdb.spool.max.bytes";
+
+    /**
+     * <code>SPOOL_SEGMENT_BYTES</code> Property for the size in bytes a spool segment file is rotated at.
+     */
+    public static final String SPOOL_SEGMENT_BYTES = "voltdb.spool.segment.bytes";
+
+    /**
+     * <code>SPOOL_COMMIT</code> Property to commit the offsets of the spooled records once the spool is flushed to disk,
+     * instead of once they are replayed to VoltDB. The spool is then kept across restarts.
+     */
+    public static final String SPOOL_COMMIT = "voltdb.spool.commit";
+
+    /**
+     * <code>COALESCE_KEYS</code> Property to write only the last record of each key of a topic partition within a put.
+     * The offsets of the superseded records are committed with it. Records without a key are all written.
+     */
+    public static final String COALESCE_KEYS = "voltdb.coalesce.keys";
+
+    /**
+     * <code>DELETE_STORE_PROC</code> Property for the procedure the records with a null value, tombstones, are sent to
+     * with their key as parameters. Tombstones are dropped if not set.
+     */
+    public static final String DELETE_STORE_PROC = "voltdb.delete.procedure";
+
+    /**
+     * <code>RETRY_MAX</code> Property for the maximal number of times a procedure call failed with a transient status,
+     * such as a timeout or an unavailable server, is sent again before the failure is final. Disabled if 0.
+     */
+    public static final String RETRY_MAX = "voltdb.retry.max";
+
+    /**
+     * <code>RETRY_BACKOFF</code> Property for the delay in milliseconds before the first retry of a call, doubled for each
+     * following retry and jittered.
+     */
+    public static final String RETRY_BACKOFF = "voltdb.retry.backoff";
+
+    /**
+     * <code>RETRY_BACKOFF_MAX</code> Property for the maximal delay in milliseconds before a retry.
+     */
+    public static final String RETRY_BACKOFF_MAX = "voltdb.retry.backoff.max";
+
+    /**
+     * <code>CIRCUIT_FAILURES</code> Property for the number of consecutive transient failures which open the circuit to
+     * VoltDB. While it is open the retries wait and the task stops consuming.
+     */
+    public static final String CIRCUIT_FAILURES = "voltdb.circuit.failures";
+
+    /**
+     * <code>CIRCUIT_OPEN_TIME</code> Property for the time in milliseconds the circuit stays open.
+     */
+    public static final String CIRCUIT_OPEN_TIME = "voltdb.circuit.open.time";
+
+    /**
+     * <code>ROUTES</code> Property for the names of the topic routes with ',' as delimiter. Each route is configured with
+     * properties prefixed by voltdb.route.&lt;name&gt;., example: voltdb.route.trades.topics=trades,
+     * voltdb.route.trades.voltdb.procedure=TRADES.insert. Any other connector property, such as the procedure,
+     * formatter or converter properties, prefixed that way overrides the connector property for the routed topics.
+     */
+    public static final String ROUTES = "voltdb.routes";
+
+    /**
+     * <code>ROUTE_PREFIX</code> The prefix of the properties of a topic route
+     */
+    public static final String ROUTE_PREFIX = "voltdb.route.";
+
+    /**
+     * <code>ROUTE_TOPICS</code> Route property for the topics routed to the route with ',' as delimiter
+     */
+    public static final String ROUTE_TOPICS = "topics";
+
+    /**
+     * <code>ROUTE_TOPICS_REGEX</code> Route property for the regular expression of the topics routed to the route
+     */
+    public static final String ROUTE_TOPICS_REGEX = "topics.regex";
+
 
     private static ConfigDef CONNFIG = new ConfigDef();
     static {
@@ -124,10 +373,45 @@ public class ConnectorConfig extends AbstractConfig {
         CONNFIG.define(CONNECTOR_USER, Type.STRING, Importance.LOW, "The user name to connect VoltDb");
         CONNFIG.define(CONNECTOR_PASSWORD, Type.STRING, Importance.LOW, "The password to connect VoltDB");
         CONNFIG.define(CONNECTOR_SERVERS, Type.STRING, Importance.HIGH, "A list of Voltdb server nodes");
-        CONNFIG.define(CONNECTOR_STORE_PROC, Type.STRING, Importance.HIGH, "The procedure name to be used to insert data to VoltDB.");
+        CONNFIG.define(CONNECTOR_STORE_PROC, Type.STRING, null, Importance.HIGH, "The procedure name to be used to insert data to VoltDB.");
         CONNFIG.define(CONNECTOR_DATA_FORMATTER, Type.STRING, "org.voltdb.connect.formatter.CSVFormatterFactory", Importance.LOW, "The data formatter factory used to convert Kafka data");
         CONNFIG.define(CONNECTOR_DATA_FORMATTER_TYPE, Type.STRING, "csv", Importance.LOW, "The type of formatter, such as csv, tsv.");
         CONNFIG.define(RECORD_CONVERT_CLASS, Type.STRING, "org.voltdb.connect.converter.JsonDataConverter", Importance.LOW, "The Java class for data conversion from SinkRecord");
+        CONNFIG.define(TOPOLOGY_AWARE, Type.BOOLEAN, false, Importance.LOW, "Connect to all the nodes of the VoltDB cluster and follow the topology changes.");
+        CONNFIG.define(CONNECTION_TIMEOUT, Type.INT, 10000, Importance.LOW, "The maximal time in milliseconds to wait for the connections to VoltDB servers.");
+        CONNFIG.define(TOPOLOGY_CHECK_INTERVAL, Type.INT, 0, Importance.LOW, "The time in ms between two checks of the cluster nodes to reconfigure the tasks when they change, disabled if 0.");
+        CONNFIG.define(SERVERS_PER_TASK, Type.INT, 0, Importance.LOW, "The number of servers each task connects to, assigned in rotation, all the servers if 0.");
+        CONNFIG.define(CLIENT_SHARED, Type.BOOLEAN, false, Importance.LOW, "Share one VoltDB client among the tasks with the same connection settings.");
+        CONNFIG.define(INFLIGHT_MAX_RECORDS, Type.INT, 50000, Importance.LOW, "The maximal number of records in flight before consumption is paused.");
+        CONNFIG.define(INFLIGHT_MAX_BYTES, Type.INT, 64 * 1024 * 1024, Importance.LOW, "The approximate maximal bytes in flight before consumption is paused.");
+        CONNFIG.define(LATENCY_TARGET, Type.INT, 0, Importance.MEDIUM, "The procedure round trip in ms the in-flight limits and batch sizes are adapted to, disabled if 0.");
+        CONNFIG.define(WRITE_MODE, Type.STRING, WRITE_MODE_PROCEDURE, Importance.MEDIUM, "The write mode, procedure, bulkload, partitioned or batch.");
+        CONNFIG.define(BULKLOAD_TABLE, Type.STRING, null, Importance.MEDIUM, "The table name for bulkload write mode.");
+        CONNFIG.define(BULKLOAD_BATCH_SIZE, Type.INT, 200, Importance.LOW, "The maximal number of rows per partition in one bulk loader batch.");
+        CONNFIG.define(BULKLOAD_FLUSH_INTERVAL, Type.INT, 1, Importance.LOW, "The interval in seconds to send partially filled bulk loader batches.");
+        CONNFIG.define(BULKLOAD_UPSERT, Type.BOOLEAN, false, Importance.LOW, "Use upsert instead of insert for bulkload write mode.");
+        CONNFIG.define(BATCH_STORE_PROC, Type.STRING, null, Importance.MEDIUM, "The procedure name which takes a VoltTable of rows.");
+        CONNFIG.define(PARTITION_PARAMETER, Type.INT, 0, Importance.MEDIUM, "The index of the partitioning column in the formatted row.");
+        CONNFIG.define(PARTITION_PARAMETER_TYPE, Type.STRING, null, Importance.LOW, "The VoltDB type of the partitioning column.");
+        CONNFIG.define(BATCH_MAX_ROWS, Type.INT, 1000, Importance.LOW, "The maximal number of rows in one VoltTable batch.");
+        CONNFIG.define(BATCH_MAX_BYTES, Type.INT, 1024 * 1024, Importance.LOW, "The approximate maximal size in bytes of one VoltTable batch.");
+        CONNFIG.define(FORMAT_THREADS, Type.INT, 1, Importance.LOW, "The number of threads formatting the records of a put.");
+        CONNFIG.define(EXACTLY_ONCE, Type.BOOLEAN, false, Importance.MEDIUM, "Lead each write with the kafka offset, for the procedure to ignore the records already stored.");
+        CONNFIG.define(DEADLETTER_DIR, Type.STRING, "", Importance.MEDIUM, "The directory the records which could not be written are kept in.");
+        CONNFIG.define(DEADLETTER_SEGMENT_BYTES, Type.INT, 64 * 1024 * 1024, Importance.LOW, "The size in bytes a dead letter segment is rotated at.");
+        CONNFIG.define(DEADLETTER_QUEUE_SIZE, Type.INT, 10000, Importance.LOW, "The maximal number of dead letters waiting to be written.");
+        CONNFIG.define(SPOOL_DIR, Type.STRING, "", Importance.MEDIUM, "The directory the procedure calls are spooled to while the connection to VoltDB is lost.");
+        CONNFIG.define(SPOOL_MAX_BYTES, Type.LONG, 1024L * 1024 * 1024, Importance.LOW, "The maximal size in bytes of the spooled calls not yet replayed.");
+        CONNFIG.define(SPOOL_SEGMENT_BYTES, Type.INT, 64 * 1024 * 1024, Importance.LOW, "The size in bytes a spool segment is rotated at.");
+        CONNFIG.define(SPOOL_COMMIT, Type.BOOLEAN, false, Importance.LOW, "Commit the offsets of the spooled records once the spool is flushed to disk.");
+        CONNFIG.define(COALESCE_KEYS, Type.BOOLEAN, false, Importance.MEDIUM, "Write only the last record of each key of a topic partition within a put.");
+        CONNFIG.define(DELETE_STORE_PROC, Type.STRING, "", Importance.MEDIUM, "The procedure the tombstones are sent to with their key as parameters.");
+        CONNFIG.define(RETRY_MAX, Type.INT, 0, Importance.MEDIUM, "The maximal number of retries of a procedure call failed with a transient status, disabled if 0.");
+        CONNFIG.define(RETRY_BACKOFF, Type.INT, 100, Importance.LOW, "The delay in ms before the first retry of a call, doubled for each following retry.");
+        CONNFIG.define(RETRY_BACKOFF_MAX, Type.INT, 10000, Importance.LOW, "The maximal delay in ms before a retry.");
+        CONNFIG.define(CIRCUIT_FAILURES, Type.INT, 20, Importance.LOW, "The number of consecutive transient failures which open the circuit to VoltDB.");
+        CONNFIG.define(CIRCUIT_OPEN_TIME, Type.INT, 5000, Importance.LOW, "The time in ms the circuit to VoltDB stays open.");
+        CONNFIG.define(ROUTES, Type.LIST, "", Importance.MEDIUM, "The names of the topic routes.");
     }
 
 
@@ -139,4 +423,25 @@ public class ConnectorConfig extends AbstractConfig {
         super(CONNFIG, props);
     }
 
+    /**
+     * @param props the connector properties
+     * @param route the route name
+     * @return the connector properties overridden by the properties of the route, without the route topics
+     */
+    public static Map<String, String> getRouteProperties(Map<String, String> props, String route) {
+
+        String prefix = ROUTE_PREFIX + route + ".";
+        Map<String, String> routeProps = new HashMap<String, String>(props);
+        for (Map.Entry<String, String> entry : props.entrySet()) {
+            String key = entry.getKey();
+            if (key.startsWith(prefix)) {
+                String name = key.substring(prefix.length());
+                if (!ROUTE_TOPICS.equals(name) && !ROUTE_TOPICS_REGEX.equals(name)) {
+                    routeProps.put(name, entry.getValue());
+                }
+            }
+        }
+        return routeProps;
+    }
+
 }
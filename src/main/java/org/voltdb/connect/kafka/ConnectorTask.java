@@ -24,51 +24,67 @@
 
 package org.voltdb.connect.kafka;
 
+import java.io.File;
 import java.io.IOException;
-import java.math.BigDecimal;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.voltcore.logging.VoltLogger;
 
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.VoltTypeException;
 import org.voltdb.client.Client;
 import org.voltdb.client.ClientConfig;
 import org.voltdb.client.ClientFactory;
+import org.voltdb.client.ClientImpl;
 import org.voltdb.client.ClientResponse;
 import org.voltdb.client.ClientStatusListenerExt;
 import org.voltdb.client.NoConnectionsException;
 import org.voltdb.client.ProcedureCallback;
+import org.voltdb.client.VoltBulkLoader.BulkLoaderFailureCallBack;
+import org.voltdb.client.VoltBulkLoader.BulkLoaderSuccessCallback;
+import org.voltdb.client.VoltBulkLoader.VoltBulkLoader;
 import org.voltdb.connect.converter.Converter;
 import org.voltdb.connect.formatter.AbstractFormatterFactory;
+import org.voltdb.connect.kafka.InFlightTracker.PartitionWindow;
 import org.voltdb.importer.formatter.FormatException;
 import org.voltdb.importer.formatter.Formatter;
 
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.config.ConfigException;
-import org.apache.kafka.connect.data.Date;
-import org.apache.kafka.connect.data.Decimal;
 import org.apache.kafka.connect.data.Schema;
 import org.apache.kafka.connect.data.Struct;
-import org.apache.kafka.connect.data.Time;
-import org.apache.kafka.connect.data.Timestamp;
 import org.apache.kafka.connect.errors.ConnectException;
-import org.apache.kafka.connect.errors.DataException;
 import org.apache.kafka.connect.errors.RetriableException;
 import org.apache.kafka.connect.sink.SinkRecord;
 import org.apache.kafka.connect.sink.SinkTask;
 
 import com.google_voltpatches.common.base.Splitter;
 import com.google_voltpatches.common.base.Throwables;
-import com.google_voltpatches.common.collect.Sets;
 
 /**
  *
@@ -80,14 +96,37 @@ public class ConnectorTask extends SinkTask {
     private static final VoltLogger LOGGER = new VoltLogger("KafkaSinkConnector");
 
     /**
-     * <code>m_formatter</code> The formatter to converting kafka data into the data format required by VoltDB procedure
+     * <code>SKIPPED</code> The formatted data of a record which can't be formatted
      */
-    private Formatter m_formatter;
+    private static final Object[] SKIPPED = new Object[0];
 
     /**
-     * <code>m_converter</code> Convert the value of SinkRecord to byte array.
+     * <code>OFFSET_COLUMNS</code> The kafka topic, partition and offset leading each row in exactly once mode
      */
-    private Converter m_converter;
+    static final VoltTable.ColumnInfo[] OFFSET_COLUMNS = new VoltTable.ColumnInfo[] {
+            new VoltTable.ColumnInfo("KAFKA_TOPIC", VoltType.STRING),
+            new VoltTable.ColumnInfo("KAFKA_PARTITION", VoltType.INTEGER),
+            new VoltTable.ColumnInfo("KAFKA_OFFSET", VoltType.BIGINT) };
+
+    /**
+     * <code>MIN_RECORDS_PER_FORMAT_THREAD</code> The minimal number of records in a slice formatted by one thread
+     */
+    private static final int MIN_RECORDS_PER_FORMAT_THREAD = 64;
+
+    /**
+     * <code>SPOOL_REPLAY_SLICE_NANOS</code> The longest time a put replays spooled calls for
+     */
+    private static final long SPOOL_REPLAY_SLICE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * <code>STOP_TIMEOUT_NANOS</code> The longest time a stopping task waits for its calls in flight on a shared client
+     */
+    private static final long STOP_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * <code>m_router</code> The procedure, formatter and converter of each topic
+     */
+    private TopicRouter<TopicRoute> m_router;
 
     /**
      * <code>m_client</code> VoltDB client
@@ -95,54 +134,202 @@ public class ConnectorTask extends SinkTask {
     private Client m_client;
 
     /**
-     * <code>m_procName</code> VoltDB store procedure name
+     * <code>m_clientKey</code> The connection settings of the client shared with other tasks, null if the client is not shared
+     */
+    private String m_clientKey;
+
+    /**
+     * <code>m_statusListener</code> The client status listener of the task
+     */
+    private ClientStatusListener m_statusListener;
+
+    /**
+     * <code>m_bulkLoadTable</code> VoltDB table name for bulkload write mode
+     */
+    private String m_bulkLoadTable;
+
+    /**
+     * <code>m_bulkLoader</code> VoltDB bulk loader, only used in bulkload write mode
+     */
+    private VoltBulkLoader m_bulkLoader;
+
+    /**
+     * <code>m_partitionParam</code> The index of the partitioning column in formatted rows, -1 if not in partitioned write mode
+     */
+    private int m_partitionParam = -1;
+
+    /**
+     * <code>m_partitionParamType</code> The VoltDB type of the partitioning column, which the values are hashed as
+     */
+    private VoltType m_partitionParamType;
+
+    /**
+     * <code>m_batchMode</code> A flag indicates if the rows are sent as one VoltTable per batch
+     */
+    private boolean m_batchMode = false;
+
+    /**
+     * <code>m_batchMaxRows</code> The maximal number of rows in one batch
+     */
+    private int m_batchMaxRows;
+
+    /**
+     * <code>m_batchMaxBytes</code> The approximate maximal size in bytes of one batch
+     */
+    private int m_batchMaxBytes;
+
+    /**
+     * <code>m_structExtractors</code> The cached extraction plans for Struct record values, one per formatting thread
+     */
+    private StructExtractor[] m_structExtractors;
+
+    /**
+     * <code>m_formatExecutor</code> The formatting threads besides the task thread, null if records are formatted inline
+     */
+    private ExecutorService m_formatExecutor;
+
+    /**
+     * <code>m_tracker</code> The offsets of the records sent to VoltDB per topic partition. Offsets are acknowledged when
+     * the data from Kafaka are processed. There must be none in flight when the offset is allowed to committed.
+     */
+    private final InFlightTracker m_tracker = new InFlightTracker();
+
+    /**
+     * <code>m_flowController</code> The in-flight budget and client backpressure state
+     */
+    private FlowController m_flowController;
+
+    /**
+     * <code>m_metrics</code> The task metrics reported through JMX
+     */
+    private TaskMetrics m_metrics;
+
+    /**
+     * <code>m_exactlyOnce</code> A flag indicates if the writes are led by the kafka topic, partition and offset, and the
+     * consumer is positioned from the offsets stored in VoltDB
+     */
+    private boolean m_exactlyOnce = false;
+
+    /**
+     * <code>m_coalesceKeys</code> A flag indicates if only the last record of each key of a topic partition is written
+     * within a put
+     */
+    private boolean m_coalesceKeys = false;
+
+    /**
+     * <code>m_leadingColumns</code> The columns before the formatted values, the offset columns in exactly once mode
+     */
+    private VoltTable.ColumnInfo[] m_leadingColumns = StructExtractor.NO_COLUMNS;
+
+    /**
+     * <code>m_rewindOffsets</code> The lowest offsets not acknowledged per partition when the connection was lost, which
+     * the consumer is positioned at once connected again, null if none
+     */
+    private Map<TopicPartition, Long> m_rewindOffsets;
+
+    /**
+     * <code>m_deadLetters</code> The log of the records which could not be written to VoltDB, null if they are only logged
+     */
+    private DeadLetterLog m_deadLetters;
+
+    /**
+     * <code>m_spool</code> The calls spooled while the connection to VoltDB is lost, null if spooling is disabled
+     */
+    private SpoolQueue m_spool;
+
+    /**
+     * <code>m_spoolCommit</code> A flag indicates if the offsets of the spooled records are committed once the spool is
+     * flushed, instead of once they are replayed
+     */
+    private boolean m_spoolCommit = false;
+
+    /**
+     * <code>m_spoolDiscard</code> The spool position per partition revoked while records of it were spooled. The
+     * records spooled before it are redelivered to the new owner of the partition and are not replayed.
+     */
+    private final Map<TopicPartition, Long> m_spoolDiscard = new HashMap<TopicPartition, Long>();
+
+    /**
+     * <code>m_replayWindows</code> The windows the calls replayed from a committed spool are acknowledged in, outside
+     * of the tracker since their offsets are already committed
+     */
+    private final Map<TopicPartition, PartitionWindow> m_replayWindows = new HashMap<TopicPartition, PartitionWindow>();
+
+    /**
+     * <code>m_lostCalls</code> The calls lost in flight with the connection, queued by the callbacks to be held by the
+     * task thread, null if spooling is disabled
+     */
+    private Queue<LostCall> m_lostCalls;
+
+    /**
+     * <code>m_heldCalls</code> The calls lost in flight per partition, by offset. They may be called back after newer
+     * records of their partition were spooled, and are replayed ahead of the spooled records with higher offsets.
      */
-    private String m_procName;
+    private final Map<TopicPartition, TreeMap<Long, LostCall>> m_heldCalls = new HashMap<TopicPartition, TreeMap<Long, LostCall>>();
+    private int m_heldCount = 0;
 
     /**
-     * <code>m_currentBatchCnt</code> The record count pushed from Kafka from last offset flush
+     * <code>m_retries</code> Schedules the procedure calls failed with a transient status to be sent again, null if
+     * retries are disabled
      */
-    private AtomicLong m_currentBatchCnt = new AtomicLong(0);
+    private RetryScheduler m_retries;
 
     /**
-     * <code>m_flushSet</code> The temporary storage of the topic partitions and message offsets. Entries are removed when
-     * the data from Kafaka are processed. The set must be empty when the offset is allowed to committed.
+     * <code>m_pausedPartitions</code> The partitions paused for flow control, null if consumption is not paused
      */
-    private Set<KafkaPartitionOffset> m_flushSet = Sets.newConcurrentHashSet();
+    private TopicPartition[] m_pausedPartitions;
 
     /**
      * <code>m_serverConnected</code> A flag indicates if the VoltDb client is connected to servers.
      */
     private AtomicBoolean m_connectionLost = new AtomicBoolean(false);
 
+    /**
+     * <code>m_rewindPending</code> Set once a connection is lost and kept once it is restored, until the task rewinds to
+     * the records lost in flight
+     */
+    private final AtomicBoolean m_rewindPending = new AtomicBoolean(false);
+
     public ConnectorTask() {
 
     }
 
     @Override
-    public void start(Map<String, String> props) {
-
-        String username = getStringProperty(props, ConnectorConfig.CONNECTOR_USER, "");
-        String password = getStringProperty(props, ConnectorConfig.CONNECTOR_PASSWORD, "");
+    public void start(final Map<String, String> props) {
 
-        ClientConfig config = new ClientConfig(username, password, new ClientStatusListener(m_connectionLost));
-
-        String autoReconnect = getStringProperty(props, ConnectorConfig.AUTO_RECONNECTION, "true");
-        if("true".equalsIgnoreCase(autoReconnect)){
-             config.setReconnectOnConnectionLoss(true);
+        int latencyTarget = getIntProperty(props, ConnectorConfig.LATENCY_TARGET, 0);
+        if (latencyTarget < 0) {
+            throw new ConfigException(String.format("Invalid latency target: %d", latencyTarget));
         }
-
-        config.setConnectionResponseTimeout(getIntProperty(props, ConnectorConfig.RESPONSE_TIMEOUT_MAX, 0));
-        config.setProcedureCallTimeout(getIntProperty(props, ConnectorConfig.PROCEDURE_TIMEOUT_MAX, 0));
-
-        String kerberos = getStringProperty(props, ConnectorConfig.KERBEROS_AUTHENTICATION, null);
-        if( kerberos != null){
-            config.enableKerberosAuthentication(kerberos);
+        m_flowController = new FlowController(getIntProperty(props, ConnectorConfig.INFLIGHT_MAX_RECORDS, 50000),
+                getIntProperty(props, ConnectorConfig.INFLIGHT_MAX_BYTES, 64 * 1024 * 1024), latencyTarget);
+        m_metrics = new TaskMetrics(getStringProperty(props, ConnectorConfig.CONNECTOR_NAME, "KafkaSinkConnector"),
+                getIntProperty(props, ConnectorConfig.TASK_ID, 0), m_flowController);
+        m_statusListener = new ClientStatusListener(m_connectionLost, m_rewindPending, m_flowController, m_metrics);
+
+        String writeMode = getStringProperty(props, ConnectorConfig.WRITE_MODE, ConnectorConfig.WRITE_MODE_PROCEDURE);
+        String procProperty = null;
+        if (ConnectorConfig.WRITE_MODE_BULKLOAD.equalsIgnoreCase(writeMode)) {
+            m_bulkLoadTable = getStringProperty(props, ConnectorConfig.BULKLOAD_TABLE, null);
+            if (m_bulkLoadTable == null) {
+                throw new ConfigException("Missing table for bulkload write mode.");
+            }
+        } else if (ConnectorConfig.WRITE_MODE_PROCEDURE.equalsIgnoreCase(writeMode)
+                || ConnectorConfig.WRITE_MODE_PARTITIONED.equalsIgnoreCase(writeMode)) {
+            procProperty = ConnectorConfig.CONNECTOR_STORE_PROC;
+            if (ConnectorConfig.WRITE_MODE_PARTITIONED.equalsIgnoreCase(writeMode)) {
+                configurePartitionBatching(props);
+            }
+        } else if (ConnectorConfig.WRITE_MODE_BATCH.equalsIgnoreCase(writeMode)) {
+            procProperty = ConnectorConfig.BATCH_STORE_PROC;
+            m_batchMode = true;
+            configureBatching(props);
+        } else {
+            throw new ConfigException(String.format("Unsupported write mode: %s", writeMode));
         }
 
-        m_procName = getStringProperty(props, ConnectorConfig.CONNECTOR_STORE_PROC, null);
-        if(m_procName == null){
-            throw new ConfigException("Missing store procesure.");
+        if ("true".equalsIgnoreCase(getStringProperty(props, ConnectorConfig.EXACTLY_ONCE, "false"))) {
+            configureExactlyOnce(props);
         }
 
         String servers = props.get(ConnectorConfig.CONNECTOR_SERVERS);
@@ -151,122 +338,319 @@ public class ConnectorTask extends SinkTask {
         }
 
         Splitter splitter = Splitter.on(',').omitEmptyStrings().trimResults();
-        List<String> serverList = splitter.splitToList(servers);
+        final List<String> serverList = splitter.splitToList(servers);
         if (serverList == null || serverList.isEmpty()) {
             throw new ConfigException("Missing VoltDB hosts");
         }
 
-        String formatterClass = getStringProperty(props, ConnectorConfig.CONNECTOR_DATA_FORMATTER, "org.voltdb.connect.formatter.CSVFormatterFactory");
-        String formatterType =  getStringProperty(props, ConnectorConfig.CONNECTOR_DATA_FORMATTER_TYPE, "csv");
-        String converterClass = getStringProperty(props, ConnectorConfig.RECORD_CONVERT_CLASS, "org.voltdb.connect.converter.JsonDataConverter");
-
-        Properties formatProperties = new Properties();
-        formatProperties.putAll(props);
-
-        try {
-            Class<?> className = Class.forName(formatterClass);
-            AbstractFormatterFactory factory = (AbstractFormatterFactory) className.newInstance();
-            m_formatter = factory.create(formatterType, formatProperties);
+        int formatThreads = getIntProperty(props, ConnectorConfig.FORMAT_THREADS, 1);
+        if (formatThreads < 1) {
+            throw new ConfigException(String.format("Invalid number of formatting threads: %d", formatThreads));
+        }
+        m_structExtractors = new StructExtractor[formatThreads];
+        for (int i = 0; i < formatThreads; i++) {
+            m_structExtractors[i] = new StructExtractor();
+        }
+        m_coalesceKeys = "true".equalsIgnoreCase(getStringProperty(props, ConnectorConfig.COALESCE_KEYS, "false"));
+        m_router = createRouter(props, procProperty);
+        createDeadLetterLog(props);
+        createSpool(props);
+        createRetryScheduler(props);
+        if (formatThreads > 1) {
+            m_formatExecutor = Executors.newFixedThreadPool(formatThreads - 1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "VoltDB sink formatter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        if ("true".equalsIgnoreCase(getStringProperty(props, ConnectorConfig.CLIENT_SHARED, "false"))) {
+            m_clientKey = getClientKey(props, serverList);
+            m_client = ClientPool.acquire(m_clientKey, m_statusListener, new ClientPool.ClientCreator() {
+                @Override
+                public Client create(ClientStatusListenerExt listener) {
+                    return createClient(props, listener, serverList);
+                }
+            });
+        } else {
+            m_client = createClient(props, m_statusListener, serverList);
+        }
+        if (m_retries != null) {
+            m_retries.setClient(m_client);
+        }
 
-            className = Class.forName(converterClass);
-            m_converter = (Converter) className.newInstance();
-        } catch (ClassNotFoundException  | InstantiationException | IllegalAccessException e) {
-            LOGGER.error(String.format("Can't create formatter or converter: %s", e.getMessage()), e);
-            throw new ConnectException(e.getMessage());
+        if (m_bulkLoadTable != null) {
+            createBulkLoader(props);
         }
-        m_client = ClientFactory.createClient(config);
-        connect(serverList);
     }
 
     @Override
     public void put(Collection<SinkRecord> records) {
 
-        for (SinkRecord record : records) {
+        if (m_pausedPartitions != null && m_flowController.canResume()) {
+            resumePartitions();
+        }
+        if (m_spool != null) {
+            holdLostCalls();
+            if ((!m_spool.isEmpty() || m_heldCount > 0) && !m_connectionLost.get()) {
+                replaySpool();
+            }
+        }
+        if (m_rewindPending.get() && m_spool == null) {
+            //the connection may have been restored since it was lost
+            forgetInFlight();
+        }
+        Map<TopicPartition, Long> seeked = null;
+        if (m_rewindOffsets != null && !m_connectionLost.get()) {
+            seeked = m_rewindOffsets;
+            m_rewindOffsets = null;
+            context.offset(seeked);
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info(String.format("Positioned at the offsets not acknowledged when the connection was lost: %s", seeked));
+            }
+        }
+
+        SinkRecord[] sinkRecords = records.toArray(new SinkRecord[records.size()]);
+        TopicRoute[] routes = new TopicRoute[sinkRecords.length];
+        for (int i = 0; i < sinkRecords.length; i++) {
+            routes[i] = m_router.getRoute(sinkRecords[i].topic());
+        }
+        boolean[] superseded = m_coalesceKeys ? findSuperseded(sinkRecords, routes) : null;
+        long formatStart = System.nanoTime();
+        Object[][] formatted = formatInParallel(sinkRecords, routes, superseded);
+        long formatNanos = System.nanoTime() - formatStart;
+
+        for (int i = 0; i < sinkRecords.length; i++) {
 
-            if (m_connectionLost.get()) {
-                m_currentBatchCnt.set(0);
-                m_flushSet.clear();
+            SinkRecord record = sinkRecords[i];
+            TopicRoute route = routes[i];
+            if (m_connectionLost.get() && m_spool == null) {
+                forgetInFlight();
                 //trigger Kafka consumer to pause and retry.
                 throw new RetriableException("All client connections to VoltDB have been lost.");
             }
 
-            if (record.value() == null) {
-                LOGGER.error("The SinkRecord does not have schema or value defined.");
+            PartitionWindow window = m_tracker.getWindow(record.topic(), record.kafkaPartition());
+            if (seeked != null && seeked.containsKey(window.m_topicPartition)) {
+                //redelivered from the rewound offset once the consumer is positioned, after the records lost in flight
+                continue;
+            }
+            if (record.kafkaOffset() <= window.m_spooledOffset) {
+                //already spooled, redelivered after the spool was full
                 continue;
             }
+            if (superseded != null && superseded[i]) {
+                //the offset is committed with the last record of the key
+                window.skip(record.kafkaOffset());
+                continue;
+            }
+            Object[] formattedData;
+            if (formatted != null) {
+                formattedData = formatted[i];
+            } else {
+                formatStart = System.nanoTime();
+                formattedData = format(record, route, 0);
+                formatNanos += System.nanoTime() - formatStart;
+            }
+            if (formattedData == SKIPPED) {
+                window.skip(record.kafkaOffset());
+                continue;
+            }
+            String procName = route.m_procName;
+            boolean tombstone = (record.value() == null);
+            if (tombstone) {
+                procName = route.m_deleteProcName;
+                //the pending rows of the route are sent first, to keep the order of the writes of a key
+                sendPendingBatches(route);
+            }
 
-            KafkaPartitionOffset partitionOffset = new KafkaPartitionOffset(record.kafkaPartition(), record.kafkaOffset());
-            m_currentBatchCnt.getAndIncrement();
+            int size = FlowController.estimateSize(formattedData);
+            m_metrics.recordRecord(window.m_topicPartition, size);
+            if (m_spool != null && (m_connectionLost.get() || !m_spool.isEmpty() || m_heldCount > 0)) {
+                //keep the order, the records are spooled until all the spooled and lost ones are replayed
+                spool(window, record.kafkaOffset(), procName, formattedData);
+                continue;
+            }
 
-            Object[] formattedData = null;
-            if (record.valueSchema() != null && record.valueSchema().type().equals(Schema.Type.STRUCT)) {
+            if (m_bulkLoader != null) {
+                long sequence = register(window, record.kafkaOffset());
+                m_flowController.acquire(1, size);
                 try {
-                    formattedData = getDataFromSchemaRecord(record);
-                } catch (ConnectException e) {
-                    LOGGER.error("Failed processing schema records: ", e);
-                    continue;
+                    m_bulkLoader.insertRow(new BulkLoaderRow(window, sequence, size), formattedData);
+                } catch (InterruptedException e) {
+                    window.ack(sequence);
+                    m_flowController.release(1, size);
+                    Thread.currentThread().interrupt();
+                    throw new RetriableException("Interrupted while queuing rows to the bulk loader.");
                 }
+                continue;
             }
-            else {
-                String data = new String(m_converter.convert(record), StandardCharsets.UTF_8);
-                try{
-                    formattedData = m_formatter.transform(ByteBuffer.wrap(m_converter.convert(record)));
-                } catch (FormatException e) {
-                    LOGGER.error(String.format("Error for offset: %s",data), e);
-                    continue;
-                }
+            if (m_partitionParam >= 0 && !tombstone) {
+                addToPartitionBatch(route, window, record.kafkaOffset(), formattedData);
+                continue;
+            }
+            if (m_batchMode && !tombstone) {
+                addToBatch(route, record, window, formattedData);
+                continue;
             }
+
+            long sequence = register(window, record.kafkaOffset());
+            m_flowController.acquire(1, size);
             try {
-                ConnectorProcedureCallback cb = new ConnectorProcedureCallback(m_flushSet, partitionOffset);
-                if (!m_client.callProcedure(cb, m_procName, formattedData)) {
-                    m_flushSet.remove(partitionOffset);
+                ConnectorProcedureCallback cb = new ConnectorProcedureCallback(window, sequence, m_flowController, m_metrics, size,
+                        m_deadLetters, procName, formattedData, m_lostCalls, m_retries);
+                if (!m_client.callProcedure(cb, procName, formattedData)) {
+                    if (m_deadLetters != null) {
+                        m_deadLetters.addParameters(window.m_topic, window.m_partition, record.kafkaOffset(), DeadLetterLog.NOT_SENT,
+                                "Not queued", procName, formattedData);
+                    }
+                    window.ack(sequence);
+                    m_flowController.release(1, size);
                 }
             } catch (NoConnectionsException e){
-                m_currentBatchCnt.set(0);
-                m_flushSet.clear();
-                LOGGER.error(String.format("Procedure error for offset %s", partitionOffset), e);
+                if (m_spool != null) {
+                    window.ack(sequence);
+                    m_flowController.release(1, size);
+                    spool(window, record.kafkaOffset(), procName, formattedData);
+                    continue;
+                }
+                LOGGER.error(String.format("Procedure error for %s", window.toString(sequence)), e);
+                forgetInFlight();
                 throw new RetriableException("Connection to VoltDB has been lost.");
             } catch (Exception e){
-                m_flushSet.remove(partitionOffset);
-                LOGGER.error(String.format("Procedure error for offset %s", partitionOffset), e);
+                if (m_deadLetters != null) {
+                    m_deadLetters.addParameters(window.m_topic, window.m_partition, record.kafkaOffset(), DeadLetterLog.NOT_SENT,
+                            e, procName, formattedData);
+                } else {
+                    LOGGER.error(String.format("Procedure error for %s", window.toString(sequence)), e);
+                }
+                window.ack(sequence);
+                m_flowController.release(1, size);
             }
         }
+
+        //send the remaining partial batches, one procedure call per route and VoltDB partition.
+        for (TopicRoute route : m_router.getRoutes()) {
+            sendPendingBatches(route);
+        }
+
+        m_metrics.recordPut(formatNanos);
+
+        //while the spool is replayed the records go to disk, keep consuming so that the replay continues with each put
+        if (m_pausedPartitions == null && m_flowController.isOverBudget() && (m_spool == null || m_spool.isEmpty())) {
+            pausePartitions();
+        }
     }
 
+    /**
+     * Commit the offsets of the records acknowledged contiguously per partition, without waiting for the records in flight.
+     */
     @Override
-    public void flush(Map<TopicPartition, OffsetAndMetadata> offsets) {
+    public Map<TopicPartition, OffsetAndMetadata> preCommit(Map<TopicPartition, OffsetAndMetadata> currentOffsets) {
 
-        if (m_currentBatchCnt.get() > 0) {
-            try {
-                m_client.drain();
-                if (LOGGER.isInfoEnabled()) {
-                    LOGGER.info(String.format("Flush offset for batch count: %d", m_currentBatchCnt.get()));
-                }
-            } catch (NoConnectionsException | InterruptedException e) {
-                LOGGER.error(e);
-                throw new ConnectException("ConnectorTask flush: there are uncommited records.");
-            } finally {
-                m_currentBatchCnt.set(0);
-                if (!m_flushSet.isEmpty()) {
-                    m_flushSet.clear();
-
-                    //there are still records unaccounted for, let framework to re-put these records.
-                    throw new ConnectException("ConnectorTask flush: there are uncommited records.");
-                }
+        if (m_spoolCommit && m_spool != null && !m_spool.isEmpty()) {
+            //the offsets of the spooled records are committed once they are on disk
+            m_spool.force();
+        }
+        Map<TopicPartition, OffsetAndMetadata> committable = new HashMap<TopicPartition, OffsetAndMetadata>();
+        for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : currentOffsets.entrySet()) {
+            long offset = m_tracker.getCommittableOffset(entry.getKey());
+            if (offset < 0) {
+                continue;
+            }
+            if (offset < entry.getValue().offset()) {
+                committable.put(entry.getKey(), new OffsetAndMetadata(offset));
+            } else {
+                committable.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(String.format("Commit offsets: %s", committable));
+        }
+        return committable;
+    }
+
+    @Override
+    public void close(Collection<TopicPartition> partitions) {
+        if (m_spool != null && !m_spoolCommit && !m_spool.isEmpty()) {
+            for (TopicPartition partition : partitions) {
+                m_spoolDiscard.put(partition, m_spool.getPosition());
             }
         }
+        m_tracker.remove(partitions);
+        m_metrics.removePartitions(partitions);
     }
 
     @Override
     public void stop() {
+        if (m_metrics != null) {
+            m_metrics.close();
+        }
+        if (m_formatExecutor != null) {
+            m_formatExecutor.shutdownNow();
+            m_formatExecutor = null;
+        }
+        try {
+            if (m_bulkLoader != null) {
+                m_bulkLoader.close();
+                m_bulkLoader = null;
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed to close bulk loader", e);
+        }
+        if (m_clientKey != null && m_flowController != null) {
+            //the shared client is only drained once the last task releases it, the retries may still be sent meanwhile
+            awaitInFlight();
+        }
+        if (m_retries != null) {
+            //the records of the pending retries are not committed and are delivered again
+            m_retries.close();
+            m_retries = null;
+        }
+        if (m_spool != null) {
+            m_spool.close();
+            m_spool = null;
+        }
         if(m_client != null){
             try {
-                m_client.drain();
-                m_client.close();
+                if (m_clientKey != null) {
+                    ClientPool.release(m_clientKey, m_statusListener);
+                } else {
+                    m_client.drain();
+                    m_client.close();
+                }
             } catch (NoConnectionsException | InterruptedException e) {
                 Throwables.propagate(e);
             }
         }
+        //once the calls in flight are called back, the callbacks add no more dead letters
+        if (m_deadLetters != null) {
+            m_deadLetters.close();
+            m_deadLetters = null;
+        }
+    }
+
+    /**
+     * wait for the callbacks of the records this task has in flight, until the stop timeout
+     */
+    private void awaitInFlight() {
+
+        long deadline = System.nanoTime() + STOP_TIMEOUT_NANOS;
+        while (m_flowController.getRecords() > 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                LOGGER.warn(String.format("%d records are still in flight after %d ms, their failures are not kept as dead letters.",
+                        m_flowController.getRecords(), TimeUnit.NANOSECONDS.toMillis(STOP_TIMEOUT_NANOS)));
+                return;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
     }
 
     @Override
@@ -275,214 +659,1589 @@ public class ConnectorTask extends SinkTask {
     }
 
     /**
-     * connect to VoltDB servers
+     * create a VoltDB client and connect it to the servers. Benchmarks override it to run against a client stub.
      */
-    private void connect( List<String> serverList){
-
-        for(String host : serverList){
-            try {
-                m_client.createConnection(host);
-            } catch (IOException e) {
-                LOGGER.error(String.format("Could not create connection to %s", host), e);
-                Throwables.propagate(e);
-            }
-        }
+    Client createClient(Map<String, String> props, ClientStatusListenerExt listener, List<String> serverList) {
 
+        Client client = ClientFactory.createClient(getClientConfig(props, listener));
+        connect(client, serverList, getIntProperty(props, ConnectorConfig.CONNECTION_TIMEOUT, 10000));
+        return client;
     }
 
-    public static int getIntProperty(Map<String, String> props, String propName, int defaultValue){
+    /**
+     * @return the client configuration of the connection properties
+     */
+    static ClientConfig getClientConfig(Map<String, String> props, ClientStatusListenerExt listener) {
 
-        String valString = props.get(propName);
-        valString = (valString == null) ? "" : valString.trim();
-        try{
-            return (valString.isEmpty() ?  defaultValue : Integer.parseInt(valString));
-        } catch (NumberFormatException e){
-            throw new ConfigException(String.format("Error: %s for property %s.", e.getMessage(), propName));
-        }
+        String username = getStringProperty(props, ConnectorConfig.CONNECTOR_USER, "");
+        String password = getStringProperty(props, ConnectorConfig.CONNECTOR_PASSWORD, "");
 
-    }
+        ClientConfig config = new ClientConfig(username, password, listener);
 
-    public static String getStringProperty(Map<String, String> props, String propName, String defaultValue){
+        String autoReconnect = getStringProperty(props, ConnectorConfig.AUTO_RECONNECTION, "true");
+        if("true".equalsIgnoreCase(autoReconnect)){
+             config.setReconnectOnConnectionLoss(true);
+        }
 
-        String valString = props.get(propName);
-        valString = (valString == null) ? "" : valString.trim();
-        return (valString.isEmpty() ? defaultValue : valString);
+        config.setConnectionResponseTimeout(getIntProperty(props, ConnectorConfig.RESPONSE_TIMEOUT_MAX, 0));
+        config.setProcedureCallTimeout(getIntProperty(props, ConnectorConfig.PROCEDURE_TIMEOUT_MAX, 0));
 
-    }
+        String kerberos = getStringProperty(props, ConnectorConfig.KERBEROS_AUTHENTICATION, null);
+        if( kerberos != null){
+            config.enableKerberosAuthentication(kerberos);
+        }
 
-    private Object[] getDataFromSchemaRecord(SinkRecord  record) {
-        List<Object> dataList = new ArrayList<Object>();
-        for(org.apache.kafka.connect.data.Field field : record.valueSchema().fields()) {
-            Struct valueStruct = (Struct) record.value();
-            Object value = valueStruct.get(field);
-            value = getSchemaFieldValue(field.schema(), value);
-            dataList.add(value);
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Schema name: " + record.valueSchema().name() + ", field: " + field.name() +
-                        ", type: " + field.schema().type() + ", value: " + value);
-            }
+        //the client connects to the nodes not listed in voltdb.servers and follows the topology changes
+        if (isTopologyAware(props)) {
+            config.setTopologyChangeAware(true);
         }
-        return dataList.toArray();
+        return config;
     }
 
-    private interface LogicalTypeConverter {
-        Object convert(Schema schema, Object value);
+    /**
+     * @return true if the clients connect to all the nodes of the cluster, false by default
+     */
+    static boolean isTopologyAware(Map<String, String> props) {
+        return "true".equalsIgnoreCase(getStringProperty(props, ConnectorConfig.TOPOLOGY_AWARE, "false"));
     }
 
-    private Object getValueFromLogicalType(Schema schema, Object value) {
-        if (schema.name().equals(Decimal.LOGICAL_NAME)) {
-            if (!(value instanceof BigDecimal)) {
-                throw new DataException("Invalid type for Decimal, underlying representation "
-                        + "should be BigDecimal but was " + value.getClass());
-            }
-            return Decimal.fromLogical(schema, (BigDecimal) value);
+    /**
+     * @return the connection settings which tasks must have in common to share a client
+     */
+    private static String getClientKey(Map<String, String> props, List<String> serverList) {
+
+        StringBuilder key = new StringBuilder();
+        key.append(serverList).append('|').append(getStringProperty(props, ConnectorConfig.CONNECTOR_USER, ""));
+        key.append('|').append(getStringProperty(props, ConnectorConfig.CONNECTOR_PASSWORD, "").hashCode());
+        for (String name : new String[] { ConnectorConfig.AUTO_RECONNECTION, ConnectorConfig.RESPONSE_TIMEOUT_MAX,
+                ConnectorConfig.PROCEDURE_TIMEOUT_MAX, ConnectorConfig.KERBEROS_AUTHENTICATION, ConnectorConfig.TOPOLOGY_AWARE }) {
+            key.append('|').append(getStringProperty(props, name, ""));
         }
-        if (schema.name().equals(Date.LOGICAL_NAME)) {
-            if (!(value instanceof java.util.Date)) {
-                throw new DataException("Invalid type for Date, underlying representation should "
-                        + "be java.util.Date but was " + value.getClass());
+        return key.toString();
+    }
+
+    /**
+     * connect to VoltDB servers in parallel. The servers which can't be connected to within the timeout are logged,
+     * the connection fails only if none of the servers is connected.
+     * @param timeout the maximal time in milliseconds to wait for the connections
+     */
+    private static void connect(final Client client, List<String> serverList, int timeout){
+
+        ExecutorService executor = Executors.newFixedThreadPool(serverList.size(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "VoltDB connection");
+                thread.setDaemon(true);
+                return thread;
             }
-            return Date.fromLogical(schema, (java.util.Date) value);
+        });
+        List<Future<?>> connections = new ArrayList<Future<?>>(serverList.size());
+        for (final String host : serverList) {
+            connections.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    client.createConnection(host);
+                    return null;
+                }
+            }));
         }
+        executor.shutdown();
 
-        if (schema.name().equals(Time.LOGICAL_NAME)) {
-            if (!(value instanceof java.util.Date)) {
-                throw new DataException("Invalid type for Time, underlying representation should "
-                        + "be java.util.Date but was " + value.getClass());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        int connected = 0;
+        for (int i = 0; i < serverList.size(); i++) {
+            try {
+                connections.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                connected++;
+            } catch (ExecutionException e) {
+                LOGGER.warn(String.format("Could not create connection to %s", serverList.get(i)), e.getCause());
+            } catch (TimeoutException e) {
+                LOGGER.warn(String.format("Timed out connecting to %s", serverList.get(i)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             }
-            return Time.fromLogical(schema, (java.util.Date) value);
         }
 
-        if (schema.name().equals(Timestamp.LOGICAL_NAME)) {
-            if (!(value instanceof java.util.Date)) {
-                throw new DataException("Invalid type for Timestamp, underlying representation should "
-                        + "be java.util.Date but was " + value.getClass());
+        if (connected == 0) {
+            executor.shutdownNow();
+            try {
+                client.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-            return Timestamp.fromLogical(schema, (java.util.Date) value);
+            throw new ConnectException(String.format("Could not connect to any of the VoltDB servers %s", serverList));
         }
-        return value;
-    }
-    private Object getSchemaFieldValue(Schema schema, Object value) {
-        if (value == null) {
-            return null;
-        }
-        else {
-            if (schema.name() != null) {
-                value = getValueFromLogicalType(schema, value);
-            }
-            switch (schema.type()) {
-            case INT8:
-                return (Byte) value;
-            case INT16:
-                return (Short) value;
-            case INT32:
-                return (Integer) value;
-            case INT64:
-                return (Long) value;
-            case FLOAT32:
-                return (Float) value;
-            case FLOAT64:
-                return (Double) value;
-            case STRING:
-                return (String) value;
-            case BYTES:
-                final byte[] bytes;
-                if (value instanceof ByteBuffer) {
-                    final ByteBuffer buffer = ((ByteBuffer) value).slice();
-                    bytes = new byte[buffer.remaining()];
-                    buffer.get(bytes);
-                }
-                else {
-                    bytes = (byte[]) value;
-                }
-                return bytes;
-            case BOOLEAN:
-                // in kafka this is represented as 1 or 0; though boolean is not supported in voltdb
-                // so treat as error case for VoltDB at present
-            default:
-                throw new ConnectException("Unsupported data type read from kafka source: " + schema.type());
-            }
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info(String.format("Connected to %d of %d VoltDB servers", connected, serverList.size()));
         }
     }
 
     /**
-     * VoltDB procedure callback
-     *
+     * convert and format a record
+     * @param worker the index of the formatting thread, 0 for the task thread
+     * @return the procedure parameters, or SKIPPED if the record can't be formatted
      */
-    private final static class ConnectorProcedureCallback implements ProcedureCallback {
+    private Object[] format(SinkRecord record, TopicRoute route, int worker) {
 
-        /**
-         * <code>m_flushSet</code>  a set of partition-message offset
-         */
-        private final Set<KafkaPartitionOffset> m_flushSet;
+        if (record.value() == null) {
+            if (route != null && route.m_deleteProcName != null && record.key() != null) {
+                return formatKey(record, worker);
+            }
+            if (!spill(record, "The SinkRecord does not have schema or value defined.")) {
+                LOGGER.error("The SinkRecord does not have schema or value defined.");
+            }
+            return SKIPPED;
+        }
+        if (route == null) {
+            if (!spill(record, "No route")) {
+                LOGGER.error(String.format("No route for %s-%d offset %d", record.topic(), record.kafkaPartition(), record.kafkaOffset()));
+            }
+            return SKIPPED;
+        }
+
+        if (record.valueSchema() != null && record.valueSchema().type().equals(Schema.Type.STRUCT)) {
+            try {
+                Object[] values = m_structExtractors[worker].getPlan(record.valueSchema()).extract((Struct) record.value(),
+                        m_leadingColumns.length);
+                return m_exactlyOnce ? setOffset(record, values) : values;
+            } catch (ConnectException e) {
+                if (!spill(record, e)) {
+                    LOGGER.error("Failed processing schema records: ", e);
+                }
+                return SKIPPED;
+            }
+        }
+
+        Converter converter = route.m_converters[worker];
+        ByteBuffer payload = converter.convertToBuffer(record);
+        if (payload == null) {
+            if (!spill(record, "No data converted")) {
+                LOGGER.error(String.format("No data converted for %s-%d offset %d", record.topic(), record.kafkaPartition(), record.kafkaOffset()));
+            }
+            return SKIPPED;
+        }
+        try{
+            Object[] values = route.m_formatters[worker].transform(payload);
+            if (values == null) {
+                if (!spill(record, "No data formatted")) {
+                    LOGGER.error(String.format("No data formatted for %s-%d offset %d", record.topic(), record.kafkaPartition(), record.kafkaOffset()));
+                }
+                return SKIPPED;
+            }
+            if (m_exactlyOnce) {
+                Object[] ledValues = new Object[OFFSET_COLUMNS.length + values.length];
+                System.arraycopy(values, 0, ledValues, OFFSET_COLUMNS.length, values.length);
+                return setOffset(record, ledValues);
+            }
+            return values;
+        } catch (FormatException e) {
+            if (!spill(record, e)) {
+                //the pay load is converted again to string only for the error message
+                LOGGER.error(String.format("Error for offset %d: %s", record.kafkaOffset(),
+                        new String(converter.convert(record), StandardCharsets.UTF_8)), e);
+            }
+            return SKIPPED;
+        }
+    }
+
+    /**
+     * format the key of a tombstone into the parameters of the delete procedure, the fields of a Struct key or the key
+     * itself
+     * @return the procedure parameters, or SKIPPED if the key can't be formatted
+     */
+    private Object[] formatKey(SinkRecord record, int worker) {
+
+        Object key = record.key();
+        Object[] values;
+        if (key instanceof Struct) {
+            try {
+                values = m_structExtractors[worker].getPlan(((Struct) key).schema()).extract((Struct) key, m_leadingColumns.length);
+            } catch (ConnectException e) {
+                if (!spill(record, e)) {
+                    LOGGER.error("Failed processing tombstone key: ", e);
+                }
+                return SKIPPED;
+            }
+        } else if (key instanceof Map || key instanceof List) {
+            if (!spill(record, "Unsupported tombstone key")) {
+                LOGGER.error(String.format("Unsupported tombstone key for %s-%d offset %d", record.topic(), record.kafkaPartition(), record.kafkaOffset()));
+            }
+            return SKIPPED;
+        } else {
+            values = new Object[m_leadingColumns.length + 1];
+            values[m_leadingColumns.length] = key;
+        }
+        return m_exactlyOnce ? setOffset(record, values) : values;
+    }
+
+    /**
+     * find the records followed by a record with the same key in the same topic partition within a put. Records
+     * without a key, and tombstones of a route without a delete procedure, neither supersede nor are superseded.
+     * @return the flags of the superseded records in the order of the records
+     */
+    private boolean[] findSuperseded(SinkRecord[] records, TopicRoute[] routes) {
+
+        boolean[] superseded = new boolean[records.length];
+        Map<RecordKey, Integer> last = new HashMap<RecordKey, Integer>();
+        int coalesced = 0;
+        for (int i = 0; i < records.length; i++) {
+            SinkRecord record = records[i];
+            if (record.key() == null || routes[i] == null || (record.value() == null && routes[i].m_deleteProcName == null)) {
+                continue;
+            }
+            Integer previous = last.put(new RecordKey(record), i);
+            if (previous != null) {
+                superseded[previous] = true;
+                coalesced++;
+            }
+        }
+        m_metrics.recordCoalesced(coalesced);
+        return superseded;
+    }
+
+    /**
+     * fill the leading values with the kafka topic, partition and offset of the record
+     */
+    private static Object[] setOffset(SinkRecord record, Object[] values) {
+        values[0] = record.topic();
+        values[1] = record.kafkaPartition();
+        values[2] = record.kafkaOffset();
+        return values;
+    }
+
+    /**
+     * read the exactly once settings, after the write mode
+     */
+    private void configureExactlyOnce(Map<String, String> props) {
+
+        if (m_bulkLoadTable != null) {
+            throw new ConfigException("Exactly once mode is not supported in bulkload write mode.");
+        }
+        m_exactlyOnce = true;
+        m_leadingColumns = OFFSET_COLUMNS;
+        if (m_partitionParam >= 0) {
+            m_partitionParam += OFFSET_COLUMNS.length;
+        }
+    }
+
+    /**
+     * forget the records in flight once the connection is lost. The partitions are rewound to their lowest offset not
+     * acknowledged, so that the records lost in flight are delivered again, and their offsets are only committed from the
+     * windows of the redelivered records. The callbacks still pending acknowledge into the forgotten windows.
+     */
+    private void forgetInFlight() {
+
+        m_rewindPending.set(false);
+        Map<TopicPartition, Long> offsets = m_tracker.getCommittableOffsets();
+        if (m_rewindOffsets != null) {
+            for (Map.Entry<TopicPartition, Long> entry : m_rewindOffsets.entrySet()) {
+                Long offset = offsets.get(entry.getKey());
+                if (offset == null || entry.getValue() < offset) {
+                    offsets.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        m_rewindOffsets = offsets;
+        m_tracker.clear();
+        clearPendingBatches();
+    }
+
+    /**
+     * keep a record which could not be formatted in the dead letter log
+     * @param error the exception or message of the failure
+     * @return false if there is no dead letter log and the failure is to be logged
+     */
+    private boolean spill(SinkRecord record, Object error) {
+
+        if (m_deadLetters == null) {
+            return false;
+        }
+        m_deadLetters.addValue(record.topic(), record.kafkaPartition(), record.kafkaOffset(), error, record.value());
+        return true;
+    }
+
+    /**
+     * create the dead letter log if a dead letter directory is configured
+     */
+    private void createDeadLetterLog(Map<String, String> props) {
+
+        String dir = getStringProperty(props, ConnectorConfig.DEADLETTER_DIR, null);
+        if (dir == null) {
+            return;
+        }
+        int segmentBytes = getIntProperty(props, ConnectorConfig.DEADLETTER_SEGMENT_BYTES, 64 * 1024 * 1024);
+        if (segmentBytes < 1024) {
+            throw new ConfigException(String.format("Invalid dead letter segment size: %d", segmentBytes));
+        }
+        int queueSize = getIntProperty(props, ConnectorConfig.DEADLETTER_QUEUE_SIZE, 10000);
+        if (queueSize <= 0) {
+            throw new ConfigException(String.format("Invalid dead letter queue size: %d", queueSize));
+        }
+        m_deadLetters = new DeadLetterLog(new File(dir), getStringProperty(props, ConnectorConfig.CONNECTOR_NAME, "KafkaSinkConnector"),
+                segmentBytes, queueSize);
+    }
+
+    /**
+     * create the spool if a spool directory is configured, in procedure write mode only
+     */
+    private void createSpool(Map<String, String> props) {
+
+        String dir = getStringProperty(props, ConnectorConfig.SPOOL_DIR, null);
+        if (dir == null) {
+            return;
+        }
+        if (m_bulkLoadTable != null || m_partitionParam >= 0 || m_batchMode) {
+            throw new ConfigException("Spooling is only supported in procedure write mode.");
+        }
+        if (m_exactlyOnce) {
+            throw new ConfigException("Spooling is not supported in exactly once mode.");
+        }
+        int segmentBytes = getIntProperty(props, ConnectorConfig.SPOOL_SEGMENT_BYTES, 64 * 1024 * 1024);
+        if (segmentBytes < 1024) {
+            throw new ConfigException(String.format("Invalid spool segment size: %d", segmentBytes));
+        }
+        long maxBytes = getLongProperty(props, ConnectorConfig.SPOOL_MAX_BYTES, 1024L * 1024 * 1024);
+        if (maxBytes < segmentBytes) {
+            throw new ConfigException(String.format("Invalid spool size: %d", maxBytes));
+        }
+        m_spoolCommit = "true".equalsIgnoreCase(getStringProperty(props, ConnectorConfig.SPOOL_COMMIT, "false"));
+        m_spool = new SpoolQueue(new File(dir), getStringProperty(props, ConnectorConfig.CONNECTOR_NAME, "KafkaSinkConnector"),
+                segmentBytes, maxBytes, m_spoolCommit);
+        m_lostCalls = new ConcurrentLinkedQueue<LostCall>();
+    }
+
+    /**
+     * create the retry scheduler if retries are enabled, in procedure, partitioned and batch write modes
+     */
+    private void createRetryScheduler(Map<String, String> props) {
+
+        int maxRetries = getIntProperty(props, ConnectorConfig.RETRY_MAX, 0);
+        if (maxRetries < 0) {
+            throw new ConfigException(String.format("Invalid number of retries: %d", maxRetries));
+        }
+        if (maxRetries == 0) {
+            return;
+        }
+        if (m_bulkLoadTable != null) {
+            throw new ConfigException("Retries are not supported in bulkload write mode.");
+        }
+        int backoff = getIntProperty(props, ConnectorConfig.RETRY_BACKOFF, 100);
+        int maxBackoff = getIntProperty(props, ConnectorConfig.RETRY_BACKOFF_MAX, 10000);
+        if (backoff <= 0 || maxBackoff < backoff) {
+            throw new ConfigException(String.format("Invalid retry backoff: %d to %d ms", backoff, maxBackoff));
+        }
+        int circuitFailures = getIntProperty(props, ConnectorConfig.CIRCUIT_FAILURES, 20);
+        int circuitOpenTime = getIntProperty(props, ConnectorConfig.CIRCUIT_OPEN_TIME, 5000);
+        if (circuitFailures <= 0 || circuitOpenTime < 0) {
+            throw new ConfigException(String.format("Invalid circuit breaker: %d failures, %d ms", circuitFailures, circuitOpenTime));
+        }
+        m_retries = new RetryScheduler(maxRetries, backoff, maxBackoff, circuitFailures, circuitOpenTime, m_flowController, m_metrics);
+    }
+
+    /**
+     * append a formatted record to the spool. Its offset is held back until it is replayed, or committed once the spool
+     * is flushed if the spool is kept across restarts.
+     */
+    private void spool(PartitionWindow window, long offset, String procName, Object[] formattedData) {
+
+        if (!appendToSpool(window, offset, procName, formattedData)) {
+            window.skip(offset);
+            return;
+        }
+        window.m_spooledOffset = offset;
+        if (m_spoolCommit) {
+            window.skip(offset);
+        } else if (window.m_spoolHold < 0) {
+            window.m_spoolHold = offset;
+        }
+    }
+
+    /**
+     * append a call to the spool
+     * @return false if the call could not be serialized and was kept as a dead letter
+     * @throws RetriableException if the spool is full or can not be written
+     */
+    private boolean appendToSpool(PartitionWindow window, long offset, String procName, Object[] formattedData) {
+
+        boolean wasEmpty = m_spool.isEmpty();
+        try {
+            if (!m_spool.append(window.m_topic, window.m_partition, offset, procName, formattedData)) {
+                throw new RetriableException(String.format("The spool is full with %d bytes.", m_spool.getBytes()));
+            }
+        } catch (IOException e) {
+            throw new RetriableException("Could not write to the spool.", e);
+        } catch (RuntimeException e) {
+            if (e instanceof RetriableException) {
+                throw e;
+            }
+            //parameters VoltDB can't serialize would fail the procedure call too
+            if (m_deadLetters != null) {
+                m_deadLetters.addParameters(window.m_topic, window.m_partition, offset, DeadLetterLog.NOT_SENT, e, procName, formattedData);
+            } else {
+                LOGGER.error(String.format("Could not spool %s offset %d", window.m_topicPartition, offset), e);
+            }
+            return false;
+        }
+        if (wasEmpty) {
+            LOGGER.warn("The connection to VoltDB is lost, spooling the records until it is restored.");
+        }
+        return true;
+    }
+
+    /**
+     * hold the calls lost in flight with the connection until they are replayed, their offsets stay registered until
+     * then. The spool can only be appended to, while newer records of their partitions may already be spooled.
+     */
+    private void holdLostCalls() {
+
+        LostCall call;
+        while ((call = m_lostCalls.poll()) != null) {
+            if (!isReplayed(call.m_window)) {
+                continue;
+            }
+            TreeMap<Long, LostCall> calls = m_heldCalls.get(call.m_window.m_topicPartition);
+            if (calls == null) {
+                calls = new TreeMap<Long, LostCall>();
+                m_heldCalls.put(call.m_window.m_topicPartition, calls);
+            }
+            if (calls.put(call.m_offset, call) == null) {
+                m_heldCount++;
+            }
+        }
+    }
+
+    /**
+     * @return false if the window belongs to a revoked partition, whose calls are redelivered to its new owner
+     */
+    private boolean isReplayed(PartitionWindow window) {
+        return m_tracker.isTracked(window) || (m_spoolCommit && m_replayWindows.get(window.m_topicPartition) == window);
+    }
+
+    /**
+     * @return the held call to replay ahead of the spooled entry, the oldest held call of the entry's partition if it
+     * precedes it or any held call once the spool is replayed, null if none
+     */
+    private LostCall getHeldCall(SpoolQueue.Entry entry) {
+
+        if (m_heldCount == 0) {
+            return null;
+        }
+        if (entry == null) {
+            for (TreeMap<Long, LostCall> calls : m_heldCalls.values()) {
+                if (!calls.isEmpty()) {
+                    return calls.firstEntry().getValue();
+                }
+            }
+            return null;
+        }
+        TreeMap<Long, LostCall> calls = m_heldCalls.get(new TopicPartition(entry.m_topic, entry.m_partition));
+        if (calls == null || calls.isEmpty() || calls.firstKey() > entry.m_offset) {
+            return null;
+        }
+        return calls.firstEntry().getValue();
+    }
+
+    private void removeHeldCall(LostCall call) {
+
+        TreeMap<Long, LostCall> calls = m_heldCalls.get(call.m_window.m_topicPartition);
+        calls.remove(call.m_offset);
+        if (calls.isEmpty()) {
+            m_heldCalls.remove(call.m_window.m_topicPartition);
+        }
+        m_heldCount--;
+    }
+
+    /**
+     * replay the spooled and held calls in the order of their offsets per partition, until the in-flight budget is used
+     * up, the slice is over or the connection is lost again
+     */
+    private void replaySpool() {
+
+        long start = System.nanoTime();
+        try {
+            while (true) {
+                SpoolQueue.Entry entry = m_spool.peek();
+                LostCall call = getHeldCall(entry);
+                if (entry == null && call == null) {
+                    break;
+                }
+                if (m_flowController.isOverBudget() || System.nanoTime() - start >= SPOOL_REPLAY_SLICE_NANOS) {
+                    return;
+                }
+                if (call != null) {
+                    if (isReplayed(call.m_window)
+                            && !replay(call.m_window, call.m_sequence, call.m_offset, call.m_procName, call.m_data)) {
+                        return;
+                    }
+                    removeHeldCall(call);
+                } else {
+                    if (!replay(entry)) {
+                        return;
+                    }
+                    m_spool.remove();
+                }
+            }
+        } catch (IOException e) {
+            throw new ConnectException("Could not read the spool.", e);
+        }
+        m_tracker.clearSpoolHolds();
+        m_spoolDiscard.clear();
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("Replayed the spooled records.");
+        }
+    }
+
+    /**
+     * call the procedure of a spooled entry
+     * @return false if the connection is lost again and the entry is to be replayed later
+     */
+    private boolean replay(SpoolQueue.Entry entry) {
+
+        TopicPartition topicPartition = new TopicPartition(entry.m_topic, entry.m_partition);
+        PartitionWindow window;
+        if (m_spoolCommit) {
+            window = m_replayWindows.get(topicPartition);
+            if (window == null) {
+                window = new PartitionWindow(topicPartition);
+                m_replayWindows.put(topicPartition, window);
+            }
+        } else {
+            Long discard = m_spoolDiscard.get(topicPartition);
+            if (discard != null && entry.m_position < discard) {
+                return true;
+            }
+            window = m_tracker.getWindow(entry.m_topic, entry.m_partition);
+        }
+        long sequence = register(window, entry.m_offset);
+        if (!replay(window, sequence, entry.m_offset, entry.m_procName, entry.m_params)) {
+            window.ack(sequence);
+            return false;
+        }
+        if (!m_spoolCommit) {
+            //the next spooled record of the partition is not registered yet
+            window.m_spoolHold = entry.m_offset + 1;
+        }
+        return true;
+    }
+
+    /**
+     * call the procedure of a spooled or held call, whose offset is registered with the sequence
+     * @return false if the connection is lost again and the offset is still registered
+     */
+    private boolean replay(PartitionWindow window, long sequence, long offset, String procName, Object[] params) {
+
+        int size = FlowController.estimateSize(params);
+        m_flowController.acquire(1, size);
+        try {
+            ConnectorProcedureCallback cb = new ConnectorProcedureCallback(window, sequence, m_flowController, m_metrics, size,
+                    m_deadLetters, procName, params, m_lostCalls, m_retries);
+            if (!m_client.callProcedure(cb, procName, params)) {
+                if (m_deadLetters != null) {
+                    m_deadLetters.addParameters(window.m_topic, window.m_partition, offset, DeadLetterLog.NOT_SENT,
+                            "Not queued", procName, params);
+                }
+                window.ack(sequence);
+                m_flowController.release(1, size);
+            }
+        } catch (NoConnectionsException e) {
+            m_flowController.release(1, size);
+            return false;
+        } catch (Exception e) {
+            if (m_deadLetters != null) {
+                m_deadLetters.addParameters(window.m_topic, window.m_partition, offset, DeadLetterLog.NOT_SENT, e, procName, params);
+            } else {
+                LOGGER.error(String.format("Procedure error for %s", window.toString(sequence)), e);
+            }
+            window.ack(sequence);
+            m_flowController.release(1, size);
+        }
+        return true;
+    }
+
+    /**
+     * format the records in contiguous slices, one per formatting thread. The task thread formats the first slice.
+     * @return the formatted records in the order of the records, or null if the records are to be formatted inline
+     */
+    private Object[][] formatInParallel(final SinkRecord[] records, final TopicRoute[] routes, final boolean[] superseded) {
+
+        int slices = Math.min(m_structExtractors.length, records.length / MIN_RECORDS_PER_FORMAT_THREAD);
+        if (slices < 2) {
+            return null;
+        }
+
+        final Object[][] formatted = new Object[records.length][];
+        List<Future<?>> futures = new ArrayList<Future<?>>(slices - 1);
+        for (int slice = 1; slice < slices; slice++) {
+            final int worker = slice;
+            final int from = (int) ((long) records.length * slice / slices);
+            final int to = (int) ((long) records.length * (slice + 1) / slices);
+            futures.add(m_formatExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = from; i < to; i++) {
+                        if (superseded == null || !superseded[i]) {
+                            formatted[i] = format(records[i], routes[i], worker);
+                        }
+                    }
+                }
+            }));
+        }
+        for (int i = 0, to = records.length / slices; i < to; i++) {
+            if (superseded == null || !superseded[i]) {
+                formatted[i] = format(records[i], routes[i], 0);
+            }
+        }
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RetriableException("Interrupted while formatting records.");
+            } catch (ExecutionException e) {
+                Throwables.throwIfUnchecked(e.getCause());
+                throw new ConnectException(e.getCause());
+            }
+        }
+        return formatted;
+    }
+
+    /**
+     * create the default route from the connector properties and one route per configured route name
+     * @param procProperty the procedure property of the write mode, null if the write mode does not invoke procedures
+     */
+    private TopicRouter<TopicRoute> createRouter(Map<String, String> props, String procProperty) {
+
+        Splitter splitter = Splitter.on(',').omitEmptyStrings().trimResults();
+        List<String> routeNames = splitter.splitToList(getStringProperty(props, ConnectorConfig.ROUTES, ""));
+
+        //without routes, the connector properties must configure the procedure for all the topics
+        TopicRoute defaultRoute = null;
+        if (procProperty == null || getStringProperty(props, procProperty, null) != null || routeNames.isEmpty()) {
+            defaultRoute = createRoute("default", props, procProperty);
+        }
+
+        TopicRouter<TopicRoute> router = new TopicRouter<TopicRoute>(defaultRoute);
+        for (String name : routeNames) {
+            String topics = getStringProperty(props, ConnectorConfig.ROUTE_PREFIX + name + "." + ConnectorConfig.ROUTE_TOPICS, "");
+            String regex = getStringProperty(props, ConnectorConfig.ROUTE_PREFIX + name + "." + ConnectorConfig.ROUTE_TOPICS_REGEX, null);
+            if (topics.isEmpty() && regex == null) {
+                throw new ConfigException(String.format("Missing topics for route %s.", name));
+            }
+            Pattern pattern = null;
+            if (regex != null) {
+                try {
+                    pattern = Pattern.compile(regex);
+                } catch (PatternSyntaxException e) {
+                    throw new ConfigException(String.format("Invalid topic pattern for route %s: %s", name, e.getMessage()));
+                }
+            }
+            TopicRoute route = createRoute(name, ConnectorConfig.getRouteProperties(props, name), procProperty);
+            router.addRoute(splitter.splitToList(topics), pattern, route);
+        }
+        return router;
+    }
+
+    /**
+     * create the procedure, formatter and converter of a route
+     */
+    private TopicRoute createRoute(String name, Map<String, String> props, String procProperty) {
+
+        String procName = null;
+        if (procProperty != null) {
+            procName = getStringProperty(props, procProperty, null);
+            if (procName == null) {
+                throw new ConfigException(String.format("Missing %s for route %s.", procProperty, name));
+            }
+        }
+        String deleteProcName = getStringProperty(props, ConnectorConfig.DELETE_STORE_PROC, null);
+        if (deleteProcName != null && procProperty == null) {
+            throw new ConfigException("Delete procedures are not supported in bulkload write mode.");
+        }
+
+        String formatterClass = getStringProperty(props, ConnectorConfig.CONNECTOR_DATA_FORMATTER, "org.voltdb.connect.formatter.CSVFormatterFactory");
+        String formatterType =  getStringProperty(props, ConnectorConfig.CONNECTOR_DATA_FORMATTER_TYPE, "csv");
+        String converterClass = getStringProperty(props, ConnectorConfig.RECORD_CONVERT_CLASS, "org.voltdb.connect.converter.JsonDataConverter");
+
+        Properties formatProperties = new Properties();
+        formatProperties.putAll(props);
+
+        //formatters and converters are not shared between formatting threads
+        int threads = m_structExtractors.length;
+        Formatter[] formatters = new Formatter[threads];
+        Converter[] converters = new Converter[threads];
+        try {
+            Class<?> className = Class.forName(formatterClass);
+            AbstractFormatterFactory factory = (AbstractFormatterFactory) className.newInstance();
+            className = Class.forName(converterClass);
+            for (int i = 0; i < threads; i++) {
+                formatters[i] = factory.create(formatterType, formatProperties);
+                converters[i] = (Converter) className.newInstance();
+            }
+            return new TopicRoute(name, procName, deleteProcName, formatters, converters);
+        } catch (ClassNotFoundException  | InstantiationException | IllegalAccessException e) {
+            LOGGER.error(String.format("Can't create formatter or converter: %s", e.getMessage()), e);
+            throw new ConnectException(e.getMessage());
+        }
+    }
+
+    /**
+     * send the pending rows of a route
+     */
+    private void sendPendingBatches(TopicRoute route) {
+
+        if (!route.m_partitionBatches.isEmpty()) {
+            List<RowBatch> batches = new ArrayList<RowBatch>(route.m_partitionBatches.values());
+            route.m_partitionBatches.clear();
+            for (RowBatch batch : batches) {
+                callBatchProcedure(batch);
+            }
+        }
+        if (route.m_batch != null) {
+            RowBatch batch = route.m_batch;
+            route.m_batch = null;
+            callBatchProcedure(batch);
+        }
+    }
+
+    /**
+     * drop the pending rows of all the routes
+     */
+    private void clearPendingBatches() {
+        for (TopicRoute route : m_router.getRoutes()) {
+            route.m_partitionBatches.clear();
+            route.m_batch = null;
+        }
+    }
+
+    /**
+     * create the bulk loader for bulkload write mode
+     */
+    private void createBulkLoader(Map<String, String> props) {
+
+        int batchSize = getIntProperty(props, ConnectorConfig.BULKLOAD_BATCH_SIZE, 200);
+        int flushInterval = getIntProperty(props, ConnectorConfig.BULKLOAD_FLUSH_INTERVAL, 1);
+        boolean upsert = "true".equalsIgnoreCase(getStringProperty(props, ConnectorConfig.BULKLOAD_UPSERT, "false"));
+
+        //the rows are replayed from the dead letter log through the default procedure of the table
+        String procName = m_bulkLoadTable + (upsert ? ".upsert" : ".insert");
+        BulkLoaderCallback cb = new BulkLoaderCallback(m_flowController, m_metrics, m_deadLetters, procName);
+        try {
+            m_bulkLoader = m_client.getNewBulkLoader(m_bulkLoadTable, batchSize, upsert, cb, cb);
+        } catch (Exception e) {
+            LOGGER.error(String.format("Could not create bulk loader for table %s", m_bulkLoadTable), e);
+            throw new ConnectException(e.getMessage());
+        }
+        if (flushInterval > 0) {
+            m_bulkLoader.setFlushInterval(flushInterval, flushInterval);
+        }
+    }
+
+    /**
+     * read the partitioning column settings for partitioned write mode
+     */
+    private void configurePartitionBatching(Map<String, String> props) {
+
+        m_partitionParam = getIntProperty(props, ConnectorConfig.PARTITION_PARAMETER, 0);
+        if (m_partitionParam < 0) {
+            throw new ConfigException(String.format("Invalid partition parameter index: %d", m_partitionParam));
+        }
+        configureBatching(props);
+        //a value is hashed by its type, the formatted strings of CSV or JSON records would be misrouted as STRING
+        String paramType = getStringProperty(props, ConnectorConfig.PARTITION_PARAMETER_TYPE, null);
+        if (paramType == null) {
+            throw new ConfigException(String.format("%s is required in partitioned write mode.", ConnectorConfig.PARTITION_PARAMETER_TYPE));
+        }
+        try {
+            m_partitionParamType = VoltType.typeFromString(paramType);
+        } catch (RuntimeException e) {
+            throw new ConfigException(String.format("Invalid partition parameter type: %s", paramType));
+        }
+    }
+
+    /**
+     * read the batch thresholds for partitioned and batch write modes
+     */
+    private void configureBatching(Map<String, String> props) {
+
+        m_batchMaxRows = getIntProperty(props, ConnectorConfig.BATCH_MAX_ROWS, 1000);
+        if (m_batchMaxRows <= 0) {
+            throw new ConfigException(String.format("Invalid batch size: %d", m_batchMaxRows));
+        }
+        m_batchMaxBytes = getIntProperty(props, ConnectorConfig.BATCH_MAX_BYTES, 1024 * 1024);
+        if (m_batchMaxBytes <= 0) {
+            throw new ConfigException(String.format("Invalid batch size in bytes: %d", m_batchMaxBytes));
+        }
+    }
+
+    /**
+     * add a formatted row to the batch of the VoltDB partition it hashes to. The batch is sent once it is full.
+     */
+    private void addToPartitionBatch(TopicRoute route, PartitionWindow window, long offset, Object[] formattedData) {
+
+        if (formattedData.length <= m_partitionParam) {
+            if (m_deadLetters != null) {
+                m_deadLetters.addParameters(window.m_topic, window.m_partition, offset, DeadLetterLog.NOT_SENT,
+                        "Missing partition parameter", route.m_procName, formattedData);
+            } else {
+                LOGGER.error(String.format("Missing partition parameter for %s offset %d", window.m_topicPartition, offset));
+            }
+            window.skip(offset);
+            return;
+        }
+
+        Object partitionKey = formattedData[m_partitionParam];
+        long partition;
+        try {
+            partition = getPartition(partitionKey);
+        } catch (VoltTypeException e) {
+            if (m_deadLetters != null) {
+                m_deadLetters.addParameters(window.m_topic, window.m_partition, offset, DeadLetterLog.NOT_SENT, e,
+                        route.m_procName, formattedData);
+            } else {
+                LOGGER.error(String.format("Invalid partition parameter for %s offset %d", window.m_topicPartition, offset), e);
+            }
+            window.skip(offset);
+            return;
+        }
+
+        //partitions are unknown until the client receives the cluster topology, send the row on its own.
+        if (partition < 0) {
+            RowBatch batch = new RowBatch(route.m_procName, partitionKey, null);
+            batch.add(window, register(window, offset), formattedData);
+            callBatchProcedure(batch);
+            return;
+        }
+
+        RowBatch batch = route.m_partitionBatches.get(partition);
+        if (batch == null) {
+            batch = new RowBatch(route.m_procName, partitionKey, null);
+            route.m_partitionBatches.put(partition, batch);
+        }
+        batch.add(window, register(window, offset), formattedData);
+        if (batch.size() >= m_flowController.scale(m_batchMaxRows) || batch.byteSize() >= m_flowController.scale(m_batchMaxBytes)) {
+            route.m_partitionBatches.remove(partition);
+            callBatchProcedure(batch);
+        }
+    }
+
+    /**
+     * add a formatted row to the pending batch. The batch is sent once it is full or the column layout changes.
+     */
+    private void addToBatch(TopicRoute route, SinkRecord record, PartitionWindow window, Object[] formattedData) {
+
+        VoltTable.ColumnInfo[] columns = null;
+        if (record.valueSchema() != null && record.valueSchema().type().equals(Schema.Type.STRUCT)) {
+            try {
+                columns = m_structExtractors[0].getPlan(record.valueSchema()).getColumns(m_leadingColumns);
+            } catch (ConnectException e) {
+                if (!spill(record, e)) {
+                    LOGGER.error(String.format("Failed processing schema for %s offset %d", window.m_topicPartition, record.kafkaOffset()), e);
+                }
+                window.skip(record.kafkaOffset());
+                return;
+            }
+        }
+        if (route.m_batch != null && route.m_batch.m_columns != columns) {
+            RowBatch batch = route.m_batch;
+            route.m_batch = null;
+            callBatchProcedure(batch);
+        }
+        if (route.m_batch == null) {
+            route.m_batch = new RowBatch(route.m_procName, null, columns);
+        }
+        route.m_batch.add(window, register(window, record.kafkaOffset()), formattedData);
+        if (route.m_batch.size() >= m_flowController.scale(m_batchMaxRows)
+                || route.m_batch.byteSize() >= m_flowController.scale(m_batchMaxBytes)) {
+            RowBatch batch = route.m_batch;
+            route.m_batch = null;
+            callBatchProcedure(batch);
+        }
+    }
+
+    /**
+     * @return the VoltDB partition the partitioning value hashes to, or -1 if the cluster topology is not known.
+     */
+    private long getPartition(Object partitionKey) {
+
+        if (partitionKey == null || !(m_client instanceof ClientImpl)) {
+            return -1;
+        }
+        return ((ClientImpl) m_client).getPartitionForParameter(m_partitionParamType.getValue(), partitionKey);
+    }
+
+    /**
+     * invoke the procedure with the partition key and all the rows of the batch as a VoltTable
+     */
+    private void callBatchProcedure(RowBatch batch) {
+
+        VoltTable table;
+        try {
+            table = batch.toVoltTable();
+        } catch (RuntimeException e) {
+            if (m_deadLetters != null) {
+                batch.spillRows(m_deadLetters, e);
+            } else {
+                LOGGER.error(String.format("Could not build batch for %s", batch.describeOffsets()), e);
+            }
+            batch.ackAll();
+            return;
+        }
+
+        m_flowController.acquire(batch.size(), batch.byteSize());
+        try {
+            Object[] params = m_batchMode ? new Object[] { table } : new Object[] { batch.m_partitionKey, table };
+            BatchProcedureCallback cb = new BatchProcedureCallback(batch, table, params, m_flowController, m_metrics, m_deadLetters,
+                    m_retries);
+            boolean queued = m_client.callProcedure(cb, batch.m_procName, params);
+            if (!queued) {
+                if (m_deadLetters != null) {
+                    batch.spill(m_deadLetters, table, DeadLetterLog.NOT_SENT, "Not queued");
+                }
+                batch.ackAll();
+                m_flowController.release(batch.size(), batch.byteSize());
+            }
+        } catch (NoConnectionsException e) {
+            LOGGER.error(String.format("Procedure error for %s", batch.describeOffsets()), e);
+            forgetInFlight();
+            throw new RetriableException("Connection to VoltDB has been lost.");
+        } catch (Exception e) {
+            if (m_deadLetters != null) {
+                batch.spill(m_deadLetters, table, DeadLetterLog.NOT_SENT, e);
+            } else {
+                LOGGER.error(String.format("Procedure error for %s", batch.describeOffsets()), e);
+            }
+            batch.ackAll();
+            m_flowController.release(batch.size(), batch.byteSize());
+        }
+    }
+
+    /**
+     * pause consumption from all the assigned partitions until the records in flight drain
+     */
+    private void pausePartitions() {
+
+        Set<TopicPartition> assignment = context.assignment();
+        m_pausedPartitions = assignment.toArray(new TopicPartition[assignment.size()]);
+        context.pause(m_pausedPartitions);
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info(String.format("Pause consuming: %d records, %d bytes in flight, backpressure %s",
+                    m_flowController.getRecords(), m_flowController.getBytes(), m_flowController.isBackpressure()));
+        }
+    }
+
+    /**
+     * resume consumption from the paused partitions which are still assigned
+     */
+    private void resumePartitions() {
+
+        Set<TopicPartition> assignment = context.assignment();
+        List<TopicPartition> partitions = new ArrayList<TopicPartition>(m_pausedPartitions.length);
+        for (TopicPartition partition : m_pausedPartitions) {
+            if (assignment.contains(partition)) {
+                partitions.add(partition);
+            }
+        }
+        m_pausedPartitions = null;
+        context.resume(partitions.toArray(new TopicPartition[partitions.size()]));
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info(String.format("Resume consuming: %d records, %d bytes in flight",
+                    m_flowController.getRecords(), m_flowController.getBytes()));
+        }
+    }
+
+    /**
+     * track the offset of a record sent to VoltDB
+     * @return the sequence to acknowledge the offset with
+     */
+    private long register(PartitionWindow window, long offset) {
+
+        try {
+            return window.register(offset);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RetriableException("Interrupted while waiting for in-flight records.");
+        }
+    }
+
+    public static int getIntProperty(Map<String, String> props, String propName, int defaultValue){
+
+        String valString = props.get(propName);
+        valString = (valString == null) ? "" : valString.trim();
+        try{
+            return (valString.isEmpty() ?  defaultValue : Integer.parseInt(valString));
+        } catch (NumberFormatException e){
+            throw new ConfigException(String.format("Error: %s for property %s.", e.getMessage(), propName));
+        }
+
+    }
+
+    public static long getLongProperty(Map<String, String> props, String propName, long defaultValue){
+
+        String valString = props.get(propName);
+        valString = (valString == null) ? "" : valString.trim();
+        try{
+            return (valString.isEmpty() ?  defaultValue : Long.parseLong(valString));
+        } catch (NumberFormatException e){
+            throw new ConfigException(String.format("Error: %s for property %s.", e.getMessage(), propName));
+        }
+
+    }
+
+    public static String getStringProperty(Map<String, String> props, String propName, String defaultValue){
+
+        String valString = props.get(propName);
+        valString = (valString == null) ? "" : valString.trim();
+        return (valString.isEmpty() ? defaultValue : valString);
+
+    }
+
+    /**
+     * A procedure call lost in flight with the connection, with the sequence its offset is registered with
+     */
+    private static final class LostCall {
+
+        final PartitionWindow m_window;
+        final long m_sequence;
+        final long m_offset;
+        final String m_procName;
+        final Object[] m_data;
+
+        LostCall(PartitionWindow window, long sequence, String procName, Object[] data) {
+            m_window = window;
+            m_sequence = sequence;
+            m_offset = window.getOffset(sequence);
+            m_procName = procName;
+            m_data = data;
+        }
+    }
+
+    /**
+     * VoltDB procedure callback
+     *
+     */
+    private final static class ConnectorProcedureCallback implements ProcedureCallback, RetryScheduler.RetriableCall {
+
+        /**
+         * <code>m_window</code>  the in-flight offsets of the record's topic partition
+         */
+        private final PartitionWindow m_window;
+
+        /**
+         * <code>m_sequence</code>  the sequence the record's offset is registered with
+         */
+        private final long m_sequence;
+
+        private final FlowController m_flowController;
+        private final TaskMetrics m_metrics;
 
         /**
-         * <code>m_offset</code>  partition-message offset
+         * <code>m_size</code>  the approximate size of the formatted record
          */
-        private final KafkaPartitionOffset m_offset;
+        private final int m_size;
+
+        /**
+         * <code>m_deadLetters</code>, <code>m_procName</code> and <code>m_data</code> keep the record if the call fails
+         */
+        private final DeadLetterLog m_deadLetters;
+        private final String m_procName;
+        private final Object[] m_data;
+
+        /**
+         * <code>m_lostCalls</code> The queue the call is spooled from if it is lost with the connection, null if none
+         */
+        private final Queue<LostCall> m_lostCalls;
+
+        /**
+         * <code>m_retries</code> The scheduler the call is sent again by if it fails with a transient status, null if none
+         */
+        private final RetryScheduler m_retries;
+        private int m_attempts = 0;
 
         /**
          * constructor
-         * @param flushSet The set of partition-message offset
-         * @param offset partition-message offset
+         * @param window The in-flight offsets of the topic partition
+         * @param sequence The sequence of the registered offset
+         * @param flowController The in-flight budget
+         * @param metrics The task metrics
+         * @param size The approximate size of the formatted record
+         * @param deadLetters The dead letter log, null if failed records are only logged
+         * @param procName The procedure called
+         * @param data The procedure parameters
+         * @param lostCalls The queue of the calls to spool if lost with the connection, null if they are not spooled
+         * @param retries The retry scheduler, null if failed calls are not retried
          */
-        public ConnectorProcedureCallback(Set<KafkaPartitionOffset> flushSet, KafkaPartitionOffset offset) {
+        public ConnectorProcedureCallback(PartitionWindow window, long sequence, FlowController flowController, TaskMetrics metrics, int size,
+                DeadLetterLog deadLetters, String procName, Object[] data, Queue<LostCall> lostCalls, RetryScheduler retries) {
             super();
-            m_flushSet = flushSet;
-            m_offset = offset;
-            m_flushSet.add(m_offset);
+            m_window = window;
+            m_sequence = sequence;
+            m_flowController = flowController;
+            m_metrics = metrics;
+            m_size = size;
+            m_deadLetters = deadLetters;
+            m_procName = procName;
+            m_data = data;
+            m_lostCalls = lostCalls;
+            m_retries = retries;
         }
 
         @Override
         public void clientCallback(ClientResponse response) throws Exception {
-            if(response.getAppStatus() == ClientResponse.CONNECTION_LOST || response.getAppStatus()  == ClientResponse.CONNECTION_TIMEOUT){
+            if (response.getStatus() == ClientResponse.CONNECTION_LOST && m_lostCalls != null) {
+                //the offset stays registered until the call is replayed
+                m_metrics.recordResponse(response);
+                m_flowController.release(1, m_size);
+                m_lostCalls.add(new LostCall(m_window, m_sequence, m_procName, m_data));
+                return;
+            }
+            m_metrics.recordResponse(response);
+            m_flowController.recordResponse(response);
+            if (response.getStatus() == ClientResponse.CONNECTION_LOST) {
+                //the record is delivered again from the lowest offset not acknowledged
+                m_flowController.release(1, m_size);
+                return;
+            }
+            if (m_retries != null && m_retries.onResponse(response, this)) {
+                //the offset stays registered and the record keeps its budget until the call is sent again
+                return;
+            }
+            if (response.getStatus() != ClientResponse.SUCCESS && m_deadLetters != null) {
+                m_deadLetters.addParameters(m_window.m_topic, m_window.m_partition, m_window.getOffset(m_sequence),
+                        response.getStatus(), response.getStatusString(), m_procName, m_data);
+            } else if(response.getAppStatus() == ClientResponse.CONNECTION_LOST || response.getAppStatus()  == ClientResponse.CONNECTION_TIMEOUT){
                 LOGGER.warn(String.format("Client response error: %s", response.getAppStatusString()));
             }
-            m_flushSet.remove(m_offset);
+            m_window.ack(m_sequence);
+            m_flowController.release(1, m_size);
+        }
+
+        @Override
+        public int nextAttempt() {
+            return ++m_attempts;
+        }
+
+        @Override
+        public boolean resubmit(Client client) throws Exception {
+            return client.callProcedure(this, m_procName, m_data);
+        }
+
+        @Override
+        public void abandon(byte status, Object error) {
+            if (m_deadLetters != null) {
+                m_deadLetters.addParameters(m_window.m_topic, m_window.m_partition, m_window.getOffset(m_sequence),
+                        status, error, m_procName, m_data);
+            } else {
+                LOGGER.error(String.format("Procedure error for %s after %d retries: %s", m_window.toString(m_sequence), m_attempts - 1, error));
+            }
+            m_window.ack(m_sequence);
+            m_flowController.release(1, m_size);
         }
     }
 
     /**
-     * Client connection status listener
+     * Bulk loader row handle, the registered offset of the record the row is formatted from.
      *
      */
-    private final  static class ClientStatusListener extends ClientStatusListenerExt{
+    private final static class BulkLoaderRow {
 
-        private final AtomicBoolean m_connectionLost;
+        final PartitionWindow m_window;
+        final long m_sequence;
+        final int m_size;
+
+        public BulkLoaderRow(PartitionWindow window, long sequence, int size) {
+            m_window = window;
+            m_sequence = sequence;
+            m_size = size;
+        }
+
+        @Override
+        public String toString() {
+            return m_window.toString(m_sequence);
+        }
+    }
+
+    /**
+     * VoltDB bulk loader callback. The row handle of each row is a BulkLoaderRow.
+     *
+     */
+    private final static class BulkLoaderCallback implements BulkLoaderFailureCallBack, BulkLoaderSuccessCallback {
+
+        private final FlowController m_flowController;
+        private final TaskMetrics m_metrics;
+        private final DeadLetterLog m_deadLetters;
+
+        /**
+         * <code>m_procName</code> The default procedure of the table, which the failed rows are replayed with
+         */
+        private final String m_procName;
+
+        public BulkLoaderCallback(FlowController flowController, TaskMetrics metrics, DeadLetterLog deadLetters, String procName) {
+            m_flowController = flowController;
+            m_metrics = metrics;
+            m_deadLetters = deadLetters;
+            m_procName = procName;
+        }
+
+        @Override
+        public void success(Object rowHandle, ClientResponse response) {
+            m_metrics.recordResponse(response);
+            m_flowController.recordResponse(response);
+            BulkLoaderRow row = (BulkLoaderRow) rowHandle;
+            row.m_window.ack(row.m_sequence);
+            m_flowController.release(1, row.m_size);
+        }
+
+        @Override
+        public void failureCallback(Object rowHandle, Object[] fieldList, ClientResponse response) {
+            m_metrics.recordResponse(response);
+            m_flowController.recordResponse(response);
+            BulkLoaderRow row = (BulkLoaderRow) rowHandle;
+            if (m_deadLetters != null) {
+                m_deadLetters.addParameters(row.m_window.m_topic, row.m_window.m_partition, row.m_window.getOffset(row.m_sequence),
+                        response.getStatus(), response.getStatusString(), m_procName, fieldList);
+            } else {
+                LOGGER.error(String.format("Bulk loader error for %s: %s", row, response.getStatusString()));
+            }
+            row.m_window.ack(row.m_sequence);
+            m_flowController.release(1, row.m_size);
+        }
+    }
+
+    /**
+     * VoltDB procedure callback for a batch of rows. All the offsets in the batch share the outcome.
+     *
+     */
+    private final static class BatchProcedureCallback implements ProcedureCallback, RetryScheduler.RetriableCall {
+
+        /**
+         * <code>m_batch</code>  the batch of rows sent in the procedure call
+         */
+        private final RowBatch m_batch;
 
-        public ClientStatusListener(AtomicBoolean connectionLost){
+        /**
+         * <code>m_table</code>  the rows of the batch, kept for the dead letter log
+         */
+        private final VoltTable m_table;
+
+        /**
+         * <code>m_params</code>  the procedure parameters, the table preceded by the partitioning value if any
+         */
+        private final Object[] m_params;
+
+        private final FlowController m_flowController;
+        private final TaskMetrics m_metrics;
+        private final DeadLetterLog m_deadLetters;
+        private final RetryScheduler m_retries;
+        private int m_attempts = 0;
+
+        public BatchProcedureCallback(RowBatch batch, VoltTable table, Object[] params, FlowController flowController, TaskMetrics metrics,
+                DeadLetterLog deadLetters, RetryScheduler retries) {
             super();
-            m_connectionLost = connectionLost;
+            m_batch = batch;
+            m_table = table;
+            m_params = params;
+            m_flowController = flowController;
+            m_metrics = metrics;
+            m_deadLetters = deadLetters;
+            m_retries = retries;
         }
 
         @Override
-        public void connectionLost(String hostname, int port, int connectionsLeft, DisconnectCause cause){
-            LOGGER.warn(String.format("A connection to the database has been lost. There are %d connections remaining.", connectionsLeft));
-            m_connectionLost.set(connectionsLeft == 0);
+        public void clientCallback(ClientResponse response) throws Exception {
+            m_metrics.recordResponse(response);
+            m_flowController.recordResponse(response);
+            if (response.getStatus() == ClientResponse.CONNECTION_LOST) {
+                //the rows are delivered again from the offsets not acknowledged
+                m_flowController.release(m_batch.size(), m_batch.byteSize());
+                return;
+            }
+            if (m_retries != null && m_retries.onResponse(response, this)) {
+                //only this batch is sent again, its offsets stay registered until then
+                return;
+            }
+            if (response.getStatus() != ClientResponse.SUCCESS) {
+                fail(response.getStatus(), response.getStatusString());
+            }
+            m_batch.ackAll();
+            m_flowController.release(m_batch.size(), m_batch.byteSize());
+        }
+
+        @Override
+        public int nextAttempt() {
+            return ++m_attempts;
+        }
+
+        @Override
+        public boolean resubmit(Client client) throws Exception {
+            return client.callProcedure(this, m_batch.m_procName, m_params);
+        }
+
+        @Override
+        public void abandon(byte status, Object error) {
+            fail(status, error);
+            m_batch.ackAll();
+            m_flowController.release(m_batch.size(), m_batch.byteSize());
+        }
+
+        private void fail(byte status, Object error) {
+            if (m_deadLetters != null) {
+                m_batch.spill(m_deadLetters, m_table, status, error);
+            } else {
+                LOGGER.error(String.format("Batch procedure error for %s: %s", m_batch.describeOffsets(), error));
+            }
         }
     }
 
     /**
-     * A container for Kafka partition id and offset
+     * Formatted rows which are sent to VoltDB in one procedure call
      *
      */
-    private final static class KafkaPartitionOffset{
+    private final static class RowBatch {
 
-        final int m_partition;
-        final long m_offset;
+        /**
+         * <code>m_procName</code> The procedure the rows are sent to
+         */
+        final String m_procName;
+
+        /**
+         * <code>m_partitionKey</code> The partitioning value used to route the procedure call
+         */
+        final Object m_partitionKey;
+
+        /**
+         * <code>m_columns</code> The column layout of the rows, derived from the values if null
+         */
+        final VoltTable.ColumnInfo[] m_columns;
+        final List<Object[]> m_rows = new ArrayList<Object[]>();
+
+        /**
+         * <code>m_windows</code> and <code>m_sequences</code> The registered offset of each row
+         */
+        private PartitionWindow[] m_windows = new PartitionWindow[16];
+        private long[] m_sequences = new long[16];
+        private int m_count = 0;
+        private int m_byteSize = 0;
+
+        public RowBatch(String procName, Object partitionKey, VoltTable.ColumnInfo[] columns) {
+            m_procName = procName;
+            m_partitionKey = partitionKey;
+            m_columns = columns;
+        }
+
+        void add(PartitionWindow window, long sequence, Object[] row) {
+            if (m_count == m_windows.length) {
+                m_windows = Arrays.copyOf(m_windows, m_count * 2);
+                m_sequences = Arrays.copyOf(m_sequences, m_count * 2);
+            }
+            m_windows[m_count] = window;
+            m_sequences[m_count++] = sequence;
+            m_rows.add(row);
+            m_byteSize += FlowController.estimateSize(row);
+        }
+
+        int size() {
+            return m_count;
+        }
+
+        /**
+         * @return the approximate serialized size of the rows
+         */
+        int byteSize() {
+            return m_byteSize;
+        }
+
+        void ackAll() {
+            for (int i = 0; i < m_count; i++) {
+                m_windows[i].ack(m_sequences[i]);
+            }
+        }
+
+        /**
+         * keep the rows of a failed procedure call in the dead letter log, before they are acknowledged
+         */
+        void spill(DeadLetterLog deadLetters, VoltTable table, byte status, Object error) {
+            long[] offsets = new long[m_count];
+            for (int i = 0; i < m_count; i++) {
+                offsets[i] = m_windows[i].getOffset(m_sequences[i]);
+            }
+            deadLetters.addBatch(status, error, m_procName, m_partitionKey, table, m_windows, offsets);
+        }
+
+        /**
+         * keep the rows which could not be built into a table in the dead letter log, before they are acknowledged.
+         * They are kept without the procedure since they can't be passed to it.
+         */
+        void spillRows(DeadLetterLog deadLetters, Object error) {
+            for (int i = 0; i < m_count && i < m_rows.size(); i++) {
+                deadLetters.addParameters(m_windows[i].m_topic, m_windows[i].m_partition, m_windows[i].getOffset(m_sequences[i]),
+                        DeadLetterLog.NOT_SENT, error, null, m_rows.get(i));
+            }
+        }
+
+        String describeOffsets() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < m_count; i++) {
+                builder.append((i == 0) ? "" : ", ").append(m_windows[i].toString(m_sequences[i]));
+            }
+            return builder.toString();
+        }
+
+        /**
+         * Without a column layout, column types are taken from the first non-null value of each column,
+         * STRING if all values are null. The rows are released once copied into the table.
+         * @return the rows as a VoltTable
+         */
+        VoltTable toVoltTable() {
+            VoltTable table = new VoltTable((m_columns != null) ? m_columns : getColumnsFromValues());
+            for (Object[] row : m_rows) {
+                table.addRow(row);
+            }
+            m_rows.clear();
+            return table;
+        }
+        private VoltTable.ColumnInfo[] getColumnsFromValues() {
+            int columnCount = m_rows.get(0).length;
+            VoltTable.ColumnInfo[] columns = new VoltTable.ColumnInfo[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                VoltType type = VoltType.STRING;
+                for (Object[] row : m_rows) {
+                    if (i < row.length && row[i] != null) {
+                        type = VoltType.typeFromObject(row[i]);
+                        break;
+                    }
+                }
+                columns[i] = new VoltTable.ColumnInfo("C" + i, type);
+            }
+            return columns;
+        }
+    }
+
+    /**
+     * The procedure, formatter and converter for the records of the routed topics, and their pending rows
+     *
+     */
+    private final static class TopicRoute {
+
+        final String m_name;
+
+        /**
+         * <code>m_procName</code> VoltDB store procedure name, null in bulkload write mode
+         */
+        final String m_procName;
+
+        /**
+         * <code>m_deleteProcName</code> The procedure the tombstones are sent to, null if they are dropped
+         */
+        final String m_deleteProcName;
+
+        /**
+         * <code>m_formatters</code> The formatter to converting kafka data into the data format required by VoltDB procedure,
+         * one per formatting thread
+         */
+        final Formatter[] m_formatters;
+
+        /**
+         * <code>m_converters</code> Convert the value of SinkRecord to byte array, one per formatting thread
+         */
+        final Converter[] m_converters;
+
+        /**
+         * <code>m_batch</code> The pending rows in batch write mode, sent at the end of each put
+         */
+        RowBatch m_batch;
+
+        /**
+         * <code>m_partitionBatches</code> The pending rows keyed by VoltDB partition, sent at the end of each put
+         */
+        final Map<Long, RowBatch> m_partitionBatches = new HashMap<Long, RowBatch>();
+
+        public TopicRoute(String name, String procName, String deleteProcName, Formatter[] formatters, Converter[] converters) {
+            m_name = name;
+            m_procName = procName;
+            m_deleteProcName = deleteProcName;
+            m_formatters = formatters;
+            m_converters = converters;
+        }
+
+        @Override
+        public String toString() {
+            return m_name;
+        }
+    }
+
+    /**
+     * The key of a record within its topic partition, byte array keys compared by content
+     *
+     */
+    private final static class RecordKey {
+
+        private final String m_topic;
+        private final int m_partition;
+        private final Object m_key;
+
+        public RecordKey(SinkRecord record) {
+            m_topic = record.topic();
+            m_partition = record.kafkaPartition();
+            m_key = (record.key() instanceof byte[]) ? ByteBuffer.wrap((byte[]) record.key()) : record.key();
+        }
 
-        public KafkaPartitionOffset(int partition, long offset){
-            m_partition = partition;
-            m_offset = offset;
+        @Override
+        public int hashCode() {
+            return 31 * (31 * m_topic.hashCode() + m_partition) + m_key.hashCode();
         }
 
         @Override
-        public boolean equals (Object obj){
-            if(obj instanceof KafkaPartitionOffset){
-                return (m_partition == ((KafkaPartitionOffset)obj).m_partition && m_offset == ((KafkaPartitionOffset)obj).m_offset);
+        public boolean equals(Object o) {
+            if (!(o instanceof RecordKey)) {
+                return false;
             }
+            RecordKey other = (RecordKey) o;
+            return m_partition == other.m_partition && m_topic.equals(other.m_topic) && m_key.equals(other.m_key);
+        }
+    }
 
-            return false;
+    /**
+     * Client connection status listener
+     *
+     */
+    private final  static class ClientStatusListener extends ClientStatusListenerExt{
+
+        private final AtomicBoolean m_connectionLost;
+        private final AtomicBoolean m_rewindPending;
+        private final FlowController m_flowController;
+        private final TaskMetrics m_metrics;
+
+        public ClientStatusListener(AtomicBoolean connectionLost, AtomicBoolean rewindPending, FlowController flowController,
+                TaskMetrics metrics){
+            super();
+            m_connectionLost = connectionLost;
+            m_rewindPending = rewindPending;
+            m_flowController = flowController;
+            m_metrics = metrics;
+        }
+
+        @Override
+        public void backpressure(boolean status) {
+            m_flowController.setBackpressure(status);
+            m_metrics.setBackpressure(status);
+        }
+
+        @Override
+        public void connectionLost(String hostname, int port, int connectionsLeft, DisconnectCause cause){
+            LOGGER.warn(String.format("A connection to the database has been lost. There are %d connections remaining.", connectionsLeft));
+            //the client calls the listener before it fails the calls in flight
+            m_rewindPending.set(true);
+            m_connectionLost.set(connectionsLeft == 0);
+        }
+
+        @Override
+        public void connectionCreated(String hostname, int port, AutoConnectionStatus status) {
+            if (status == AutoConnectionStatus.SUCCESS) {
+                LOGGER.info(String.format("A connection to the database has been created to %s:%d.", hostname, port));
+                m_connectionLost.set(false);
+            }
         }
     }
 }
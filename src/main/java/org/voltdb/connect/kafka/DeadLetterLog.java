@@ -0,0 +1,561 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.connect.errors.ConnectException;
+
+import org.voltcore.logging.VoltLogger;
+import org.voltdb.ParameterSet;
+import org.voltdb.VoltTable;
+
+/**
+ * DeadLetterLog keeps the records which could not be written to VoltDB in local append-only segment files, so that
+ * they can be replayed later with {@link DeadLetterReplay}. Records are queued by the task, formatting and callback
+ * threads without any encoding, and written by one background thread to memory mapped segments which are rotated
+ * once full. Records are dropped and counted if the queue is full, so an error storm can not stall the task.
+ * <p>
+ * A segment starts with the magic number and the format version, followed by the entries, each prefixed by its length.
+ * A zero length marks the end of a segment which was not closed.
+ */
+final class DeadLetterLog implements Closeable {
+
+    private static final VoltLogger LOGGER = new VoltLogger("KafkaSinkConnector");
+
+    static final int MAGIC = 0x564b444c;
+    static final byte VERSION = 1;
+    static final String SUFFIX = ".dlq";
+
+    /**
+     * <code>NOT_SENT</code> The status of the records which failed before they were sent to VoltDB
+     */
+    static final byte NOT_SENT = 0;
+
+    static final byte KIND_VALUE = 0;
+    static final byte KIND_PARAMETERS = 1;
+
+    private static final int HEADER_SIZE = 5;
+    private static final int MAX_ERROR_CHARS = 4096;
+    private static final long SUMMARY_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final AtomicInteger s_logCount = new AtomicInteger(0);
+
+    private final File m_dir;
+    private final String m_prefix;
+    private final int m_segmentBytes;
+    private final BlockingQueue<Entry> m_queue;
+    private final Thread m_writer;
+    private volatile boolean m_closed = false;
+
+    private final AtomicLong m_dropped = new AtomicLong(0);
+    private long m_written = 0;
+
+    /**
+     * <code>m_segment</code> The mapped segment being written, null until the first entry
+     */
+    private MappedByteBuffer m_segment;
+    private FileChannel m_channel;
+    private File m_segmentFile;
+    private int m_segmentSequence = 0;
+
+    /**
+     * <code>m_scratch</code> The buffer an entry is encoded into before it is copied into the segment
+     */
+    private ByteBuffer m_scratch = ByteBuffer.allocate(64 * 1024);
+
+    /**
+     * @param dir The directory of the segment files
+     * @param name The name the segment files start with, made unique to the log
+     * @param segmentBytes The size a segment is rotated at
+     * @param queueSize The maximal number of entries waiting to be written
+     */
+    DeadLetterLog(File dir, String name, int segmentBytes, int queueSize) {
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new ConnectException(String.format("Could not create the dead letter directory %s", dir));
+        }
+        m_dir = dir;
+        m_prefix = String.format("%s-%d-%d", name, System.currentTimeMillis(), s_logCount.incrementAndGet());
+        m_segmentBytes = segmentBytes;
+        m_queue = new ArrayBlockingQueue<Entry>(queueSize);
+        m_writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "VoltDB sink dead letter writer");
+        m_writer.setDaemon(true);
+        m_writer.start();
+    }
+
+    /**
+     * Queue a record which failed before it was formatted.
+     * @param error the Throwable or message describing the failure
+     * @param value the value of the record
+     * @return false if the record was dropped
+     */
+    boolean addValue(String topic, int partition, long offset, Object error, Object value) {
+        return offer(new Entry(topic, partition, offset, NOT_SENT, error, null, null, value));
+    }
+
+    /**
+     * Queue a formatted record which could not be written by the procedure.
+     * @param status the ClientResponse status, or NOT_SENT
+     * @param error the Throwable or message describing the failure
+     * @param procName the procedure the record was sent to, null if none
+     * @param params the procedure parameters
+     * @return false if the record was dropped
+     */
+    boolean addParameters(String topic, int partition, long offset, byte status, Object error, String procName, Object[] params) {
+        return offer(new Entry(topic, partition, offset, status, error, procName, params, null));
+    }
+
+    /**
+     * Queue the rows of a batch procedure call, one entry per row with the row in a table of its own.
+     * @param partitionKey the partitioning value passed before the table, null if none
+     * @param windows the in-flight windows of the rows
+     * @param offsets the kafka offsets of the rows
+     * @return false if the rows were dropped
+     */
+    boolean addBatch(byte status, Object error, String procName, Object partitionKey, VoltTable table,
+            InFlightTracker.PartitionWindow[] windows, long[] offsets) {
+        return offer(new BatchEntry(status, error, procName, partitionKey, table, windows, offsets));
+    }
+
+    /**
+     * @return the number of entries dropped because the queue was full or the log was closed
+     */
+    long getDropped() {
+        return m_dropped.get();
+    }
+
+    /**
+     * Write the queued entries and close the current segment.
+     */
+    @Override
+    public void close() {
+
+        m_closed = true;
+        try {
+            m_writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean offer(Entry entry) {
+
+        if (m_closed || !m_queue.offer(entry)) {
+            m_dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The writer loop, until the log is closed and the queue is empty
+     */
+    private void write() {
+
+        List<Entry> entries = new ArrayList<Entry>(256);
+        long summaryTime = System.nanoTime();
+        long lastWritten = 0;
+        long lastDropped = 0;
+        while (true) {
+            try {
+                Entry entry = m_queue.poll(100, TimeUnit.MILLISECONDS);
+                if (entry != null) {
+                    entries.add(entry);
+                    m_queue.drainTo(entries, 255);
+                    for (Entry e : entries) {
+                        e.writeTo(this);
+                    }
+                    entries.clear();
+                } else if (m_closed) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException | RuntimeException e) {
+                LOGGER.error("Failed to write to the dead letter log", e);
+                entries.clear();
+                closeSegment();
+            }
+
+            //one warning per interval instead of one per record
+            long now = System.nanoTime();
+            if (now - summaryTime >= SUMMARY_INTERVAL_NANOS) {
+                long dropped = m_dropped.get();
+                if (m_written > lastWritten || dropped > lastDropped) {
+                    LOGGER.warn(String.format("%d records written to the dead letter log %s and %d dropped in the last minute",
+                            m_written - lastWritten, m_segmentFile, dropped - lastDropped));
+                }
+                summaryTime = now;
+                lastWritten = m_written;
+                lastDropped = dropped;
+            }
+        }
+        closeSegment();
+        if (m_written > lastWritten || m_dropped.get() > lastDropped) {
+            LOGGER.warn(String.format("%d records written to the dead letter log in %s and %d dropped",
+                    m_written, m_dir, m_dropped.get()));
+        }
+    }
+
+    /**
+     * Encode one entry and append it to the segment, rotating the segment if the entry does not fit.
+     */
+    void append(String topic, int partition, long offset, byte status, Object error, String procName, Object[] params,
+            Object value) throws IOException {
+
+        byte[] topicBytes = getBytes(topic);
+        byte[] procBytes = getBytes(procName);
+        byte[] errorBytes = getBytes(getMessage(error));
+        byte kind = KIND_VALUE;
+        byte[] valueBytes;
+        if (params != null) {
+            kind = KIND_PARAMETERS;
+            //serialized apart, the types VoltDB can't serialize are only found while flattening
+            try {
+                ParameterSet parameters = ParameterSet.fromArrayNoCopy(params);
+                ByteBuffer serialized = ByteBuffer.allocate(parameters.getSerializedSize());
+                parameters.flattenToBuffer(serialized);
+                valueBytes = serialized.array();
+            } catch (RuntimeException e) {
+                //parameters of types VoltDB can't serialize are kept as text
+                kind = KIND_VALUE;
+                valueBytes = getBytes(Arrays.deepToString(params));
+            }
+        } else {
+            valueBytes = getValueBytes(value);
+        }
+        int payloadSize = valueBytes.length;
+
+        int length = 8 + 1 + 4 + 8 + 12 + topicBytes.length + procBytes.length + errorBytes.length + 1 + 4 + payloadSize;
+        if (m_scratch.capacity() < length + 4) {
+            m_scratch = ByteBuffer.allocate(Math.max(length + 4, m_scratch.capacity() * 2));
+        }
+        ByteBuffer buffer = m_scratch;
+        buffer.clear();
+        buffer.putInt(length);
+        buffer.putLong(System.currentTimeMillis());
+        buffer.put(status);
+        buffer.putInt(partition);
+        buffer.putLong(offset);
+        putBytes(buffer, topicBytes);
+        putBytes(buffer, procBytes);
+        putBytes(buffer, errorBytes);
+        buffer.put(kind);
+        buffer.putInt(payloadSize);
+        buffer.put(valueBytes);
+        buffer.flip();
+
+        //keep room for the end marker
+        if (m_segment == null || m_segment.remaining() < buffer.remaining() + 4) {
+            rotate(buffer.remaining() + 4);
+        }
+        m_segment.put(buffer);
+        m_written++;
+    }
+
+    private void rotate(int minBytes) throws IOException {
+
+        closeSegment();
+        File file;
+        do {
+            file = new File(m_dir, String.format("%s-%06d%s", m_prefix, m_segmentSequence++, SUFFIX));
+        } while (file.exists());
+        int size = Math.max(m_segmentBytes, minBytes + HEADER_SIZE);
+        m_channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        m_segment = m_channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        m_segment.putInt(MAGIC);
+        m_segment.put(VERSION);
+        m_segmentFile = file;
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info(String.format("Writing dead letters to %s", file));
+        }
+    }
+
+    /**
+     * Flush the segment and truncate it to the written entries.
+     */
+    private void closeSegment() {
+
+        if (m_segment == null) {
+            return;
+        }
+        int position = m_segment.position();
+        try {
+            m_segment.force();
+            m_segment = null;
+            m_channel.truncate(position);
+        } catch (IOException e) {
+            LOGGER.warn(String.format("Could not truncate the dead letter segment %s", m_segmentFile), e);
+        } finally {
+            m_segment = null;
+            try {
+                m_channel.close();
+            } catch (IOException e) {
+                LOGGER.warn(String.format("Could not close the dead letter segment %s", m_segmentFile), e);
+            }
+            m_channel = null;
+        }
+    }
+
+    private static String getMessage(Object error) {
+
+        if (error == null) {
+            return null;
+        }
+        String message = error.toString();
+        if (error instanceof Throwable && ((Throwable) error).getCause() != null) {
+            message = message + ": " + ((Throwable) error).getCause();
+        }
+        return (message.length() > MAX_ERROR_CHARS) ? message.substring(0, MAX_ERROR_CHARS) : message;
+    }
+
+    private static byte[] getValueBytes(Object value) {
+
+        if (value == null) {
+            return new byte[0];
+        }
+        if (value instanceof byte[]) {
+            return (byte[]) value;
+        }
+        if (value instanceof ByteBuffer) {
+            ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return bytes;
+        }
+        return value.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] getBytes(String value) {
+        return (value == null) ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+
+        int length = buffer.getInt();
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A queued record, encoded on the writer thread
+     */
+    private static class Entry {
+
+        final String m_topic;
+        final int m_partition;
+        final long m_offset;
+        final byte m_status;
+        final Object m_error;
+        final String m_procName;
+        final Object[] m_params;
+        final Object m_value;
+
+        Entry(String topic, int partition, long offset, byte status, Object error, String procName, Object[] params, Object value) {
+            m_topic = topic;
+            m_partition = partition;
+            m_offset = offset;
+            m_status = status;
+            m_error = error;
+            m_procName = procName;
+            m_params = params;
+            m_value = value;
+        }
+
+        void writeTo(DeadLetterLog log) throws IOException {
+            log.append(m_topic, m_partition, m_offset, m_status, m_error, m_procName, m_params, m_value);
+        }
+    }
+
+    /**
+     * The queued rows of a batch procedure call, split into one entry per row on the writer thread
+     */
+    private static final class BatchEntry extends Entry {
+
+        final Object m_partitionKey;
+        final VoltTable m_table;
+        final InFlightTracker.PartitionWindow[] m_windows;
+        final long[] m_offsets;
+
+        BatchEntry(byte status, Object error, String procName, Object partitionKey, VoltTable table,
+                InFlightTracker.PartitionWindow[] windows, long[] offsets) {
+            super(null, -1, -1, status, error, procName, null, null);
+            m_partitionKey = partitionKey;
+            m_table = table;
+            m_windows = windows;
+            m_offsets = offsets;
+        }
+
+        @Override
+        void writeTo(DeadLetterLog log) throws IOException {
+
+            int rows = Math.min(m_table.getRowCount(), m_offsets.length);
+            for (int i = 0; i < rows; i++) {
+                VoltTable row = m_table.clone(0);
+                row.add(m_table.fetchRow(i));
+                Object[] params = (m_partitionKey == null) ? new Object[] { row } : new Object[] { m_partitionKey, row };
+                log.append(m_windows[i].m_topic, m_windows[i].m_partition, m_offsets[i], m_status, m_error, m_procName, params, null);
+            }
+        }
+    }
+
+    /**
+     * A dead letter read back from a segment
+     */
+    static final class Record {
+
+        final long m_timestamp;
+        final byte m_status;
+        final int m_partition;
+        final long m_offset;
+        final String m_topic;
+
+        /**
+         * <code>m_procName</code> The procedure the record was sent to, null if it was not formatted
+         */
+        final String m_procName;
+        final String m_error;
+
+        /**
+         * <code>m_parameters</code> The procedure parameters, null if the record was not formatted
+         */
+        final ParameterSet m_parameters;
+
+        /**
+         * <code>m_value</code> The record value, or the text of parameters VoltDB could not serialize
+         */
+        final byte[] m_value;
+
+        Record(ByteBuffer buffer) throws IOException {
+            m_timestamp = buffer.getLong();
+            m_status = buffer.get();
+            m_partition = buffer.getInt();
+            m_offset = buffer.getLong();
+            m_topic = getString(buffer);
+            m_procName = getString(buffer);
+            m_error = getString(buffer);
+            byte kind = buffer.get();
+            int size = buffer.getInt();
+            ByteBuffer payload = buffer.slice();
+            payload.limit(size);
+            buffer.position(buffer.position() + size);
+            if (kind == KIND_PARAMETERS) {
+                m_parameters = ParameterSet.fromByteBuffer(payload);
+                m_value = null;
+            } else {
+                m_parameters = null;
+                m_value = new byte[size];
+                payload.get(m_value);
+            }
+        }
+    }
+
+    /**
+     * Reads the dead letters of one segment in the order they were written
+     */
+    static final class Reader implements Closeable {
+
+        private final File m_file;
+        private final FileChannel m_channel;
+        private final ByteBuffer m_buffer;
+
+        Reader(File file) throws IOException {
+
+            m_file = file;
+            m_channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            m_buffer = m_channel.map(FileChannel.MapMode.READ_ONLY, 0, m_channel.size());
+            if (m_buffer.remaining() < HEADER_SIZE || m_buffer.getInt() != MAGIC) {
+                m_channel.close();
+                throw new IOException(String.format("%s is not a dead letter segment", file));
+            }
+            byte version = m_buffer.get();
+            if (version != VERSION) {
+                m_channel.close();
+                throw new IOException(String.format("Unsupported dead letter segment version %d in %s", version, file));
+            }
+        }
+
+        /**
+         * @return the next dead letter, null at the end of the segment
+         */
+        Record next() throws IOException {
+
+            if (m_buffer.remaining() < 4) {
+                return null;
+            }
+            int length = m_buffer.getInt();
+            if (length <= 0) {
+                return null;
+            }
+            if (length > m_buffer.remaining()) {
+                throw new IOException(String.format("Truncated entry at %d in %s", m_buffer.position() - 4, m_file));
+            }
+            ByteBuffer entry = m_buffer.slice();
+            entry.limit(length);
+            m_buffer.position(m_buffer.position() + length);
+            try {
+                return new Record(entry);
+            } catch (BufferUnderflowException e) {
+                throw new IOException(String.format("Corrupt entry in %s", m_file), e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            m_channel.close();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.voltdb.VoltTable;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ClientStatusListenerExt;
+import org.voltdb.client.ProcedureCallback;
+import org.voltdb.utils.Encoder;
+
+import com.google_voltpatches.common.base.Splitter;
+
+/**
+ * Replays the dead letters written by {@link DeadLetterLog} into VoltDB, using the connection settings of a connector
+ * properties file. Each formatted record is sent again to the procedure it failed with; records which failed before
+ * they were formatted are listed and skipped.
+ * <pre>
+ * DeadLetterReplay &lt;connector properties&gt; &lt;segment file or directory&gt;...
+ * DeadLetterReplay --list &lt;segment file or directory&gt;...
+ * </pre>
+ */
+public class DeadLetterReplay {
+
+    private final AtomicLong m_replayed = new AtomicLong(0);
+    private final AtomicLong m_failed = new AtomicLong(0);
+    private long m_skipped = 0;
+
+    public static void main(String[] args) throws Exception {
+
+        boolean list = args.length > 0 && "--list".equals(args[0]);
+        if (args.length < 2) {
+            System.err.println("Usage: DeadLetterReplay <connector properties> <segment file or directory>...");
+            System.err.println("       DeadLetterReplay --list <segment file or directory>...");
+            System.exit(2);
+        }
+
+        List<File> segments = new ArrayList<File>();
+        for (int i = 1; i < args.length; i++) {
+            File file = new File(args[i]);
+            if (file.isDirectory()) {
+                File[] files = file.listFiles();
+                if (files != null) {
+                    Arrays.sort(files);
+                    for (File segment : files) {
+                        if (segment.getName().endsWith(DeadLetterLog.SUFFIX)) {
+                            segments.add(segment);
+                        }
+                    }
+                }
+            } else {
+                segments.add(file);
+            }
+        }
+
+        DeadLetterReplay replay = new DeadLetterReplay();
+        if (list) {
+            for (File segment : segments) {
+                replay.list(segment);
+            }
+            return;
+        }
+
+        Map<String, String> props = load(new File(args[0]));
+        String servers = props.get(ConnectorConfig.CONNECTOR_SERVERS);
+        if (servers == null) {
+            System.err.println("Missing VoltDB hosts.");
+            System.exit(2);
+        }
+        List<String> serverList = Splitter.on(',').omitEmptyStrings().trimResults().splitToList(servers);
+        Client client = new ConnectorTask().createClient(props, new ClientStatusListenerExt(), serverList);
+        try {
+            for (File segment : segments) {
+                replay.replay(client, segment);
+            }
+            client.drain();
+        } finally {
+            client.close();
+        }
+        System.out.println(String.format("%d records replayed, %d failed, %d skipped", replay.m_replayed.get(),
+                replay.m_failed.get(), replay.m_skipped));
+        if (replay.m_failed.get() > 0) {
+            System.exit(1);
+        }
+    }
+
+    private void replay(Client client, File segment) throws Exception {
+
+        try (DeadLetterLog.Reader reader = new DeadLetterLog.Reader(segment)) {
+            DeadLetterLog.Record record;
+            while ((record = reader.next()) != null) {
+                if (record.m_procName == null || record.m_parameters == null) {
+                    m_skipped++;
+                    System.err.println(String.format("Skipped %s: not formatted", describe(record)));
+                    continue;
+                }
+                final String description = describe(record);
+                boolean queued = client.callProcedure(new ProcedureCallback() {
+                    @Override
+                    public void clientCallback(ClientResponse response) {
+                        if (response.getStatus() == ClientResponse.SUCCESS) {
+                            m_replayed.incrementAndGet();
+                        } else {
+                            m_failed.incrementAndGet();
+                            System.err.println(String.format("Failed %s: %s", description, response.getStatusString()));
+                        }
+                    }
+                }, record.m_procName, record.m_parameters.toArray());
+                if (!queued) {
+                    m_failed.incrementAndGet();
+                    System.err.println(String.format("Failed %s: not queued", description));
+                }
+            }
+        }
+    }
+
+    private void list(File segment) throws IOException {
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        try (DeadLetterLog.Reader reader = new DeadLetterLog.Reader(segment)) {
+            DeadLetterLog.Record record;
+            while ((record = reader.next()) != null) {
+                String payload = (record.m_parameters != null) ? toString(record.m_parameters.toArray())
+                        : new String(record.m_value, StandardCharsets.UTF_8);
+                System.out.println(String.format("%s %s status %d %s: %s %s", dateFormat.format(new Date(record.m_timestamp)),
+                        describe(record), record.m_status, (record.m_error == null) ? "-" : record.m_error,
+                        (record.m_procName == null) ? "-" : record.m_procName, payload));
+            }
+        }
+    }
+
+    /**
+     * @return the parameters on one line, tables as JSON
+     */
+    private static String toString(Object[] params) {
+
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < params.length; i++) {
+            builder.append((i == 0) ? "" : ", ");
+            if (params[i] instanceof VoltTable) {
+                builder.append(((VoltTable) params[i]).toJSONString());
+            } else if (params[i] instanceof byte[]) {
+                builder.append(Encoder.hexEncode((byte[]) params[i]));
+            } else {
+                builder.append(params[i]);
+            }
+        }
+        return builder.append(']').toString();
+    }
+
+    private static String describe(DeadLetterLog.Record record) {
+        return String.format("%s-%d offset %d", record.m_topic, record.m_partition, record.m_offset);
+    }
+
+    private static Map<String, String> load(File file) throws IOException {
+
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        Map<String, String> props = new HashMap<String, String>();
+        for (String name : properties.stringPropertyNames()) {
+            props.put(name, properties.getProperty(name));
+        }
+        return props;
+    }
+}
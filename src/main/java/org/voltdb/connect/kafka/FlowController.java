@@ -0,0 +1,263 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.voltcore.logging.VoltLogger;
+import org.voltdb.client.ClientResponse;
+
+/**
+ * FlowController accounts for the records and bytes sent to VoltDB and not yet acknowledged, and for the client
+ * backpressure notifications. The task pauses the Kafka partitions when the in-flight budget is used up or the client
+ * reports backpressure, and resumes them once the in-flight records drop below half of the budget.
+ * With a latency target the budget and the batch sizes are scaled down from their configured maximum, AIMD style: the
+ * scale is raised by a step every interval in which the 99th percentile round trip stays under the target and the budget
+ * was used, and halved in an interval in which the target is exceeded, the client reports backpressure or calls fail
+ * for lack of capacity.
+ */
+final class FlowController {
+
+    private static final VoltLogger LOGGER = new VoltLogger("KafkaSinkConnector");
+
+    /**
+     * <code>MIN_SCALE</code> The lowest fraction of the configured limits the budget is scaled down to
+     */
+    private static final double MIN_SCALE = 1.0 / 64;
+    private static final double INCREASE_STEP = 1.0 / 32;
+    private static final double DECREASE_FACTOR = 0.5;
+
+    /**
+     * <code>SLOW_RATIO</code> The fraction of responses over the latency target an interval tolerates
+     */
+    private static final double SLOW_RATIO = 0.01;
+    private static final long MIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final int MIN_SAMPLES = 20;
+
+    private final long m_maxRecords;
+    private final long m_maxBytes;
+    private final AtomicLong m_records = new AtomicLong(0);
+    private final AtomicLong m_bytes = new AtomicLong(0);
+    private volatile boolean m_backpressure = false;
+
+    /**
+     * <code>m_circuitOpen</code> True while the retries have opened the circuit to VoltDB
+     */
+    private volatile boolean m_circuitOpen = false;
+
+    /**
+     * <code>m_latencyTargetNanos</code> The round trip the limits are adapted to, 0 if they are fixed
+     */
+    private final long m_latencyTargetNanos;
+    private final long m_intervalNanos;
+    private volatile double m_scale = 1.0;
+    private volatile long m_nextAdjust;
+    private final AtomicLong m_samples = new AtomicLong(0);
+    private final AtomicLong m_slowSamples = new AtomicLong(0);
+    private volatile boolean m_congested = false;
+
+    /**
+     * <code>m_peakRecords</code> The most records in flight since the last adjustment, updated from the task thread
+     */
+    private volatile long m_peakRecords = 0;
+
+    /**
+     * @param maxRecords the maximal number of records in flight
+     * @param maxBytes the approximate maximal number of bytes in flight
+     */
+    FlowController(long maxRecords, long maxBytes) {
+        this(maxRecords, maxBytes, 0);
+    }
+
+    /**
+     * @param maxRecords the maximal number of records in flight
+     * @param maxBytes the approximate maximal number of bytes in flight
+     * @param latencyTargetMillis the procedure round trip the limits are adapted to, 0 to keep them fixed
+     */
+    FlowController(long maxRecords, long maxBytes, int latencyTargetMillis) {
+        m_maxRecords = maxRecords;
+        m_maxBytes = maxBytes;
+        m_latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMillis);
+        m_intervalNanos = Math.max(MIN_INTERVAL_NANOS, 4 * m_latencyTargetNanos);
+        if (m_latencyTargetNanos > 0) {
+            //start low and let the additive increase find the capacity
+            m_scale = MIN_SCALE * 4;
+        }
+        m_nextAdjust = System.nanoTime() + m_intervalNanos;
+    }
+
+    void acquire(int records, long bytes) {
+        long inflight = m_records.addAndGet(records);
+        m_bytes.addAndGet(bytes);
+        if (inflight > m_peakRecords) {
+            m_peakRecords = inflight;
+        }
+    }
+
+    void release(int records, long bytes) {
+        m_records.addAndGet(-records);
+        m_bytes.addAndGet(-bytes);
+    }
+
+    void setBackpressure(boolean backpressure) {
+        m_backpressure = backpressure;
+        if (backpressure) {
+            m_congested = true;
+        }
+    }
+
+    void setCircuitOpen(boolean open) {
+        m_circuitOpen = open;
+    }
+
+    /**
+     * account the round trip and status of a procedure call or bulk loader row to adapt the limits, called from the
+     * client callbacks
+     */
+    void recordResponse(ClientResponse response) {
+
+        if (m_latencyTargetNanos == 0 || response == null) {
+            return;
+        }
+        switch (response.getStatus()) {
+        case ClientResponse.CONNECTION_TIMEOUT:
+        case ClientResponse.RESPONSE_UNKNOWN:
+        case ClientResponse.SERVER_UNAVAILABLE:
+            m_congested = true;
+            break;
+        default:
+            m_samples.incrementAndGet();
+            if (response.getClientRoundtripNanos() > m_latencyTargetNanos) {
+                m_slowSamples.incrementAndGet();
+            }
+        }
+        long now = System.nanoTime();
+        if (now - m_nextAdjust >= 0) {
+            adjust(now);
+        }
+    }
+
+    /**
+     * scale the limits from the responses of the interval which has elapsed
+     */
+    private synchronized void adjust(long now) {
+
+        if (now - m_nextAdjust < 0) {
+            return;
+        }
+        long samples = m_samples.get();
+        if (!m_congested && samples < MIN_SAMPLES) {
+            return;
+        }
+        long slowSamples = m_slowSamples.get();
+        double scale = m_scale;
+        if (m_congested || slowSamples > samples * SLOW_RATIO) {
+            scale = Math.max(MIN_SCALE, scale * DECREASE_FACTOR);
+        } else if (m_peakRecords >= getRecordLimit() / 2) {
+            //only raise a budget which is actually used, so an idle period does not open it all the way up
+            scale = Math.min(1.0, scale + INCREASE_STEP);
+        }
+        if (scale != m_scale && LOGGER.isDebugEnabled()) {
+            LOGGER.debug(String.format("Scaled the in-flight limits from %.3f to %.3f: %d of %d responses over the latency target%s",
+                    m_scale, scale, slowSamples, samples, m_congested ? ", congested" : ""));
+        }
+        m_scale = scale;
+        m_samples.set(0);
+        m_slowSamples.set(0);
+        m_congested = false;
+        m_peakRecords = m_records.get();
+        m_nextAdjust = now + m_intervalNanos;
+    }
+
+    /**
+     * @return true if the consumption should be paused
+     */
+    boolean isOverBudget() {
+        return m_backpressure || m_circuitOpen || m_records.get() >= getRecordLimit() || m_bytes.get() >= scale(m_maxBytes);
+    }
+
+    /**
+     * @return true if paused consumption can be resumed
+     */
+    boolean canResume() {
+        return !m_backpressure && !m_circuitOpen && m_records.get() <= getRecordLimit() / 2 && m_bytes.get() <= scale(m_maxBytes) / 2;
+    }
+
+    /**
+     * @return the current limit of records in flight
+     */
+    long getRecordLimit() {
+        return scale(m_maxRecords);
+    }
+
+    /**
+     * @return the configured limit scaled to the current capacity, at least 1
+     */
+    long scale(long limit) {
+        return Math.max(1, (long) (limit * m_scale));
+    }
+
+    /**
+     * @return the configured batch size scaled to the current capacity, at least 1
+     */
+    int scale(int limit) {
+        return Math.max(1, (int) (limit * m_scale));
+    }
+
+    long getRecords() {
+        return m_records.get();
+    }
+
+    long getBytes() {
+        return m_bytes.get();
+    }
+
+    boolean isBackpressure() {
+        return m_backpressure;
+    }
+
+    boolean isCircuitOpen() {
+        return m_circuitOpen;
+    }
+
+    /**
+     * @return the approximate serialized size of a formatted row
+     */
+    static int estimateSize(Object[] row) {
+
+        int size = 0;
+        for (Object value : row) {
+            if (value instanceof String) {
+                size += ((String) value).length() + 4;
+            } else if (value instanceof byte[]) {
+                size += ((byte[]) value).length + 4;
+            } else {
+                size += 8;
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * InFlightTracker keeps the offsets of the records sent to VoltDB but not yet acknowledged, per topic partition.
+ * Offsets are registered by the task thread in consuming order and acknowledged by the client callbacks without locking.
+ * All the methods except {@link PartitionWindow#ack(long)} must be called from the task thread.
+ */
+final class InFlightTracker {
+
+    private final Map<TopicPartition, PartitionWindow> m_windows = new HashMap<TopicPartition, PartitionWindow>();
+
+    /**
+     * <code>m_lastWindow</code> The most recently used window. Records in a batch usually come in runs of one partition.
+     */
+    private PartitionWindow m_lastWindow;
+
+    /**
+     * @param topic the topic of the record
+     * @param partition the kafka partition of the record
+     * @return the window tracking the topic partition
+     */
+    PartitionWindow getWindow(String topic, int partition) {
+
+        PartitionWindow window = m_lastWindow;
+        if (window != null && window.m_partition == partition && window.m_topic.equals(topic)) {
+            return window;
+        }
+        TopicPartition topicPartition = new TopicPartition(topic, partition);
+        window = m_windows.get(topicPartition);
+        if (window == null) {
+            window = new PartitionWindow(topicPartition);
+            m_windows.put(topicPartition, window);
+        }
+        m_lastWindow = window;
+        return window;
+    }
+
+    /**
+     * @param partition the topic partition
+     * @return the offset of the next record to consume such that all the records before it have been acknowledged,
+     * -1 if no record of the partition has been tracked
+     */
+    long getCommittableOffset(TopicPartition partition) {
+
+        PartitionWindow window = m_windows.get(partition);
+        if (window == null) {
+            return -1;
+        }
+        long offset = window.getAckedOffset();
+        return (offset < 0) ? -1 : offset + 1;
+    }
+
+    /**
+     * @return true if the window is the one tracking its partition, false if it was removed or cleared since
+     */
+    boolean isTracked(PartitionWindow window) {
+        return m_windows.get(window.m_topicPartition) == window;
+    }
+
+    /**
+     * @return the committable offset of each tracked partition which has one, the lowest offset not acknowledged
+     */
+    Map<TopicPartition, Long> getCommittableOffsets() {
+
+        Map<TopicPartition, Long> offsets = new HashMap<TopicPartition, Long>();
+        for (TopicPartition partition : m_windows.keySet()) {
+            long offset = getCommittableOffset(partition);
+            if (offset >= 0) {
+                offsets.put(partition, offset);
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * @return true if any registered offset has not been acknowledged
+     */
+    boolean hasInFlight() {
+
+        for (PartitionWindow window : m_windows.values()) {
+            if (window.advance()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Release the offsets held back for the records which were spooled, once they are all replayed.
+     */
+    void clearSpoolHolds() {
+
+        for (PartitionWindow window : m_windows.values()) {
+            window.m_spoolHold = -1;
+        }
+    }
+
+    /**
+     * Forget all the offsets. Callbacks for the forgotten offsets acknowledge into the discarded windows.
+     */
+    void clear() {
+        m_windows.clear();
+        m_lastWindow = null;
+    }
+
+    /**
+     * Stop tracking the partitions which are no longer assigned to the task.
+     */
+    void remove(Collection<TopicPartition> partitions) {
+
+        for (TopicPartition partition : partitions) {
+            m_windows.remove(partition);
+        }
+        m_lastWindow = null;
+    }
+
+    /**
+     * Offsets of one topic partition in a ring of lazily allocated segments, addressed by a registration sequence.
+     * A slot holds the offset while it is in flight and <code>ACKED</code> once acknowledged. The low watermark
+     * <code>m_tail</code> is the sequence of the oldest offset which may still be in flight.
+     */
+    static final class PartitionWindow {
+
+        private static final long ACKED = -1L;
+        private static final int SEGMENT_SHIFT = 10;
+        private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+        private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+        private static final int SEGMENT_COUNT = 1024;
+        static final int CAPACITY = SEGMENT_SIZE * SEGMENT_COUNT;
+
+        final TopicPartition m_topicPartition;
+        final String m_topic;
+        final int m_partition;
+
+        private final AtomicReferenceArray<AtomicLongArray> m_segments = new AtomicReferenceArray<AtomicLongArray>(SEGMENT_COUNT);
+
+        /**
+         * <code>m_head</code> The sequence for the next registered offset
+         */
+        private long m_head = 0;
+
+        /**
+         * <code>m_tail</code> The sequence of the oldest offset which may not have been acknowledged
+         */
+        private long m_tail = 0;
+
+        /**
+         * <code>m_lastOffset</code> The highest offset registered or skipped, -1 if none
+         */
+        private long m_lastOffset = -1;
+
+        /**
+         * <code>m_spoolHold</code> The lowest offset which may be spooled and not yet registered, -1 if none. The
+         * acknowledged offset stays below it.
+         */
+        long m_spoolHold = -1;
+
+        /**
+         * <code>m_spooledOffset</code> The last offset spooled, -1 if none. Records redelivered up to it are not
+         * spooled again.
+         */
+        long m_spooledOffset = -1;
+
+        PartitionWindow(TopicPartition topicPartition) {
+            m_topicPartition = topicPartition;
+            m_topic = topicPartition.topic();
+            m_partition = topicPartition.partition();
+        }
+
+        /**
+         * Track an offset until it is acknowledged. Waits for acknowledgements if the window is full.
+         * @param offset the kafka offset of the record
+         * @return the sequence used to acknowledge the offset
+         * @throws InterruptedException if interrupted while waiting for the window
+         */
+        long register(long offset) throws InterruptedException {
+
+            while (m_head - m_tail >= CAPACITY && advance()) {
+                Thread.sleep(1);
+            }
+            int index = (int) (m_head >>> SEGMENT_SHIFT) & (SEGMENT_COUNT - 1);
+            AtomicLongArray segment = m_segments.get(index);
+            if (segment == null) {
+                segment = new AtomicLongArray(SEGMENT_SIZE);
+                m_segments.set(index, segment);
+            }
+            segment.set((int) m_head & SEGMENT_MASK, offset);
+            m_lastOffset = offset;
+            return m_head++;
+        }
+
+        /**
+         * Move past an offset which is not sent to VoltDB.
+         */
+        void skip(long offset) {
+            m_lastOffset = offset;
+        }
+
+        /**
+         * Acknowledge a registered offset. Safe to call from any thread.
+         */
+        void ack(long sequence) {
+            segment(sequence).set((int) sequence & SEGMENT_MASK, ACKED);
+        }
+
+        /**
+         * @return the offset registered with the sequence if it is still in flight, -1 otherwise
+         */
+        long getOffset(long sequence) {
+            return segment(sequence).get((int) sequence & SEGMENT_MASK);
+        }
+
+        /**
+         * Advance the low watermark over the acknowledged offsets.
+         * @return true if there are offsets still in flight
+         */
+        boolean advance() {
+
+            while (m_tail < m_head) {
+                if (segment(m_tail).get((int) m_tail & SEGMENT_MASK) != ACKED) {
+                    return true;
+                }
+                m_tail++;
+            }
+            return false;
+        }
+
+        /**
+         * @return the highest offset such that it and all the offsets registered before it are acknowledged, -1 if none
+         */
+        long getAckedOffset() {
+
+            long acked = m_lastOffset;
+            while (m_tail < m_head) {
+                long offset = segment(m_tail).get((int) m_tail & SEGMENT_MASK);
+                if (offset != ACKED) {
+                    acked = offset - 1;
+                    break;
+                }
+                m_tail++;
+            }
+            return (m_spoolHold >= 0) ? Math.min(acked, m_spoolHold - 1) : acked;
+        }
+
+        String toString(long sequence) {
+            return String.format("%s offset %d", m_topicPartition, getOffset(sequence));
+        }
+
+        private AtomicLongArray segment(long sequence) {
+            return m_segments.get((int) (sequence >>> SEGMENT_SHIFT) & (SEGMENT_COUNT - 1));
+        }
+    }
+}
@@ -35,6 +35,9 @@ import org.apache.kafka.connect.connector.Connector;
 import org.apache.kafka.connect.connector.Task;
 import org.apache.kafka.connect.errors.ConnectException;
 
+import com.google_voltpatches.common.base.Joiner;
+import com.google_voltpatches.common.base.Splitter;
+
 /**
  * KafkaSinkConnector is a Kafka Connector implementation that moves data from Kafka to VoltDB.
  */
@@ -42,6 +45,12 @@ public class KafkaSinkConnector extends Connector {
 
     private Map<String, String> m_configProperties;
 
+    /**
+     * <code>m_topologyMonitor</code> Reconfigures the tasks when the cluster nodes change, null if the tasks follow
+     * the topology changes themselves or the check is disabled
+     */
+    private TopologyMonitor m_topologyMonitor;
+
     @Override
     public String version() {
        return  ConnectorConfig.CONNECTOR_VERSION;
@@ -67,7 +76,26 @@ public class KafkaSinkConnector extends Connector {
                 m_configProperties.put(ConnectorConfig.CONNECTOR_CLASS, "org.voltdb.connect.kafka.KafkaSinkConnector");
             }
 
+            int serversPerTask = ConnectorTask.getIntProperty(props, ConnectorConfig.SERVERS_PER_TASK, 0);
+            if (serversPerTask < 0) {
+                throw new ConfigException(String.format("Invalid number of servers per task: %d", serversPerTask));
+            }
+            //a topology aware client connects to all the nodes whatever servers it is given
+            if (serversPerTask > 0 && ConnectorTask.isTopologyAware(props)) {
+                throw new ConfigException(String.format("%s requires %s to be false.", ConnectorConfig.SERVERS_PER_TASK, ConnectorConfig.TOPOLOGY_AWARE));
+            }
+
+            int checkInterval = ConnectorTask.getIntProperty(props, ConnectorConfig.TOPOLOGY_CHECK_INTERVAL, 0);
+            if (checkInterval < 0) {
+                throw new ConfigException(String.format("Invalid topology check interval: %d", checkInterval));
+            }
+
             new ConnectorConfig(m_configProperties);
+
+            //topology aware tasks connect to the new nodes by themselves
+            if (checkInterval > 0 && !ConnectorTask.isTopologyAware(props)) {
+                m_topologyMonitor = new TopologyMonitor(m_configProperties, getConfiguredServers(), context, checkInterval);
+            }
         } catch (ConfigException e) {
             throw new ConnectException("Couldn't start Connector due to configuration error", e);
         }
@@ -81,17 +109,55 @@ public class KafkaSinkConnector extends Connector {
     @Override
     public List<Map<String, String>> taskConfigs(int maxTasks) {
         List<Map<String, String>> taskConfigs = new ArrayList<>();
-        Map<String, String> taskProps = new HashMap<>();
-        taskProps.putAll(m_configProperties);
+        //the servers of the cluster once the monitor has reached it, the configured ones until then
+        List<String> servers = (m_topologyMonitor != null) ? m_topologyMonitor.getServers() : null;
+        if (servers == null) {
+            servers = getConfiguredServers();
+        }
+        int serversPerTask = ConnectorTask.getIntProperty(m_configProperties, ConnectorConfig.SERVERS_PER_TASK, 0);
         for (int i = 0; i < maxTasks; i++) {
+            Map<String, String> taskProps = new HashMap<>();
+            taskProps.putAll(m_configProperties);
+            taskProps.put(ConnectorConfig.TASK_ID, String.valueOf(i));
+            taskProps.put(ConnectorConfig.CONNECTOR_SERVERS, Joiner.on(',').join(servers));
+            if (serversPerTask > 0 && serversPerTask < servers.size()) {
+                taskProps.put(ConnectorConfig.CONNECTOR_SERVERS, Joiner.on(',').join(getTaskServers(servers, serversPerTask, i)));
+                taskProps.put(ConnectorConfig.TOPOLOGY_AWARE, "false");
+            }
             taskConfigs.add(taskProps);
         }
         return taskConfigs;
     }
 
+    /**
+     * Assign a task consecutive servers, starting after the servers of the previous task, so that each server is
+     * connected to by the same number of tasks give or take one.
+     * @param count the number of servers per task, less than the number of servers
+     * @param task the index of the task
+     * @return the servers of the task
+     */
+    static List<String> getTaskServers(List<String> servers, int count, int task) {
+
+        List<String> taskServers = new ArrayList<>(count);
+        int first = (int) ((long) task * count % servers.size());
+        for (int i = 0; i < count; i++) {
+            taskServers.add(servers.get((first + i) % servers.size()));
+        }
+        return taskServers;
+    }
+
+    private List<String> getConfiguredServers() {
+        return Splitter.on(',').omitEmptyStrings().trimResults()
+                .splitToList(ConnectorTask.getStringProperty(m_configProperties, ConnectorConfig.CONNECTOR_SERVERS, ""));
+    }
+
     @Override
     public void stop() throws ConnectException {
 
+        if (m_topologyMonitor != null) {
+            m_topologyMonitor.close();
+            m_topologyMonitor = null;
+        }
     }
 
     @Override
@@ -0,0 +1,260 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.voltcore.logging.VoltLogger;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+
+/**
+ * RetryScheduler sends the procedure calls which failed with a transient status again, after a jittered exponential
+ * backoff and up to a number of attempts, so that only the failed records are retried instead of the records of a
+ * whole commit interval. The calls keep their in-flight budget and their offsets stay registered while they wait.
+ * <p>
+ * A circuit breaker opens after a number of consecutive transient failures. While it is open the retries wait until
+ * the open time has elapsed and the task pauses consumption through the FlowController. It is then half open: the
+ * first failure opens it again, the first success closes it.
+ */
+final class RetryScheduler implements Closeable {
+
+    private static final VoltLogger LOGGER = new VoltLogger("KafkaSinkConnector");
+
+    /**
+     * A call which can be sent again
+     */
+    interface RetriableCall {
+
+        /**
+         * @return the number of retries of the call, including the one about to be scheduled
+         */
+        int nextAttempt();
+
+        /**
+         * send the call again with the same callback
+         * @return false if the call was not queued by the client
+         * @throws Exception if the call could not be sent
+         */
+        boolean resubmit(Client client) throws Exception;
+
+        /**
+         * give up on the call after the last attempt
+         * @param status the status of the last attempt, or DeadLetterLog.NOT_SENT
+         * @param error the error of the last attempt
+         */
+        void abandon(byte status, Object error);
+    }
+
+    private final int m_maxRetries;
+    private final long m_backoffMillis;
+    private final long m_maxBackoffMillis;
+    private final int m_circuitFailures;
+    private final long m_circuitOpenMillis;
+
+    private final FlowController m_flowController;
+    private final TaskMetrics m_metrics;
+    private final ScheduledExecutorService m_executor;
+    private volatile Client m_client;
+
+    private final AtomicInteger m_consecutiveFailures = new AtomicInteger(0);
+
+    /**
+     * <code>m_openUntil</code> The time in millis the circuit stays open until, 0 if it is closed
+     */
+    private final AtomicLong m_openUntil = new AtomicLong(0);
+
+    /**
+     * @param maxRetries the maximal number of retries of a call
+     * @param backoffMillis the delay before the first retry, doubled for each following one
+     * @param maxBackoffMillis the maximal delay before a retry
+     * @param circuitFailures the number of consecutive transient failures the circuit opens at
+     * @param circuitOpenMillis the time the circuit stays open
+     */
+    RetryScheduler(int maxRetries, long backoffMillis, long maxBackoffMillis, int circuitFailures, long circuitOpenMillis,
+            FlowController flowController, TaskMetrics metrics) {
+
+        m_maxRetries = maxRetries;
+        m_backoffMillis = backoffMillis;
+        m_maxBackoffMillis = maxBackoffMillis;
+        m_circuitFailures = circuitFailures;
+        m_circuitOpenMillis = circuitOpenMillis;
+        m_flowController = flowController;
+        m_metrics = metrics;
+        m_executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "VoltDB sink retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    void setClient(Client client) {
+        m_client = client;
+    }
+
+    /**
+     * @return true if the call failed with a status which may succeed if the call is sent again. The call may have been
+     * executed unless the server was unavailable.
+     */
+    static boolean isRetriable(byte status) {
+
+        switch (status) {
+        case ClientResponse.SERVER_UNAVAILABLE:
+        case ClientResponse.CONNECTION_TIMEOUT:
+        case ClientResponse.RESPONSE_UNKNOWN:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * account the outcome of a call for the circuit breaker, and schedule it again if it failed with a transient status
+     * @return true if the call is retried, false if it succeeded or is to be given up on
+     */
+    boolean onResponse(ClientResponse response, RetriableCall call) {
+
+        byte status = response.getStatus();
+        if (status == ClientResponse.SUCCESS) {
+            onSuccess();
+            return false;
+        }
+        if (!isRetriable(status)) {
+            return false;
+        }
+        onFailure();
+        return schedule(call);
+    }
+
+    /**
+     * schedule a call which failed with a transient status or could not be sent
+     * @return false if the retries of the call are exhausted or the scheduler is closed
+     */
+    boolean schedule(final RetriableCall call) {
+
+        int attempt = call.nextAttempt();
+        if (attempt > m_maxRetries || m_executor.isShutdown()) {
+            return false;
+        }
+        long backoff = Math.min(m_maxBackoffMillis, m_backoffMillis << Math.min(attempt - 1, 30));
+        //full jitter over the upper half, so that the calls failed together are not retried together
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        long openUntil = m_openUntil.get();
+        if (openUntil != 0) {
+            delay = Math.max(delay, openUntil - System.currentTimeMillis() + ThreadLocalRandom.current().nextLong(backoff + 1));
+        }
+        try {
+            m_executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    resubmit(call);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            //rejected once closed
+            return false;
+        }
+        m_metrics.recordRetry();
+        return true;
+    }
+
+    /**
+     * Drop the pending retries, the records are redelivered since their offsets are not committed.
+     */
+    @Override
+    public void close() {
+        m_executor.shutdownNow();
+    }
+
+    private void resubmit(RetriableCall call) {
+
+        Object error;
+        try {
+            if (call.resubmit(m_client)) {
+                return;
+            }
+            error = "Not queued";
+        } catch (Exception e) {
+            error = e;
+        }
+        onFailure();
+        if (!schedule(call)) {
+            call.abandon(DeadLetterLog.NOT_SENT, error);
+        }
+    }
+
+    private void onSuccess() {
+
+        if (m_consecutiveFailures.get() != 0) {
+            m_consecutiveFailures.set(0);
+        }
+        //the calls sent before the circuit opened do not close it, only the ones after the open time
+        long openUntil = m_openUntil.get();
+        if (openUntil != 0 && openUntil <= System.currentTimeMillis() && m_openUntil.compareAndSet(openUntil, 0)) {
+            m_flowController.setCircuitOpen(false);
+            LOGGER.info("Closed the circuit to VoltDB.");
+        }
+    }
+
+    private void onFailure() {
+
+        int failures = m_consecutiveFailures.incrementAndGet();
+        long now = System.currentTimeMillis();
+        long openUntil = m_openUntil.get();
+        if (openUntil > now || (openUntil == 0 && failures < m_circuitFailures)) {
+            return;
+        }
+        //a failure while half open opens it again right away
+        if (!m_openUntil.compareAndSet(openUntil, now + m_circuitOpenMillis)) {
+            return;
+        }
+        m_flowController.setCircuitOpen(true);
+        if (openUntil == 0) {
+            LOGGER.warn(String.format("Opened the circuit to VoltDB for %d ms after %d consecutive transient failures.",
+                    m_circuitOpenMillis, failures));
+        }
+        try {
+            //half open after the open time, consuming again until the next failure or success
+            m_executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    m_flowController.setCircuitOpen(false);
+                }
+            }, m_circuitOpenMillis, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            //closed
+        }
+    }
+}
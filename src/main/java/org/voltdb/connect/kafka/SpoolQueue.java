@@ -0,0 +1,504 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.kafka.connect.errors.ConnectException;
+
+import org.voltcore.logging.VoltLogger;
+import org.voltdb.ParameterSet;
+
+/**
+ * SpoolQueue is a bounded first in first out queue of formatted procedure calls in memory mapped segment files. The
+ * task appends the calls it can not send while the connection to VoltDB is lost and replays them in order once it is
+ * restored. All the methods must be called from the task thread.
+ * <p>
+ * The segments of a queue are named after a prefix unique to the queue, held with a lock file while the queue is open.
+ * A queue adopts the segments left behind by queues whose lock is no longer held, from a stopped or failed task: it
+ * replays them first if the spooled records may have been committed to Kafka, and deletes them otherwise.
+ * <p>
+ * A segment starts with the magic number and the format version, followed by the entries, each prefixed by its length.
+ * The length of a replayed entry is negated, so that it is not replayed again after a restart. A zero length marks the
+ * end of the written entries.
+ */
+final class SpoolQueue implements Closeable {
+
+    private static final VoltLogger LOGGER = new VoltLogger("KafkaSinkConnector");
+
+    static final int MAGIC = 0x564b5350;
+    static final byte VERSION = 1;
+    static final String SUFFIX = ".spool";
+    static final String LOCK_SUFFIX = ".lock";
+
+    private static final int HEADER_SIZE = 5;
+
+    private static final AtomicInteger s_queueCount = new AtomicInteger(0);
+
+    private final File m_dir;
+    private final String m_prefix;
+    private final int m_segmentBytes;
+    private final long m_maxBytes;
+
+    /**
+     * <code>m_keep</code> Keep the segments when the queue is closed, and replay the adopted ones
+     */
+    private final boolean m_keep;
+
+    private final FileChannel m_lockChannel;
+    private final FileLock m_lock;
+
+    /**
+     * <code>m_segments</code> The segments from the oldest, read from, to the newest, written to
+     */
+    private final ArrayDeque<Segment> m_segments = new ArrayDeque<Segment>();
+    private int m_segmentSequence = 0;
+
+    /**
+     * <code>m_bytes</code> The bytes of the entries not yet replayed
+     */
+    private long m_bytes = 0;
+
+    /**
+     * <code>m_appended</code> The position the next appended entry gets, the count of the entries appended or adopted
+     */
+    private long m_appended = 0;
+
+    /**
+     * <code>m_removed</code> The position of the next entry to replay
+     */
+    private long m_removed = 0;
+
+    /**
+     * <code>m_next</code> The entry returned by {@link #peek()}, until it is removed
+     */
+    private Entry m_next;
+
+    private ByteBuffer m_scratch = ByteBuffer.allocate(64 * 1024);
+
+    /**
+     * @param dir The directory of the segment files
+     * @param name The name the segment files start with, made unique to the queue
+     * @param segmentBytes The size a segment is rotated at
+     * @param maxBytes The maximal size of the entries not yet replayed
+     * @param keep true to keep the segments on close and replay the segments left behind by other queues
+     */
+    SpoolQueue(File dir, String name, int segmentBytes, long maxBytes, boolean keep) {
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new ConnectException(String.format("Could not create the spool directory %s", dir));
+        }
+        m_dir = dir;
+        m_prefix = String.format("%s-%d-%d", name, System.currentTimeMillis(), s_queueCount.incrementAndGet());
+        m_segmentBytes = segmentBytes;
+        m_maxBytes = maxBytes;
+        m_keep = keep;
+        try {
+            m_lockChannel = FileChannel.open(new File(dir, m_prefix + LOCK_SUFFIX).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            m_lock = m_lockChannel.lock();
+            adopt(name);
+        } catch (IOException e) {
+            throw new ConnectException(String.format("Could not open the spool in %s", dir), e);
+        }
+    }
+
+    /**
+     * Append a formatted procedure call.
+     * @return false if the queue is full
+     * @throws IOException if the segment can not be written
+     */
+    boolean append(String topic, int partition, long offset, String procName, Object[] params) throws IOException {
+
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        byte[] procBytes = procName.getBytes(StandardCharsets.UTF_8);
+        ParameterSet parameters = ParameterSet.fromArrayNoCopy(params);
+        int length = 4 + 8 + 4 + 4 + topicBytes.length + procBytes.length + parameters.getSerializedSize();
+        if (m_bytes > 0 && m_bytes + length + 4 > m_maxBytes) {
+            return false;
+        }
+        if (m_scratch.capacity() < length + 4) {
+            m_scratch = ByteBuffer.allocate(Math.max(length + 4, m_scratch.capacity() * 2));
+        }
+        ByteBuffer buffer = m_scratch;
+        buffer.clear();
+        buffer.putInt(length);
+        buffer.putInt(partition);
+        buffer.putLong(offset);
+        buffer.putInt(topicBytes.length);
+        buffer.put(topicBytes);
+        buffer.putInt(procBytes.length);
+        buffer.put(procBytes);
+        parameters.flattenToBuffer(buffer);
+        buffer.flip();
+
+        Segment segment = m_segments.peekLast();
+        //keep room for the end marker
+        if (segment == null || segment.m_sealed || segment.m_buffer.capacity() - segment.m_writePosition < buffer.remaining() + 4) {
+            segment = rotate(buffer.remaining() + 4);
+        }
+        segment.m_buffer.position(segment.m_writePosition);
+        segment.m_buffer.put(buffer);
+        segment.m_writePosition = segment.m_buffer.position();
+        m_bytes += length + 4;
+        m_appended++;
+        return true;
+    }
+
+    /**
+     * @return the oldest entry not yet replayed, null if the queue is empty
+     */
+    Entry peek() throws IOException {
+
+        while (m_next == null) {
+            Segment segment = m_segments.peekFirst();
+            if (segment == null) {
+                return null;
+            }
+            if (segment.m_readPosition < segment.m_writePosition) {
+                m_next = segment.read(m_removed);
+            } else if (segment.m_sealed || segment != m_segments.peekLast()) {
+                m_segments.pollFirst();
+                segment.delete();
+            } else {
+                return null;
+            }
+        }
+        return m_next;
+    }
+
+    /**
+     * Remove the entry returned by {@link #peek()} once it is replayed.
+     */
+    void remove() {
+
+        if (m_next == null) {
+            return;
+        }
+        Segment segment = m_segments.peekFirst();
+        segment.m_buffer.putInt(segment.m_readPosition, -m_next.m_length);
+        segment.m_readPosition += m_next.m_length + 4;
+        m_bytes -= m_next.m_length + 4;
+        m_removed++;
+        m_next = null;
+    }
+
+    boolean isEmpty() {
+        return m_bytes == 0;
+    }
+
+    long getBytes() {
+        return m_bytes;
+    }
+
+    /**
+     * @return the position the next appended entry gets. Positions grow in the order the entries are replayed.
+     */
+    long getPosition() {
+        return m_appended;
+    }
+
+    /**
+     * Flush the segment being written to disk.
+     */
+    void force() {
+
+        Segment segment = m_segments.peekLast();
+        if (segment != null && !segment.m_sealed) {
+            segment.m_buffer.force();
+        }
+    }
+
+    /**
+     * Keep or delete the segments and release the lock.
+     */
+    @Override
+    public void close() {
+
+        for (Segment segment : m_segments) {
+            if (m_keep && segment.m_readPosition < segment.m_writePosition) {
+                segment.close();
+            } else {
+                segment.delete();
+            }
+        }
+        if (m_keep && !m_segments.isEmpty() && LOGGER.isInfoEnabled()) {
+            LOGGER.info(String.format("Kept %d bytes of spooled records in %s", m_bytes, m_dir));
+        }
+        m_segments.clear();
+        try {
+            m_lock.release();
+            m_lockChannel.close();
+        } catch (IOException e) {
+            LOGGER.warn(String.format("Could not release the spool lock of %s", m_prefix), e);
+        }
+        if (m_keep && m_bytes > 0) {
+            //the segments are adopted by the next queue, which finds them by their lock file
+            return;
+        }
+        if (!new File(m_dir, m_prefix + LOCK_SUFFIX).delete()) {
+            LOGGER.warn(String.format("Could not delete the spool lock of %s", m_prefix));
+        }
+    }
+
+    /**
+     * Replay or delete the segments of the queues whose lock file is not held
+     */
+    private void adopt(String name) throws IOException {
+
+        final String namePrefix = name + "-";
+        File[] locks = m_dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String file) {
+                return file.startsWith(namePrefix) && file.endsWith(LOCK_SUFFIX) && !file.equals(m_prefix + LOCK_SUFFIX);
+            }
+        });
+        if (locks == null) {
+            return;
+        }
+        Arrays.sort(locks);
+        for (File lockFile : locks) {
+            try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE)) {
+                FileLock lock;
+                try {
+                    lock = channel.tryLock();
+                } catch (OverlappingFileLockException e) {
+                    //held by another queue in this process
+                    continue;
+                }
+                if (lock == null) {
+                    continue;
+                }
+                String lockName = lockFile.getName();
+                final String segmentPrefix = lockName.substring(0, lockName.length() - LOCK_SUFFIX.length()) + "-";
+                File[] files = m_dir.listFiles(new FilenameFilter() {
+                    @Override
+                    public boolean accept(File dir, String file) {
+                        return file.startsWith(segmentPrefix) && file.endsWith(SUFFIX);
+                    }
+                });
+                if (files != null) {
+                    Arrays.sort(files);
+                    for (File file : files) {
+                        if (m_keep) {
+                            //renamed after this queue, so that the next queue adopts it if it is not replayed
+                            File adopted = new File(m_dir, String.format("%s-%06d%s", m_prefix, m_segmentSequence++, SUFFIX));
+                            if (!file.renameTo(adopted)) {
+                                throw new IOException(String.format("Could not adopt the spool segment %s", file));
+                            }
+                            Segment segment = new Segment(adopted);
+                            m_segments.add(segment);
+                            m_bytes += segment.m_pendingBytes;
+                            m_appended += segment.m_pendingEntries;
+                        } else if (!file.delete()) {
+                            LOGGER.warn(String.format("Could not delete the spool segment %s", file));
+                        }
+                    }
+                }
+                lock.release();
+            }
+            if (!lockFile.delete()) {
+                LOGGER.warn(String.format("Could not delete the spool lock %s", lockFile));
+            }
+        }
+        if (m_bytes > 0 && LOGGER.isInfoEnabled()) {
+            LOGGER.info(String.format("Replaying %d spooled records left in %s", m_appended, m_dir));
+        }
+    }
+
+    private Segment rotate(int minBytes) throws IOException {
+
+        Segment last = m_segments.peekLast();
+        if (last != null && !last.m_sealed) {
+            last.m_buffer.force();
+        }
+        File file;
+        do {
+            file = new File(m_dir, String.format("%s-%06d%s", m_prefix, m_segmentSequence++, SUFFIX));
+        } while (file.exists());
+        Segment segment = new Segment(file, Math.max(m_segmentBytes, minBytes + HEADER_SIZE));
+        m_segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * A spooled procedure call
+     */
+    static final class Entry {
+
+        final String m_topic;
+        final int m_partition;
+        final long m_offset;
+        final String m_procName;
+        final Object[] m_params;
+
+        /**
+         * <code>m_position</code> The position of the entry in the queue
+         */
+        final long m_position;
+        final int m_length;
+
+        Entry(ByteBuffer buffer, int length, long position) throws IOException {
+            m_length = length;
+            m_position = position;
+            m_partition = buffer.getInt();
+            m_offset = buffer.getLong();
+            m_topic = getString(buffer);
+            m_procName = getString(buffer);
+            m_params = ParameterSet.fromByteBuffer(buffer).toArray();
+        }
+
+        private static String getString(ByteBuffer buffer) {
+
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * A mapped segment file
+     */
+    private static final class Segment {
+
+        final File m_file;
+        final FileChannel m_channel;
+        final MappedByteBuffer m_buffer;
+
+        /**
+         * <code>m_sealed</code> True for a segment adopted from another queue, which is not appended to
+         */
+        final boolean m_sealed;
+        int m_writePosition;
+        int m_readPosition = HEADER_SIZE;
+        long m_pendingBytes = 0;
+        long m_pendingEntries = 0;
+
+        /**
+         * create a segment to write
+         */
+        Segment(File file, int size) throws IOException {
+
+            m_file = file;
+            m_sealed = false;
+            m_channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            m_buffer = m_channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            m_buffer.putInt(MAGIC);
+            m_buffer.put(VERSION);
+            m_writePosition = HEADER_SIZE;
+        }
+
+        /**
+         * open an adopted segment, skipping the entries already replayed
+         */
+        Segment(File file) throws IOException {
+
+            m_file = file;
+            m_sealed = true;
+            m_channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            m_buffer = m_channel.map(FileChannel.MapMode.READ_WRITE, 0, m_channel.size());
+            if (m_buffer.remaining() < HEADER_SIZE || m_buffer.getInt() != MAGIC || m_buffer.get() != VERSION) {
+                m_channel.close();
+                throw new IOException(String.format("%s is not a spool segment", file));
+            }
+            int position = HEADER_SIZE;
+            while (position + 4 <= m_buffer.capacity()) {
+                int length = m_buffer.getInt(position);
+                if (length == 0 || Math.abs(length) > m_buffer.capacity() - position - 4) {
+                    break;
+                }
+                if (length < 0) {
+                    if (m_pendingEntries == 0) {
+                        m_readPosition = position - length + 4;
+                    }
+                } else {
+                    m_pendingBytes += length + 4;
+                    m_pendingEntries++;
+                }
+                position += Math.abs(length) + 4;
+            }
+            m_writePosition = position;
+        }
+
+        /**
+         * read the entry at the read position, skipping replayed ones
+         */
+        Entry read(long position) throws IOException {
+
+            int length = m_buffer.getInt(m_readPosition);
+            while (length < 0) {
+                m_readPosition += -length + 4;
+                if (m_readPosition >= m_writePosition) {
+                    return null;
+                }
+                length = m_buffer.getInt(m_readPosition);
+            }
+            ByteBuffer entry = m_buffer.duplicate();
+            entry.position(m_readPosition + 4);
+            entry.limit(m_readPosition + 4 + length);
+            try {
+                return new Entry(entry.slice(), length, position);
+            } catch (RuntimeException e) {
+                throw new IOException(String.format("Corrupt entry at %d in %s", m_readPosition, m_file), e);
+            }
+        }
+
+        void close() {
+
+            try {
+                m_buffer.force();
+                m_channel.truncate(m_writePosition);
+                m_channel.close();
+            } catch (IOException e) {
+                LOGGER.warn(String.format("Could not close the spool segment %s", m_file), e);
+            }
+        }
+
+        void delete() {
+
+            try {
+                m_channel.close();
+            } catch (IOException e) {
+                LOGGER.warn(String.format("Could not close the spool segment %s", m_file), e);
+            }
+            if (!m_file.delete()) {
+                LOGGER.warn(String.format("Could not delete the spool segment %s", m_file));
+            }
+        }
+    }
+}
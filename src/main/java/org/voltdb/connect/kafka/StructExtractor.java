@@ -0,0 +1,308 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.voltcore.logging.VoltLogger;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+import org.apache.kafka.connect.data.Date;
+import org.apache.kafka.connect.data.Decimal;
+import org.apache.kafka.connect.data.Field;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.data.Time;
+import org.apache.kafka.connect.data.Timestamp;
+import org.apache.kafka.connect.errors.ConnectException;
+import org.apache.kafka.connect.errors.DataException;
+
+/**
+ * StructExtractor converts Struct record values into procedure parameters. Each value schema is compiled once into
+ * an extraction plan which resolves the field types and logical types up front. Plans are cached per schema, the
+ * most recently used schema is matched by identity before the bounded cache is looked up.
+ */
+final class StructExtractor {
+
+    private static final VoltLogger LOGGER = new VoltLogger("KafkaSinkConnector");
+
+    /**
+     * <code>MAX_PLANS</code> The maximal number of cached plans, the least recently used plan is evicted first
+     */
+    private static final int MAX_PLANS = 64;
+
+    static final VoltTable.ColumnInfo[] NO_COLUMNS = new VoltTable.ColumnInfo[0];
+
+    /**
+     * How a field value is converted, resolved from the field schema type and logical name
+     */
+    private enum Kind {
+        INT8, INT16, INT32, INT64, FLOAT32, FLOAT64, STRING, BYTES, DECIMAL, DATE, TIME, TIMESTAMP, UNSUPPORTED
+    }
+
+    private final Map<Schema, Plan> m_plans = new LinkedHashMap<Schema, Plan>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Schema, Plan> eldest) {
+            return size() > MAX_PLANS;
+        }
+    };
+
+    private Schema m_lastSchema;
+    private Plan m_lastPlan;
+
+    /**
+     * @param schema a Struct value schema
+     * @return the extraction plan for the schema
+     */
+    Plan getPlan(Schema schema) {
+
+        if (schema == m_lastSchema) {
+            return m_lastPlan;
+        }
+        Plan plan = m_plans.get(schema);
+        if (plan == null) {
+            plan = new Plan(schema);
+            m_plans.put(schema, plan);
+        }
+        m_lastSchema = schema;
+        m_lastPlan = plan;
+        return plan;
+    }
+
+    /**
+     * Field accessors and conversions compiled from a Struct schema
+     */
+    static final class Plan {
+
+        private final Schema m_schema;
+        private final Field[] m_fields;
+        private final Schema[] m_fieldSchemas;
+        private final Kind[] m_kinds;
+
+        /**
+         * <code>m_columns</code> The columns per leading columns they start with, by identity
+         */
+        private final Map<VoltTable.ColumnInfo[], VoltTable.ColumnInfo[]> m_columns =
+                new IdentityHashMap<VoltTable.ColumnInfo[], VoltTable.ColumnInfo[]>();
+
+        Plan(Schema schema) {
+
+            m_schema = schema;
+            List<Field> fields = schema.fields();
+            m_fields = fields.toArray(new Field[fields.size()]);
+            m_fieldSchemas = new Schema[m_fields.length];
+            m_kinds = new Kind[m_fields.length];
+            for (int i = 0; i < m_fields.length; i++) {
+                m_fieldSchemas[i] = m_fields[i].schema();
+                m_kinds[i] = getKind(m_fieldSchemas[i]);
+            }
+        }
+
+        /**
+         * @param struct the record value
+         * @return the field values in schema order
+         */
+        Object[] extract(Struct struct) {
+            return extract(struct, 0);
+        }
+
+        /**
+         * @param struct the record value
+         * @param leading the number of values to leave empty before the field values
+         * @return the field values in schema order, after the leading empty values
+         */
+        Object[] extract(Struct struct, int leading) {
+
+            Object[] values = new Object[leading + m_fields.length];
+            for (int i = 0; i < m_fields.length; i++) {
+                Object value = struct.get(m_fields[i]);
+                values[leading + i] = (value == null) ? null : convert(m_kinds[i], m_fieldSchemas[i], value);
+            }
+            if (LOGGER.isDebugEnabled()) {
+                for (int i = 0; i < m_fields.length; i++) {
+                    LOGGER.debug("Schema name: " + m_schema.name() + ", field: " + m_fields[i].name() +
+                            ", type: " + m_fieldSchemas[i].type() + ", value: " + values[leading + i]);
+                }
+            }
+            return values;
+        }
+
+        /**
+         * @return the VoltTable columns named and typed after the fields of the schema
+         */
+        VoltTable.ColumnInfo[] getColumns() {
+            return getColumns(NO_COLUMNS);
+        }
+
+        /**
+         * The columns are cached per leading columns array, the callers pass constant ones.
+         * @param leading the columns before the fields
+         * @return the leading columns followed by the VoltTable columns named and typed after the fields of the schema
+         */
+        VoltTable.ColumnInfo[] getColumns(VoltTable.ColumnInfo[] leading) {
+
+            VoltTable.ColumnInfo[] columns = m_columns.get(leading);
+            if (columns == null) {
+                columns = Arrays.copyOf(leading, leading.length + m_fields.length);
+                for (int i = 0; i < m_fields.length; i++) {
+                    columns[leading.length + i] = new VoltTable.ColumnInfo(m_fields[i].name(), getVoltType(m_kinds[i], m_fieldSchemas[i]));
+                }
+                m_columns.put(leading, columns);
+            }
+            return columns;
+        }
+    }
+
+    private static Kind getKind(Schema schema) {
+
+        if (schema.name() != null) {
+            switch (schema.name()) {
+            case Decimal.LOGICAL_NAME:
+                return Kind.DECIMAL;
+            case Date.LOGICAL_NAME:
+                return Kind.DATE;
+            case Time.LOGICAL_NAME:
+                return Kind.TIME;
+            case Timestamp.LOGICAL_NAME:
+                return Kind.TIMESTAMP;
+            default:
+                break;
+            }
+        }
+        switch (schema.type()) {
+        case INT8:
+            return Kind.INT8;
+        case INT16:
+            return Kind.INT16;
+        case INT32:
+            return Kind.INT32;
+        case INT64:
+            return Kind.INT64;
+        case FLOAT32:
+            return Kind.FLOAT32;
+        case FLOAT64:
+            return Kind.FLOAT64;
+        case STRING:
+            return Kind.STRING;
+        case BYTES:
+            return Kind.BYTES;
+        case BOOLEAN:
+            // in kafka this is represented as 1 or 0; though boolean is not supported in voltdb
+            // so treat as error case for VoltDB at present
+        default:
+            return Kind.UNSUPPORTED;
+        }
+    }
+
+    private static Object convert(Kind kind, Schema schema, Object value) {
+
+        switch (kind) {
+        case INT8:
+            return (Byte) value;
+        case INT16:
+            return (Short) value;
+        case INT32:
+            return (Integer) value;
+        case INT64:
+            return (Long) value;
+        case FLOAT32:
+            return (Float) value;
+        case FLOAT64:
+            return (Double) value;
+        case STRING:
+            return (String) value;
+        case BYTES:
+            if (value instanceof ByteBuffer) {
+                final ByteBuffer buffer = ((ByteBuffer) value).slice();
+                final byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                return bytes;
+            }
+            return (byte[]) value;
+        case DECIMAL:
+            if (!(value instanceof BigDecimal)) {
+                throw new DataException("Invalid type for Decimal, underlying representation "
+                        + "should be BigDecimal but was " + value.getClass());
+            }
+            return Decimal.fromLogical(schema, (BigDecimal) value);
+        case DATE:
+            return Date.fromLogical(schema, toDate("Date", value));
+        case TIME:
+            return Time.fromLogical(schema, toDate("Time", value));
+        case TIMESTAMP:
+            return Timestamp.fromLogical(schema, toDate("Timestamp", value));
+        default:
+            throw new ConnectException("Unsupported data type read from kafka source: " + schema.type());
+        }
+    }
+
+    private static java.util.Date toDate(String typeName, Object value) {
+
+        if (!(value instanceof java.util.Date)) {
+            throw new DataException("Invalid type for " + typeName + ", underlying representation should "
+                    + "be java.util.Date but was " + value.getClass());
+        }
+        return (java.util.Date) value;
+    }
+
+    /**
+     * @return the VoltDB type of the values extracted for the field
+     */
+    private static VoltType getVoltType(Kind kind, Schema schema) {
+
+        switch (kind) {
+        case INT8:
+            return VoltType.TINYINT;
+        case INT16:
+            return VoltType.SMALLINT;
+        case INT32:
+        case DATE:
+        case TIME:
+            return VoltType.INTEGER;
+        case INT64:
+        case TIMESTAMP:
+            return VoltType.BIGINT;
+        case FLOAT32:
+        case FLOAT64:
+            return VoltType.FLOAT;
+        case STRING:
+            return VoltType.STRING;
+        case BYTES:
+        case DECIMAL:
+            return VoltType.VARBINARY;
+        default:
+            throw new ConnectException("Unsupported data type read from kafka source: " + schema.type());
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.voltdb.client.ClientResponse;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.metrics.JmxReporter;
+import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.MetricsReporter;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Percentile;
+import org.apache.kafka.common.metrics.stats.Percentiles;
+import org.apache.kafka.common.metrics.stats.Percentiles.BucketSizing;
+import org.apache.kafka.common.metrics.stats.Rate;
+import org.apache.kafka.common.metrics.stats.Total;
+import org.apache.kafka.common.utils.SystemTime;
+
+/**
+ * TaskMetrics registers the metrics of a task with Kafka Metrics, reported through JMX under
+ * kafka.connect.voltdb:type=sink-task-metrics and type=sink-partition-metrics, tagged with the connector name and
+ * the index of the task in the connector.
+ * The record and byte rates are accumulated per put on the task thread and recorded once per partition at the end of
+ * the put. Procedure latencies and failures are recorded from the client callbacks.
+ */
+final class TaskMetrics {
+
+    private static final String JMX_PREFIX = "kafka.connect.voltdb";
+    private static final String TASK_GROUP = "sink-task-metrics";
+    private static final String PARTITION_GROUP = "sink-partition-metrics";
+
+    /**
+     * <code>LATENCY_MAX_MS</code> The upper bound of the latency histograms, latencies above fall into the last bucket
+     */
+    private static final double LATENCY_MAX_MS = 500;
+
+    /**
+     * <code>LATENCY_HISTOGRAM_BYTES</code> The size of the latency histograms, 4 bytes a bucket: 1000 buckets of 0.5 ms
+     */
+    private static final int LATENCY_HISTOGRAM_BYTES = 4000;
+
+    private final Metrics m_metrics;
+    private final Map<String, String> m_tags;
+
+    private final Sensor m_records;
+    private final Sensor m_bytes;
+    private final Sensor m_formatTime;
+    private final Sensor m_procedureLatency;
+    private final Sensor m_backpressureTime;
+    private final Sensor m_retries;
+    private final Sensor m_coalesced;
+    private final Map<Byte, Sensor> m_failures = new ConcurrentHashMap<Byte, Sensor>();
+
+    /**
+     * <code>m_partitions</code> The sensors and the counts of the current put per topic partition, task thread only
+     */
+    private final Map<TopicPartition, PartitionSensors> m_partitions = new LinkedHashMap<TopicPartition, PartitionSensors>();
+    private TopicPartition m_lastPartition;
+    private PartitionSensors m_lastSensors;
+
+    private long m_backpressureStart = 0;
+
+    /**
+     * @param connectorName the connector name the metrics are tagged with
+     * @param taskId the index of the task in the connector the metrics are tagged with
+     * @param flowController the in-flight records and bytes
+     */
+    TaskMetrics(String connectorName, int taskId, final FlowController flowController) {
+
+        m_metrics = new Metrics(new MetricConfig(), Collections.<MetricsReporter>singletonList(new JmxReporter(JMX_PREFIX)), new SystemTime());
+        Map<String, String> tags = new LinkedHashMap<String, String>();
+        tags.put("connector", connectorName);
+        tags.put("task", String.valueOf(taskId));
+        m_tags = Collections.unmodifiableMap(tags);
+
+        m_records = sensor("records");
+        m_records.add(m_metrics.metricName("record-rate", TASK_GROUP, "The records per second put to the task", m_tags), new Rate());
+        m_records.add(m_metrics.metricName("record-total", TASK_GROUP, "The records put to the task", m_tags), new Total());
+
+        m_bytes = sensor("bytes");
+        m_bytes.add(m_metrics.metricName("byte-rate", TASK_GROUP, "The approximate bytes per second of the formatted records", m_tags), new Rate());
+
+        m_formatTime = sensor("format-time");
+        m_formatTime.add(m_metrics.metricName("format-time-avg", TASK_GROUP, "The average time in ms to convert and format the records of a put", m_tags), new Avg());
+        m_formatTime.add(m_metrics.metricName("format-time-max", TASK_GROUP, "The maximal time in ms to convert and format the records of a put", m_tags), new Max());
+
+        m_procedureLatency = sensor("procedure-latency");
+        m_procedureLatency.add(m_metrics.metricName("procedure-latency-avg", TASK_GROUP, "The average procedure round trip in ms", m_tags), new Avg());
+        m_procedureLatency.add(m_metrics.metricName("procedure-latency-max", TASK_GROUP, "The maximal procedure round trip in ms", m_tags), new Max());
+        m_procedureLatency.add(new Percentiles(LATENCY_HISTOGRAM_BYTES, LATENCY_MAX_MS, BucketSizing.CONSTANT,
+                new Percentile(m_metrics.metricName("procedure-latency-p50", TASK_GROUP, "The median procedure round trip in ms", m_tags), 50),
+                new Percentile(m_metrics.metricName("procedure-latency-p99", TASK_GROUP, "The 99th percentile procedure round trip in ms", m_tags), 99),
+                new Percentile(m_metrics.metricName("procedure-latency-p999", TASK_GROUP, "The 99.9th percentile procedure round trip in ms", m_tags), 99.9)));
+
+
+        m_backpressureTime = sensor("backpressure-time");
+        m_backpressureTime.add(m_metrics.metricName("backpressure-time-total", TASK_GROUP, "The total time in ms the client reported backpressure", m_tags), new Total());
+
+        m_retries = sensor("retries");
+        m_retries.add(m_metrics.metricName("retry-rate", TASK_GROUP, "The procedure calls per second scheduled to be sent again after a transient failure", m_tags), new Rate());
+        m_retries.add(m_metrics.metricName("retry-total", TASK_GROUP, "The procedure calls scheduled to be sent again after a transient failure", m_tags), new Total());
+
+        m_coalesced = sensor("coalesced");
+        m_coalesced.add(m_metrics.metricName("coalesced-rate", TASK_GROUP, "The records per second superseded by a later record of the same key in a put", m_tags), new Rate());
+        m_coalesced.add(m_metrics.metricName("coalesced-total", TASK_GROUP, "The records superseded by a later record of the same key in a put", m_tags), new Total());
+
+        m_metrics.addMetric(m_metrics.metricName("inflight-records", TASK_GROUP, "The records sent to VoltDB and not yet acknowledged", m_tags),
+                new Measurable() {
+                    @Override
+                    public double measure(MetricConfig config, long now) {
+                        return flowController.getRecords();
+                    }
+                });
+        m_metrics.addMetric(m_metrics.metricName("inflight-bytes", TASK_GROUP, "The approximate bytes sent to VoltDB and not yet acknowledged", m_tags),
+                new Measurable() {
+                    @Override
+                    public double measure(MetricConfig config, long now) {
+                        return flowController.getBytes();
+                    }
+                });
+        m_metrics.addMetric(m_metrics.metricName("inflight-records-limit", TASK_GROUP, "The current limit of records in flight, adapted to the latency target", m_tags),
+                new Measurable() {
+                    @Override
+                    public double measure(MetricConfig config, long now) {
+                        return flowController.getRecordLimit();
+                    }
+                });
+        m_metrics.addMetric(m_metrics.metricName("backpressure", TASK_GROUP, "1 if the client reports backpressure, 0 otherwise", m_tags),
+                new Measurable() {
+                    @Override
+                    public double measure(MetricConfig config, long now) {
+                        return flowController.isBackpressure() ? 1 : 0;
+                    }
+                });
+        m_metrics.addMetric(m_metrics.metricName("circuit-open", TASK_GROUP, "1 if transient failures have opened the circuit to VoltDB, 0 otherwise", m_tags),
+                new Measurable() {
+                    @Override
+                    public double measure(MetricConfig config, long now) {
+                        return flowController.isCircuitOpen() ? 1 : 0;
+                    }
+                });
+    }
+
+    /**
+     * count a formatted record of the current put
+     */
+    void recordRecord(TopicPartition partition, int bytes) {
+
+        if (partition != m_lastPartition) {
+            m_lastSensors = m_partitions.get(partition);
+            if (m_lastSensors == null) {
+                m_lastSensors = new PartitionSensors(partition);
+                m_partitions.put(partition, m_lastSensors);
+            }
+            m_lastPartition = partition;
+        }
+        m_lastSensors.m_putRecords++;
+        m_lastSensors.m_putBytes += bytes;
+    }
+
+    /**
+     * record the counts of the current put
+     * @param formatNanos the time spent converting and formatting the records of the put
+     */
+    void recordPut(long formatNanos) {
+
+        for (PartitionSensors sensors : m_partitions.values()) {
+            if (sensors.m_putRecords > 0) {
+                sensors.m_records.record(sensors.m_putRecords);
+                sensors.m_bytes.record(sensors.m_putBytes);
+                sensors.m_putRecords = 0;
+                sensors.m_putBytes = 0;
+            }
+        }
+        m_formatTime.record(formatNanos / 1000000.0);
+    }
+
+    /**
+     * record the outcome of a procedure call or bulk loader row
+     */
+    void recordResponse(ClientResponse response) {
+
+        if (response == null) {
+            return;
+        }
+        m_procedureLatency.record(response.getClientRoundtripNanos() / 1000000.0);
+        byte status = response.getStatus();
+        if (status != ClientResponse.SUCCESS) {
+            Sensor sensor = m_failures.get(status);
+            if (sensor == null) {
+                sensor = createFailureSensor(status);
+            }
+            sensor.record();
+        }
+    }
+
+    /**
+     * count the records of a put superseded by a later record of the same key
+     */
+    void recordCoalesced(int records) {
+        m_coalesced.record(records);
+    }
+
+    /**
+     * called from the client callbacks and the retry thread
+     */
+    void recordRetry() {
+        m_retries.record();
+    }
+
+    /**
+     * called from the client status listener
+     */
+    synchronized void setBackpressure(boolean backpressure) {
+
+        if (backpressure && m_backpressureStart == 0) {
+            m_backpressureStart = System.nanoTime();
+        } else if (!backpressure && m_backpressureStart != 0) {
+            m_backpressureTime.record((System.nanoTime() - m_backpressureStart) / 1000000.0);
+            m_backpressureStart = 0;
+        }
+    }
+
+    /**
+     * unregister the metrics of the partitions no longer assigned to the task
+     */
+    void removePartitions(Collection<TopicPartition> partitions) {
+
+        for (TopicPartition partition : partitions) {
+            PartitionSensors sensors = m_partitions.remove(partition);
+            if (sensors != null) {
+                m_metrics.removeSensor(sensors.m_records.name());
+                m_metrics.removeSensor(sensors.m_bytes.name());
+            }
+        }
+        m_lastPartition = null;
+        m_lastSensors = null;
+    }
+
+    void close() {
+        m_metrics.close();
+    }
+
+    private Sensor sensor(String name, Sensor... parents) {
+        return m_metrics.sensor(name, parents);
+    }
+
+    private synchronized Sensor createFailureSensor(byte status) {
+
+        Sensor sensor = m_failures.get(status);
+        if (sensor == null) {
+            Map<String, String> tags = new LinkedHashMap<String, String>(m_tags);
+            tags.put("status", getStatusName(status));
+            sensor = sensor("failures." + status);
+            sensor.add(m_metrics.metricName("failure-total", TASK_GROUP, "The failed procedure calls by response status", tags), new Total());
+            sensor.add(m_metrics.metricName("failure-rate", TASK_GROUP, "The failed procedure calls per second by response status", tags), new Rate(TimeUnit.SECONDS));
+            m_failures.put(status, sensor);
+        }
+        return sensor;
+    }
+
+    private static String getStatusName(byte status) {
+
+        switch (status) {
+        case ClientResponse.USER_ABORT:
+            return "USER_ABORT";
+        case ClientResponse.GRACEFUL_FAILURE:
+            return "GRACEFUL_FAILURE";
+        case ClientResponse.UNEXPECTED_FAILURE:
+            return "UNEXPECTED_FAILURE";
+        case ClientResponse.CONNECTION_LOST:
+            return "CONNECTION_LOST";
+        case ClientResponse.SERVER_UNAVAILABLE:
+            return "SERVER_UNAVAILABLE";
+        case ClientResponse.CONNECTION_TIMEOUT:
+            return "CONNECTION_TIMEOUT";
+        case ClientResponse.RESPONSE_UNKNOWN:
+            return "RESPONSE_UNKNOWN";
+        case ClientResponse.TXN_RESTART:
+            return "TXN_RESTART";
+        case ClientResponse.OPERATIONAL_FAILURE:
+            return "OPERATIONAL_FAILURE";
+        default:
+            return String.valueOf(status);
+        }
+    }
+
+    /**
+     * The record and byte rates of a topic partition, with the counts of the current put
+     */
+    private final class PartitionSensors {
+
+        final Sensor m_records;
+        final Sensor m_bytes;
+        long m_putRecords = 0;
+        long m_putBytes = 0;
+
+        PartitionSensors(TopicPartition partition) {
+
+            Map<String, String> tags = new HashMap<String, String>(m_tags);
+            tags.put("topic", partition.topic());
+            tags.put("partition", String.valueOf(partition.partition()));
+            String name = "records." + partition;
+            m_records = sensor(name, TaskMetrics.this.m_records);
+            m_records.add(m_metrics.metricName("record-rate", PARTITION_GROUP, "The records per second put from the partition", tags), new Rate());
+            m_bytes = sensor("bytes." + partition, TaskMetrics.this.m_bytes);
+            m_bytes.add(m_metrics.metricName("byte-rate", PARTITION_GROUP, "The approximate bytes per second of the formatted records from the partition", tags), new Rate());
+        }
+    }
+}
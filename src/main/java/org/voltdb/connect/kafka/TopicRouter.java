@@ -0,0 +1,126 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.kafka.common.config.ConfigException;
+
+/**
+ * TopicRouter maps Kafka topics to the routes configured for them. Topics listed by a route take precedence over
+ * topic patterns, patterns are matched in the order the routes are added. Topics which match no route use the
+ * default route. A topic is resolved once, subsequent lookups are served from the resolved topics.
+ */
+final class TopicRouter<R> {
+
+    private final R m_defaultRoute;
+    private final Map<String, R> m_topicRoutes = new HashMap<String, R>();
+    private final List<Pattern> m_patterns = new ArrayList<Pattern>();
+    private final List<R> m_patternRoutes = new ArrayList<R>();
+    private final List<R> m_routes = new ArrayList<R>();
+
+    /**
+     * <code>m_resolved</code> The route of each topic seen so far, null if the topic has no route
+     */
+    private final Map<String, R> m_resolved = new HashMap<String, R>();
+    private String m_lastTopic;
+    private R m_lastRoute;
+
+    /**
+     * @param defaultRoute the route of the topics not routed explicitly, may be null
+     */
+    TopicRouter(R defaultRoute) {
+
+        m_defaultRoute = defaultRoute;
+        if (defaultRoute != null) {
+            m_routes.add(defaultRoute);
+        }
+    }
+
+    /**
+     * @param topics the topics routed to the route
+     * @param pattern the pattern of the topics routed to the route, may be null
+     * @param route the route
+     */
+    void addRoute(List<String> topics, Pattern pattern, R route) {
+
+        for (String topic : topics) {
+            if (m_topicRoutes.put(topic, route) != null) {
+                throw new ConfigException(String.format("Topic %s is routed more than once", topic));
+            }
+        }
+        if (pattern != null) {
+            m_patterns.add(pattern);
+            m_patternRoutes.add(route);
+        }
+        m_routes.add(route);
+        m_resolved.clear();
+        m_lastTopic = null;
+    }
+
+    /**
+     * @return the route of the topic, or null if the topic has no route and there is no default route
+     */
+    R getRoute(String topic) {
+
+        if (topic.equals(m_lastTopic)) {
+            return m_lastRoute;
+        }
+        R route = m_resolved.get(topic);
+        if (route == null && !m_resolved.containsKey(topic)) {
+            route = resolve(topic);
+            m_resolved.put(topic, route);
+        }
+        m_lastTopic = topic;
+        m_lastRoute = route;
+        return route;
+    }
+
+    /**
+     * @return all the routes, the default route first
+     */
+    List<R> getRoutes() {
+        return Collections.unmodifiableList(m_routes);
+    }
+
+    private R resolve(String topic) {
+
+        R route = m_topicRoutes.get(topic);
+        if (route != null) {
+            return route;
+        }
+        for (int i = 0; i < m_patterns.size(); i++) {
+            if (m_patterns.get(i).matcher(topic).matches()) {
+                return m_patternRoutes.get(i);
+            }
+        }
+        return m_defaultRoute;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.connect.connector.ConnectorContext;
+import org.voltcore.logging.VoltLogger;
+import org.voltdb.VoltTable;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientConfig;
+import org.voltdb.client.ClientFactory;
+import org.voltdb.client.ProcCallException;
+
+/**
+ * TopologyMonitor polls the client interfaces of the VoltDB cluster nodes and requests a task reconfiguration when
+ * nodes join or leave, so that the tasks, which connect to the servers of their configuration only, are given the
+ * servers of the resized cluster. It keeps one connection of its own, to any of the known servers.
+ */
+final class TopologyMonitor implements Closeable {
+
+    private static final VoltLogger LOGGER = new VoltLogger("KafkaSinkConnector");
+
+    private final Map<String, String> m_props;
+    private final ConnectorContext m_context;
+    private final ScheduledExecutorService m_executor;
+    private Client m_client;
+
+    /**
+     * <code>m_servers</code> The client interfaces of the cluster nodes as host:port, sorted, null until the first check
+     */
+    private volatile List<String> m_servers;
+
+    /**
+     * <code>m_seeds</code> The servers tried in turn to connect to, the configured servers and the servers found since
+     */
+    private final List<String> m_seeds;
+
+    /**
+     * <code>m_configuredCount</code> The number of configured servers, which the tasks are started with
+     */
+    private final int m_configuredCount;
+
+    /**
+     * @param props the connector properties
+     * @param servers the configured servers
+     * @param intervalMillis the time between two checks
+     */
+    TopologyMonitor(Map<String, String> props, List<String> servers, ConnectorContext context, long intervalMillis) {
+
+        m_props = props;
+        m_context = context;
+        m_seeds = new ArrayList<String>(servers);
+        m_configuredCount = servers.size();
+        m_executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "VoltDB topology monitor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        m_executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                //an exception would cancel the following checks
+                try {
+                    check();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Could not check the VoltDB cluster topology", e);
+                    closeClient();
+                }
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the servers of the cluster as last found, null if the cluster was not reached yet
+     */
+    List<String> getServers() {
+        return m_servers;
+    }
+
+    @Override
+    public void close() {
+
+        m_executor.shutdownNow();
+        try {
+            m_executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeClient();
+    }
+
+    private void check() {
+
+        List<String> servers;
+        try {
+            servers = getClusterServers();
+        } catch (IOException | ProcCallException e) {
+            LOGGER.warn("Could not read the VoltDB cluster topology", e);
+            closeClient();
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (servers.isEmpty()) {
+            return;
+        }
+        for (String server : servers) {
+            if (!m_seeds.contains(server)) {
+                m_seeds.add(server);
+            }
+        }
+        List<String> previous = m_servers;
+        m_servers = servers;
+        if (previous == null) {
+            //the configured servers may name the same nodes differently, they are only replaced if nodes are missing
+            if (servers.size() != m_configuredCount) {
+                LOGGER.info(String.format("VoltDB cluster servers are %s, reconfiguring the tasks", servers));
+                m_context.requestTaskReconfiguration();
+            } else if (LOGGER.isInfoEnabled()) {
+                LOGGER.info(String.format("VoltDB cluster servers: %s", servers));
+            }
+        } else if (!previous.equals(servers)) {
+            LOGGER.info(String.format("VoltDB cluster servers changed from %s to %s, reconfiguring the tasks", previous, servers));
+            m_context.requestTaskReconfiguration();
+        }
+    }
+
+    /**
+     * @return the client interface of each node of the cluster as host:port, sorted
+     */
+    private List<String> getClusterServers() throws IOException, ProcCallException, InterruptedException {
+
+        if (m_client == null) {
+            ClientConfig config = ConnectorTask.getClientConfig(m_props, null);
+            //one connection is enough to read the topology
+            config.setTopologyChangeAware(false);
+            config.setReconnectOnConnectionLoss(false);
+            Client client = ClientFactory.createClient(config);
+            IOException failure = null;
+            for (String seed : m_seeds) {
+                try {
+                    client.createConnection(seed);
+                    failure = null;
+                    break;
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                client.close();
+                throw failure;
+            }
+            m_client = client;
+        }
+
+        //rows of host id, key and value
+        VoltTable overview = m_client.callProcedure("@SystemInformation", "OVERVIEW").getResults()[0];
+        Map<Integer, String> interfaces = new TreeMap<Integer, String>();
+        Map<Integer, String> addresses = new TreeMap<Integer, String>();
+        Map<Integer, String> ports = new TreeMap<Integer, String>();
+        while (overview.advanceRow()) {
+            int hostId = (int) overview.getLong(0);
+            String key = overview.getString(1);
+            if ("CLIENTINTERFACE".equals(key)) {
+                interfaces.put(hostId, overview.getString(2));
+            } else if ("IPADDRESS".equals(key)) {
+                addresses.put(hostId, overview.getString(2));
+            } else if ("CLIENTPORT".equals(key)) {
+                ports.put(hostId, overview.getString(2));
+            }
+        }
+        List<String> servers = new ArrayList<String>(ports.size());
+        for (Map.Entry<Integer, String> port : ports.entrySet()) {
+            String host = interfaces.get(port.getKey());
+            if (host == null || host.isEmpty()) {
+                host = addresses.get(port.getKey());
+            }
+            if (host != null) {
+                servers.add(host + ":" + port.getValue());
+            }
+        }
+        Collections.sort(servers);
+        return servers;
+    }
+
+    private void closeClient() {
+
+        if (m_client != null) {
+            try {
+                m_client.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                m_client = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.formatter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import org.apache.kafka.common.config.ConfigException;
+import org.junit.Test;
+import org.voltdb.connect.formatter.AvroFormatter.Header;
+import org.voltdb.importer.formatter.FormatException;
+import org.voltdb.importer.formatter.Formatter;
+
+public class AvroFormatterTest {
+
+    private static final String SCALARS = "{\"type\":\"record\",\"name\":\"Scalars\",\"namespace\":\"test\",\"fields\":["
+            + "{\"name\":\"flag\",\"type\":\"boolean\"},"
+            + "{\"name\":\"count\",\"type\":\"int\"},"
+            + "{\"name\":\"id\",\"type\":\"long\"},"
+            + "{\"name\":\"ratio\",\"type\":\"float\"},"
+            + "{\"name\":\"price\",\"type\":\"double\"},"
+            + "{\"name\":\"name\",\"type\":\"string\"},"
+            + "{\"name\":\"data\",\"type\":\"bytes\"},"
+            + "{\"name\":\"code\",\"type\":{\"type\":\"fixed\",\"name\":\"Code\",\"size\":2}},"
+            + "{\"name\":\"side\",\"type\":{\"type\":\"enum\",\"name\":\"Side\",\"symbols\":[\"BUY\",\"SELL\"]}},"
+            + "{\"name\":\"note\",\"type\":[\"null\",\"string\"]},"
+            + "{\"name\":\"amount\",\"type\":{\"type\":\"bytes\",\"logicalType\":\"decimal\",\"precision\":10,\"scale\":2}},"
+            + "{\"name\":\"other\",\"type\":\"test.Side\"}]}";
+
+    private static final String NESTED = "{\"type\":\"record\",\"name\":\"Nested\",\"fields\":["
+            + "{\"name\":\"tags\",\"type\":{\"type\":\"array\",\"items\":\"string\"}},"
+            + "{\"name\":\"id\",\"type\":\"long\"},"
+            + "{\"name\":\"attributes\",\"type\":{\"type\":\"map\",\"values\":\"int\"}},"
+            + "{\"name\":\"inner\",\"type\":{\"type\":\"record\",\"name\":\"Inner\",\"fields\":[{\"name\":\"x\",\"type\":\"double\"}]}},"
+            + "{\"name\":\"name\",\"type\":\"string\"}]}";
+
+    private static final String SIMPLE = "{\"type\":\"record\",\"name\":\"Simple\",\"fields\":["
+            + "{\"name\":\"id\",\"type\":\"long\"},{\"name\":\"name\",\"type\":\"string\"}]}";
+
+    @Test
+    public void testSpecEncoding() throws FormatException {
+
+        //zig-zag variable length longs and length prefixed strings as in the Avro specification
+        Formatter formatter = new AvroFormatter(SIMPLE, null, Header.NONE, -1);
+        assertArrayEquals(new Object[] { 0L, "" }, transform(formatter, 0x00, 0x00));
+        assertArrayEquals(new Object[] { -1L, "foo" }, transform(formatter, 0x01, 0x06, 'f', 'o', 'o'));
+        assertArrayEquals(new Object[] { 64L, "" }, transform(formatter, 0x80, 0x01, 0x00));
+        assertArrayEquals(new Object[] { -65L, "" }, transform(formatter, 0x81, 0x01, 0x00));
+    }
+
+    @Test
+    public void testScalars() throws FormatException {
+
+        Formatter formatter = new AvroFormatter(SCALARS, null, Header.NONE, -1);
+        Object[] values = formatter.transform(ByteBuffer.wrap(scalars(false)));
+        assertEquals(12, values.length);
+        assertEquals((byte) 1, values[0]);
+        assertEquals(-42, values[1]);
+        assertEquals(Long.MAX_VALUE, values[2]);
+        assertEquals(1.5f, values[3]);
+        assertEquals(-2.25d, values[4]);
+        assertEquals("h\u00e9llo", values[5]);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) values[6]);
+        assertArrayEquals(new byte[] { 'A', 'B' }, (byte[]) values[7]);
+        assertEquals("SELL", values[8]);
+        assertEquals(null, values[9]);
+        assertEquals(new BigDecimal("-123.45"), values[10]);
+        assertEquals("BUY", values[11]);
+
+        values = formatter.transform(ByteBuffer.wrap(scalars(true)));
+        assertEquals("note", values[9]);
+    }
+
+    @Test
+    public void testDirectBuffer() throws FormatException {
+
+        byte[] data = scalars(true);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.flip();
+        Object[] values = new AvroFormatter(SCALARS, null, Header.NONE, -1).transform(buffer);
+        assertEquals("h\u00e9llo", values[5]);
+        assertEquals("note", values[9]);
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void testFieldsSkipped() throws FormatException {
+
+        AvroEncoder encoder = new AvroEncoder();
+        //an array in two blocks, the second with its size in bytes
+        encoder.writeLong(2).writeString("a").writeString("b");
+        AvroEncoder block = new AvroEncoder().writeString("c");
+        encoder.writeLong(-1).writeLong(block.size()).write(block.toByteArray()).writeLong(0);
+        encoder.writeLong(7);
+        encoder.writeLong(2).writeString("k1").writeLong(1).writeString("k2").writeLong(2).writeLong(0);
+        encoder.writeDouble(3.5);
+        encoder.writeString("name");
+
+        Formatter formatter = new AvroFormatter(NESTED, new String[] { "name", " id" }, Header.NONE, -1);
+        assertArrayEquals(new Object[] { "name", 7L }, formatter.transform(ByteBuffer.wrap(encoder.toByteArray())));
+    }
+
+    @Test
+    public void testConfluentHeader() throws FormatException {
+
+        byte[] record = new AvroEncoder().writeLong(5).writeString("five").toByteArray();
+        ByteBuffer framed = ByteBuffer.allocate(5 + record.length);
+        framed.put((byte) 0).putInt(21).put(record).flip();
+
+        assertArrayEquals(new Object[] { 5L, "five" }, new AvroFormatter(SIMPLE, null, Header.CONFLUENT, 21).transform(framed));
+        assertArrayEquals(new Object[] { 5L, "five" }, new AvroFormatter(SIMPLE, null, Header.CONFLUENT, -1).transform(framed));
+        assertFormatException(new AvroFormatter(SIMPLE, null, Header.CONFLUENT, 22), framed);
+
+        framed.put(0, (byte) 1);
+        assertFormatException(new AvroFormatter(SIMPLE, null, Header.CONFLUENT, -1), framed);
+    }
+
+    @Test
+    public void testSingleObjectHeader() throws FormatException {
+
+        byte[] record = new AvroEncoder().writeLong(5).writeString("five").toByteArray();
+        ByteBuffer framed = ByteBuffer.allocate(10 + record.length);
+        framed.put((byte) 0xC3).put((byte) 0x01).putLong(0x1234567890L).put(record).flip();
+
+        Formatter formatter = new AvroFormatter(SIMPLE, null, Header.SINGLE_OBJECT, -1);
+        assertArrayEquals(new Object[] { 5L, "five" }, formatter.transform(framed));
+
+        framed.put(1, (byte) 0x02);
+        assertFormatException(formatter, framed);
+    }
+
+    @Test
+    public void testInvalidData() {
+
+        Formatter formatter = new AvroFormatter(SIMPLE, null, Header.NONE, -1);
+        //truncated string
+        assertFormatException(formatter, ByteBuffer.wrap(new AvroEncoder().writeLong(1).writeLong(10).write(new byte[] { 'a' }).toByteArray()));
+        //truncated long
+        assertFormatException(formatter, ByteBuffer.wrap(new byte[] { (byte) 0x80 }));
+        //negative length
+        assertFormatException(formatter, ByteBuffer.wrap(new AvroEncoder().writeLong(1).writeLong(-1).toByteArray()));
+
+        formatter = new AvroFormatter(SCALARS, new String[] { "side" }, Header.NONE, -1);
+        byte[] data = scalars(false);
+        //the record ends with the enum, the note union, the 2 byte decimal with its length and the other enum
+        int enumPosition = data.length - 1 - 2 - 1 - 1 - 1;
+        data[enumPosition] = 0x04;
+        assertFormatException(formatter, ByteBuffer.wrap(data));
+
+        formatter = new AvroFormatter(SCALARS, new String[] { "note" }, Header.NONE, -1);
+        data = scalars(false);
+        data[enumPosition + 1] = 0x04;
+        assertFormatException(formatter, ByteBuffer.wrap(data));
+    }
+
+    @Test
+    public void testInvalidSchema() {
+
+        assertConfigException("\"string\"", null);
+        assertConfigException("{\"type\":\"record\",\"name\":\"R\"}", null);
+        assertConfigException("{\"type\":\"record\",\"name\":\"R\",\"fields\":[{\"name\":\"x\",\"type\":\"Unknown\"}]}", null);
+        assertConfigException("not json", null);
+        assertConfigException(SIMPLE, new String[] { "missing" });
+        assertConfigException(NESTED, new String[] { "tags" });
+    }
+
+    @Test
+    public void testFactory() throws FormatException {
+
+        Properties props = new Properties();
+        try {
+            new AvroFormatterFactory().create("avro", props);
+            fail("the schema is required");
+        } catch (ConfigException expected) {
+        }
+
+        props.setProperty(AvroFormatterFactory.AVRO_SCHEMA, SIMPLE);
+        props.setProperty(AvroFormatterFactory.AVRO_FIELDS, "name");
+        props.setProperty(AvroFormatterFactory.AVRO_HEADER, "confluent");
+        props.setProperty(AvroFormatterFactory.AVRO_SCHEMA_ID, "3");
+        Formatter formatter = new AvroFormatterFactory().create("avro", props);
+        byte[] record = new AvroEncoder().writeLong(5).writeString("five").toByteArray();
+        ByteBuffer framed = ByteBuffer.allocate(5 + record.length);
+        framed.put((byte) 0).putInt(3).put(record).flip();
+        assertArrayEquals(new Object[] { "five" }, formatter.transform(framed));
+
+        props.setProperty(AvroFormatterFactory.AVRO_HEADER, "other");
+        try {
+            new AvroFormatterFactory().create("avro", props);
+            fail("invalid header");
+        } catch (ConfigException expected) {
+        }
+    }
+
+    /**
+     * @return the record of the scalars schema, the note as null or set
+     */
+    private static byte[] scalars(boolean note) {
+
+        AvroEncoder encoder = new AvroEncoder();
+        encoder.write(new byte[] { 1 });
+        encoder.writeLong(-42);
+        encoder.writeLong(Long.MAX_VALUE);
+        encoder.writeFloat(1.5f);
+        encoder.writeDouble(-2.25);
+        encoder.writeString("h\u00e9llo");
+        encoder.writeLong(3).write(new byte[] { 1, 2, 3 });
+        encoder.write(new byte[] { 'A', 'B' });
+        encoder.writeLong(1);
+        if (note) {
+            encoder.writeLong(1).writeString("note");
+        } else {
+            encoder.writeLong(0);
+        }
+        byte[] unscaled = new BigDecimal("-123.45").unscaledValue().toByteArray();
+        encoder.writeLong(unscaled.length).write(unscaled);
+        encoder.writeLong(0);
+        return encoder.toByteArray();
+    }
+
+    private static Object[] transform(Formatter formatter, int... bytes) throws FormatException {
+
+        byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            data[i] = (byte) bytes[i];
+        }
+        return formatter.transform(ByteBuffer.wrap(data));
+    }
+
+    private static void assertFormatException(Formatter formatter, ByteBuffer data) {
+
+        try {
+            formatter.transform(data);
+            fail("FormatException expected");
+        } catch (FormatException expected) {
+        }
+    }
+
+    private static void assertConfigException(String schema, String[] fields) {
+
+        try {
+            new AvroFormatter(schema, fields, Header.NONE, -1);
+            fail("ConfigException expected for " + schema);
+        } catch (ConfigException expected) {
+        }
+    }
+
+    /**
+     * Avro binary encoding of the primitive types
+     */
+    private static final class AvroEncoder {
+
+        private final ByteArrayOutputStream m_out = new ByteArrayOutputStream();
+
+        AvroEncoder writeLong(long value) {
+
+            long zigzag = (value << 1) ^ (value >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                m_out.write((int) ((zigzag & 0x7F) | 0x80));
+                zigzag >>>= 7;
+            }
+            m_out.write((int) zigzag);
+            return this;
+        }
+
+        AvroEncoder writeFloat(float value) {
+            return write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putFloat(value).array());
+        }
+
+        AvroEncoder writeDouble(double value) {
+            return write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putDouble(value).array());
+        }
+
+        AvroEncoder writeString(String value) {
+
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeLong(bytes.length);
+            return write(bytes);
+        }
+
+        AvroEncoder write(byte[] bytes) {
+            m_out.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        int size() {
+            return m_out.size();
+        }
+
+        byte[] toByteArray() {
+            return m_out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.voltdb.client.ClientResponse;
+
+public class DeadLetterLogTest {
+
+    private File m_dir;
+
+    @Before
+    public void setUp() throws IOException {
+        m_dir = Files.createTempDirectory("deadletters").toFile();
+    }
+
+    @After
+    public void tearDown() {
+
+        File[] files = m_dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        m_dir.delete();
+    }
+
+    @Test
+    public void testReadBack() throws IOException {
+
+        DeadLetterLog log = new DeadLetterLog(m_dir, "task", 4096, 16);
+        assertTrue(log.addValue("topic", 1, 10, "No route", "{\"id\":1}".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(log.addParameters("topic", 1, 11, ClientResponse.GRACEFUL_FAILURE, new IllegalStateException("Constraint"),
+                "Insert", new Object[] { 1L, "one" }));
+        log.close();
+
+        List<DeadLetterLog.Record> records = readAll();
+        assertEquals(2, records.size());
+
+        DeadLetterLog.Record value = records.get(0);
+        assertEquals("topic", value.m_topic);
+        assertEquals(1, value.m_partition);
+        assertEquals(10, value.m_offset);
+        assertEquals(DeadLetterLog.NOT_SENT, value.m_status);
+        assertEquals("No route", value.m_error);
+        assertNull(value.m_procName);
+        assertNull(value.m_parameters);
+        assertArrayEquals("{\"id\":1}".getBytes(StandardCharsets.UTF_8), value.m_value);
+
+        DeadLetterLog.Record parameters = records.get(1);
+        assertEquals(11, parameters.m_offset);
+        assertEquals(ClientResponse.GRACEFUL_FAILURE, parameters.m_status);
+        assertEquals("Insert", parameters.m_procName);
+        assertTrue(parameters.m_error.contains("Constraint"));
+        assertArrayEquals(new Object[] { 1L, "one" }, parameters.m_parameters.toArray());
+        assertNull(parameters.m_value);
+    }
+
+    @Test
+    public void testUnserializableParametersKeptAsText() throws IOException {
+
+        DeadLetterLog log = new DeadLetterLog(m_dir, "task", 4096, 16);
+        Object[] params = new Object[] { 1L, new StringBuilder("text") };
+        assertTrue(log.addParameters("topic", 1, 10, DeadLetterLog.NOT_SENT, "Unsupported", "Insert", params));
+        log.close();
+
+        List<DeadLetterLog.Record> records = readAll();
+        assertEquals(1, records.size());
+        assertNull(records.get(0).m_parameters);
+        assertEquals(Arrays.deepToString(params), new String(records.get(0).m_value, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRotation() throws IOException {
+
+        int count = 1000;
+        DeadLetterLog log = new DeadLetterLog(m_dir, "task", 512, count);
+        for (int i = 0; i < count; i++) {
+            assertTrue(log.addParameters("topic", 1, i, DeadLetterLog.NOT_SENT, "Failed", "Insert", new Object[] { (long) i }));
+        }
+        log.close();
+        assertEquals(0, log.getDropped());
+
+        assertTrue(segments().length > 1);
+        List<DeadLetterLog.Record> records = readAll();
+        assertEquals(count, records.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, records.get(i).m_offset);
+            assertArrayEquals(new Object[] { (long) i }, records.get(i).m_parameters.toArray());
+        }
+    }
+
+    @Test
+    public void testDroppedOnceClosed() throws IOException {
+
+        DeadLetterLog log = new DeadLetterLog(m_dir, "task", 4096, 16);
+        log.close();
+        assertFalse(log.addValue("topic", 1, 10, "No route", "value"));
+        assertEquals(1, log.getDropped());
+        assertEquals(0, readAll().size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotASegment() throws IOException {
+
+        File file = new File(m_dir, "task-0-0-000000" + DeadLetterLog.SUFFIX);
+        Files.write(file.toPath(), "not a segment".getBytes(StandardCharsets.UTF_8));
+        new DeadLetterLog.Reader(file).close();
+    }
+
+    private File[] segments() {
+
+        File[] files = m_dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(DeadLetterLog.SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+        return files;
+    }
+
+    private List<DeadLetterLog.Record> readAll() throws IOException {
+
+        List<DeadLetterLog.Record> records = new ArrayList<DeadLetterLog.Record>();
+        for (File file : segments()) {
+            try (DeadLetterLog.Reader reader = new DeadLetterLog.Reader(file)) {
+                for (DeadLetterLog.Record record = reader.next(); record != null; record = reader.next()) {
+                    records.add(record);
+                }
+            }
+        }
+        return records;
+    }
+}
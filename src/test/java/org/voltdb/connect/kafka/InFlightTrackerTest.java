@@ -0,0 +1,295 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+import org.voltdb.connect.kafka.InFlightTracker.PartitionWindow;
+
+public class InFlightTrackerTest {
+
+    private static final TopicPartition PARTITION = new TopicPartition("topic", 3);
+
+    private final InFlightTracker m_tracker = new InFlightTracker();
+
+    @Test
+    public void testNothingCommittableUntilTracked() {
+
+        assertEquals(-1, m_tracker.getCommittableOffset(PARTITION));
+        assertTrue(m_tracker.getCommittableOffsets().isEmpty());
+        assertFalse(m_tracker.hasInFlight());
+    }
+
+    @Test
+    public void testAckOutOfOrder() throws InterruptedException {
+
+        PartitionWindow window = m_tracker.getWindow(PARTITION.topic(), PARTITION.partition());
+        long[] sequences = new long[5];
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = window.register(10 + i);
+        }
+        window.ack(sequences[4]);
+        window.ack(sequences[2]);
+        window.ack(sequences[1]);
+        assertEquals(10, m_tracker.getCommittableOffset(PARTITION));
+        assertTrue(m_tracker.hasInFlight());
+
+        window.ack(sequences[0]);
+        assertEquals(13, m_tracker.getCommittableOffset(PARTITION));
+        assertEquals(13, window.getOffset(sequences[3]));
+        assertEquals(-1, window.getOffset(sequences[0]));
+
+        window.ack(sequences[3]);
+        assertEquals(15, m_tracker.getCommittableOffset(PARTITION));
+        assertFalse(m_tracker.hasInFlight());
+        assertEquals(Collections.singletonMap(PARTITION, 15L), m_tracker.getCommittableOffsets());
+    }
+
+    @Test
+    public void testSkipBetweenRegisteredOffsets() throws InterruptedException {
+
+        PartitionWindow window = m_tracker.getWindow(PARTITION.topic(), PARTITION.partition());
+        long first = window.register(10);
+        window.skip(11);
+        long last = window.register(12);
+        window.skip(13);
+        window.ack(last);
+        assertEquals(10, m_tracker.getCommittableOffset(PARTITION));
+
+        window.ack(first);
+        assertEquals(14, m_tracker.getCommittableOffset(PARTITION));
+    }
+
+    @Test
+    public void testOnlySkipped() {
+
+        PartitionWindow window = m_tracker.getWindow(PARTITION.topic(), PARTITION.partition());
+        window.skip(41);
+        window.skip(42);
+        assertEquals(43, m_tracker.getCommittableOffset(PARTITION));
+        assertFalse(m_tracker.hasInFlight());
+    }
+
+    @Test
+    public void testSpoolHold() throws InterruptedException {
+
+        PartitionWindow window = m_tracker.getWindow(PARTITION.topic(), PARTITION.partition());
+        window.ack(window.register(10));
+        window.m_spoolHold = 11;
+        window.ack(window.register(12));
+        assertEquals(11, m_tracker.getCommittableOffset(PARTITION));
+
+        m_tracker.clearSpoolHolds();
+        assertEquals(13, m_tracker.getCommittableOffset(PARTITION));
+    }
+
+    @Test
+    public void testWindowsPerPartition() throws InterruptedException {
+
+        PartitionWindow window = m_tracker.getWindow("topic", 1);
+        PartitionWindow other = m_tracker.getWindow("other", 1);
+        assertNotSame(window, other);
+        assertSame(window, m_tracker.getWindow("topic", 1));
+
+        window.ack(window.register(5));
+        other.register(7);
+        //the lowest offset not acknowledged
+        Map<TopicPartition, Long> offsets = m_tracker.getCommittableOffsets();
+        assertEquals(2, offsets.size());
+        assertEquals(Long.valueOf(6), offsets.get(new TopicPartition("topic", 1)));
+        assertEquals(Long.valueOf(7), offsets.get(new TopicPartition("other", 1)));
+    }
+
+    @Test
+    public void testClearWhileAcking() throws Exception {
+
+        final PartitionWindow window = m_tracker.getWindow(PARTITION.topic(), PARTITION.partition());
+        final int count = 100000;
+        for (int i = 0; i < count; i++) {
+            window.register(100 + i);
+        }
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread acker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    started.countDown();
+                    for (long sequence = 0; sequence < count; sequence++) {
+                        window.ack(sequence);
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        acker.start();
+        started.await();
+        m_tracker.clear();
+        assertFalse(m_tracker.isTracked(window));
+        assertEquals(-1, m_tracker.getCommittableOffset(PARTITION));
+
+        //the partition is tracked again from the redelivered records
+        PartitionWindow redelivered = m_tracker.getWindow(PARTITION.topic(), PARTITION.partition());
+        assertNotSame(window, redelivered);
+        long sequence = redelivered.register(100);
+        assertEquals(100, m_tracker.getCommittableOffset(PARTITION));
+
+        acker.join();
+        assertEquals(null, failure.get());
+        assertEquals(100, m_tracker.getCommittableOffset(PARTITION));
+        redelivered.ack(sequence);
+        assertEquals(101, m_tracker.getCommittableOffset(PARTITION));
+    }
+
+    @Test
+    public void testRemoveWhileAcking() throws Exception {
+
+        final PartitionWindow window = m_tracker.getWindow(PARTITION.topic(), PARTITION.partition());
+        PartitionWindow kept = m_tracker.getWindow("other", 0);
+        final long sequence = window.register(10);
+        kept.ack(kept.register(20));
+        Thread acker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                window.ack(sequence);
+            }
+        });
+        acker.start();
+        m_tracker.remove(Collections.singletonList(PARTITION));
+        acker.join();
+
+        assertFalse(m_tracker.isTracked(window));
+        assertTrue(m_tracker.isTracked(kept));
+        assertEquals(-1, m_tracker.getCommittableOffset(PARTITION));
+        assertEquals(21, m_tracker.getCommittableOffset(new TopicPartition("other", 0)));
+    }
+
+    @Test
+    public void testConcurrentAcks() throws Exception {
+
+        final PartitionWindow window = m_tracker.getWindow(PARTITION.topic(), PARTITION.partition());
+        final int count = 200000;
+        final int threads = 4;
+        for (int i = 0; i < count; i++) {
+            window.register(i + 1);
+        }
+        Thread[] ackers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            ackers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long sequence = count - 1 - first; sequence >= 0; sequence -= threads) {
+                        window.ack(sequence);
+                    }
+                }
+            });
+            ackers[t].start();
+        }
+        long committed = 0;
+        while (committed <= count) {
+            long offset = m_tracker.getCommittableOffset(PARTITION);
+            assertTrue(offset >= committed);
+            committed = offset;
+            if (!m_tracker.hasInFlight()) {
+                break;
+            }
+        }
+        for (Thread acker : ackers) {
+            acker.join();
+        }
+        assertFalse(m_tracker.hasInFlight());
+        assertEquals(count + 1, m_tracker.getCommittableOffset(PARTITION));
+    }
+
+    @Test(timeout = 60000)
+    public void testFullWindow() throws Exception {
+
+        final PartitionWindow window = m_tracker.getWindow(PARTITION.topic(), PARTITION.partition());
+        for (int i = 0; i < PartitionWindow.CAPACITY; i++) {
+            assertEquals(i, window.register(10 + i));
+        }
+        final AtomicLong sequence = new AtomicLong(-1);
+        Thread registrar = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sequence.set(window.register(10 + PartitionWindow.CAPACITY));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        registrar.start();
+        registrar.join(200);
+        assertTrue("register returned with the window full", registrar.isAlive());
+
+        //the acknowledgement of the oldest offset frees the slot the next offset wraps around to
+        window.ack(0);
+        registrar.join();
+        assertEquals(PartitionWindow.CAPACITY, sequence.get());
+        assertEquals(10 + PartitionWindow.CAPACITY, window.getOffset(PartitionWindow.CAPACITY));
+        assertEquals(11, m_tracker.getCommittableOffset(PARTITION));
+
+        for (long i = 1; i <= PartitionWindow.CAPACITY; i++) {
+            window.ack(i);
+        }
+        assertFalse(m_tracker.hasInFlight());
+        assertEquals(11 + PartitionWindow.CAPACITY, m_tracker.getCommittableOffset(PARTITION));
+    }
+
+    @Test
+    public void testWrapAround() throws InterruptedException {
+
+        PartitionWindow window = m_tracker.getWindow(PARTITION.topic(), PARTITION.partition());
+        long[] pending = new long[16];
+        long offset = 0;
+        for (int round = 0; round < 3 * PartitionWindow.CAPACITY / pending.length; round++) {
+            for (int i = 0; i < pending.length; i++) {
+                pending[i] = window.register(++offset);
+            }
+            //acknowledged in reverse, the committable offset only moves once the first is
+            for (int i = pending.length - 1; i > 0; i--) {
+                window.ack(pending[i]);
+            }
+            assertEquals(offset - pending.length + 1, m_tracker.getCommittableOffset(PARTITION));
+            window.ack(pending[0]);
+            assertEquals(offset + 1, m_tracker.getCommittableOffset(PARTITION));
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.connect.kafka;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpoolQueueTest {
+
+    private File m_dir;
+
+    @Before
+    public void setUp() throws IOException {
+        m_dir = Files.createTempDirectory("spool").toFile();
+    }
+
+    @After
+    public void tearDown() {
+
+        File[] files = m_dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        m_dir.delete();
+    }
+
+    @Test
+    public void testReplayInOrder() throws IOException {
+
+        try (SpoolQueue queue = new SpoolQueue(m_dir, "task", 4096, 1 << 20, false)) {
+            assertTrue(queue.isEmpty());
+            assertNull(queue.peek());
+            for (int i = 0; i < 3; i++) {
+                assertEquals(i, queue.getPosition());
+                assertTrue(queue.append("topic", 2, 10 + i, "Insert", params(i)));
+            }
+            assertFalse(queue.isEmpty());
+            for (int i = 0; i < 3; i++) {
+                assertEntry(queue.peek(), i, i);
+                queue.remove();
+            }
+            assertTrue(queue.isEmpty());
+            assertEquals(0, queue.getBytes());
+            assertNull(queue.peek());
+        }
+        assertEquals(0, countFiles(SpoolQueue.SUFFIX) + countFiles(SpoolQueue.LOCK_SUFFIX));
+    }
+
+    @Test
+    public void testPeekWithoutRemove() throws IOException {
+
+        try (SpoolQueue queue = new SpoolQueue(m_dir, "task", 4096, 1 << 20, false)) {
+            queue.append("topic", 2, 10, "Insert", params(0));
+            queue.append("topic", 2, 11, "Insert", params(1));
+            assertEntry(queue.peek(), 0, 0);
+            assertEntry(queue.peek(), 0, 0);
+            queue.remove();
+            assertEntry(queue.peek(), 1, 1);
+        }
+    }
+
+    @Test
+    public void testRotation() throws IOException {
+
+        int count = 1000;
+        try (SpoolQueue queue = new SpoolQueue(m_dir, "task", 512, 1 << 20, false)) {
+            for (int i = 0; i < count; i++) {
+                assertTrue(queue.append("topic", 2, 10 + i, "Insert", params(i)));
+            }
+            assertTrue(countFiles(SpoolQueue.SUFFIX) > 1);
+            for (int i = 0; i < count; i++) {
+                assertEntry(queue.peek(), i, i);
+                queue.remove();
+            }
+            assertNull(queue.peek());
+            //the replayed segments are deleted, the last one is still written to
+            assertEquals(1, countFiles(SpoolQueue.SUFFIX));
+            assertTrue(queue.append("topic", 2, 10 + count, "Insert", params(count)));
+            assertEntry(queue.peek(), count, count);
+        }
+    }
+
+    @Test
+    public void testFull() throws IOException {
+
+        try (SpoolQueue queue = new SpoolQueue(m_dir, "task", 4096, 200, false)) {
+            int appended = 0;
+            while (queue.append("topic", 2, 10 + appended, "Insert", params(appended))) {
+                appended++;
+            }
+            assertTrue(appended > 0);
+            assertTrue(queue.getBytes() <= 200);
+
+            queue.peek();
+            queue.remove();
+            assertTrue(queue.append("topic", 2, 10 + appended, "Insert", params(appended)));
+        }
+    }
+
+    @Test
+    public void testRestartReplaysKeptSegments() throws IOException {
+
+        int count = 100;
+        try (SpoolQueue queue = new SpoolQueue(m_dir, "task", 512, 1 << 20, true)) {
+            for (int i = 0; i < count; i++) {
+                queue.append("topic", 2, 10 + i, "Insert", params(i));
+            }
+            for (int i = 0; i < 30; i++) {
+                queue.peek();
+                queue.remove();
+            }
+            queue.force();
+        }
+        assertEquals(1, countFiles(SpoolQueue.LOCK_SUFFIX));
+
+        //the queue of the restarted task replays the entries not replayed before the ones it appends
+        try (SpoolQueue queue = new SpoolQueue(m_dir, "task", 512, 1 << 20, true)) {
+            assertFalse(queue.isEmpty());
+            assertEquals(count - 30, queue.getPosition());
+            queue.append("topic", 2, 10 + count, "Insert", params(count));
+            for (int i = 30; i <= count; i++) {
+                assertEntry(queue.peek(), i - 30, i);
+                queue.remove();
+            }
+            assertTrue(queue.isEmpty());
+        }
+        assertEquals(0, countFiles(SpoolQueue.SUFFIX) + countFiles(SpoolQueue.LOCK_SUFFIX));
+    }
+
+    @Test
+    public void testRestartAfterPartialReplay() throws IOException {
+
+        try (SpoolQueue queue = new SpoolQueue(m_dir, "task", 4096, 1 << 20, true)) {
+            for (int i = 0; i < 5; i++) {
+                queue.append("topic", 2, 10 + i, "Insert", params(i));
+            }
+        }
+        try (SpoolQueue queue = new SpoolQueue(m_dir, "task", 4096, 1 << 20, true)) {
+            assertEntry(queue.peek(), 0, 0);
+            queue.remove();
+            assertEntry(queue.peek(), 1, 1);
+            queue.remove();
+        }
+        //the entries replayed before the second restart are not replayed again
+        try (SpoolQueue queue = new SpoolQueue(m_dir, "task", 4096, 1 << 20, true)) {
+            assertEquals(3, queue.getPosition());
+            for (int i = 2; i < 5; i++) {
+                assertEntry(queue.peek(), i - 2, i);
+                queue.remove();
+            }
+            assertNull(queue.peek());
+        }
+    }
+
+    @Test
+    public void testAdoptedSegmentsDeletedIfNotKept() throws IOException {
+
+        try (SpoolQueue queue = new SpoolQueue(m_dir, "task", 4096, 1 << 20, true)) {
+            queue.append("topic", 2, 10, "Insert", params(0));
+        }
+        try (SpoolQueue queue = new SpoolQueue(m_dir, "task", 4096, 1 << 20, false)) {
+            assertTrue(queue.isEmpty());
+            assertNull(queue.peek());
+        }
+        assertEquals(0, countFiles(SpoolQueue.SUFFIX) + countFiles(SpoolQueue.LOCK_SUFFIX));
+    }
+
+    @Test
+    public void testOpenQueueNotAdopted() throws IOException {
+
+        try (SpoolQueue queue = new SpoolQueue(m_dir, "task", 4096, 1 << 20, true)) {
+            queue.append("topic", 2, 10, "Insert", params(0));
+            try (SpoolQueue other = new SpoolQueue(m_dir, "task", 4096, 1 << 20, true)) {
+                assertTrue(other.isEmpty());
+            }
+            try (SpoolQueue other = new SpoolQueue(m_dir, "other", 4096, 1 << 20, true)) {
+                assertTrue(other.isEmpty());
+            }
+            assertEntry(queue.peek(), 0, 0);
+        }
+    }
+
+    private static Object[] params(int i) {
+        return new Object[] { Long.valueOf(i), "value " + i };
+    }
+
+    private static void assertEntry(SpoolQueue.Entry entry, long position, int i) {
+
+        assertEquals("topic", entry.m_topic);
+        assertEquals(2, entry.m_partition);
+        assertEquals(10 + i, entry.m_offset);
+        assertEquals("Insert", entry.m_procName);
+        assertEquals(position, entry.m_position);
+        assertArrayEquals(params(i), entry.m_params);
+    }
+
+    private int countFiles(String suffix) {
+
+        int count = 0;
+        for (String name : m_dir.list()) {
+            if (name.endsWith(suffix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}